@@ -0,0 +1,346 @@
+package code.bench;
+
+import code.core.DatabaseManager;
+import code.core.ServerManager;
+import code.entities.Ratings;
+import code.entities.User;
+import code.utils.PasswordUtils;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Benchmark dei percorsi critici di {@link DatabaseManager} e {@link ServerManager}: insertReview,
+ * getHotelByNameAndCity, getHotelsByCity, updateLocalRankings, persistData e {@link PasswordUtils#checkPassword}.<br>
+ * Per ogni combinazione di numero di hotel e di recensioni viene generato un database sintetico in una cartella
+ * temporanea, e i benchmark vengono eseguiti in una JVM separata avviata in quella cartella (DatabaseManager e
+ * AppConfig sono singleton che leggono application.properties dalla cartella corrente). Ogni benchmark viene eseguito
+ * su un thread e su N thread in contesa, con un giro di riscaldamento e uno di misura della stessa durata.<br>
+ * Se viene indicato un file di baseline che non esiste, i risultati vengono salvati in quel file; se esiste, ogni
+ * risultato viene confrontato con quello salvato.<br><br>
+ *
+ * Uso: java -cp lib/gson-2.10.1.jar:out:out-bench code.bench.DatabaseBenchmark [threads] [secondiPerGiro]
+ * [hotel,...] [recensioni,...] [baseline.csv]
+ */
+public class DatabaseBenchmark {
+    private static final String FORK = "--fork";
+    private static final String RESULT = "RESULT\t";
+    private static final String[] SERVICES = {"Wi-Fi", "Palestra", "TV in camera", "Cancellazione gratuita", "Piscina", "Parcheggio"};
+    private static final int HOTELS_PER_CITY = 20;
+    private static final int REVIEWS_PER_USER = 20;
+
+    private interface Operation {
+        void run(ThreadLocalRandom random) throws Exception;
+    }
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(FORK)) {
+            fork(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+            System.exit(0);
+        }
+
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int[] hotelCounts = parseList(args.length > 2 ? args[2] : "1000,10000");
+        int[] reviewCounts = parseList(args.length > 3 ? args[3] : "10000,100000");
+        File baselineFile = args.length > 4 ? new File(args[4]) : null;
+        if (threads <= 0 || seconds <= 0) throw new IllegalArgumentException("threads e secondiPerGiro devono essere positivi");
+        if (Arrays.stream(hotelCounts).anyMatch(n -> n <= 0) || Arrays.stream(reviewCounts).anyMatch(n -> n < 0)) {
+            throw new IllegalArgumentException("Servono almeno un hotel e un numero di recensioni non negativo");
+        }
+
+        Map<String, Double> baseline = baselineFile != null && baselineFile.exists() ? readBaseline(baselineFile) : null;
+        Map<String, Double> results = new LinkedHashMap<>();
+
+        System.out.println("threads=" + threads + ", secondi per giro=" + seconds);
+        for (int hotels : hotelCounts) {
+            for (int reviews : reviewCounts) {
+                System.out.println();
+                System.out.println("=== hotel=" + hotels + ", recensioni=" + reviews + " ===");
+                runFork(hotels, reviews, threads, seconds, results, baseline);
+            }
+        }
+
+        if (baselineFile != null && baseline == null) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(baselineFile))) {
+                results.forEach((name, ns) -> out.println(name + "," + ns));
+            }
+            System.out.println("\nRisultati salvati come baseline in " + baselineFile);
+        }
+    }
+
+    private static int[] parseList(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+    }
+
+    private static Map<String, Double> readBaseline(File file) throws IOException {
+        Map<String, Double> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(file.toPath())) {
+            int comma = line.lastIndexOf(',');
+            if (comma > 0) baseline.put(line.substring(0, comma), Double.parseDouble(line.substring(comma + 1)));
+        }
+        return baseline;
+    }
+
+    /**
+     * Genera il database in una cartella temporanea ed esegue i benchmark in una JVM avviata in quella cartella,
+     * raccogliendo i risultati che stampa
+     */
+    private static void runFork(int hotels, int reviews, int threads, int seconds, Map<String, Double> results,
+                                Map<String, Double> baseline) throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("hotelier-bench").toFile();
+        generate(dir, hotels, reviews);
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", absoluteClassPath(), DatabaseBenchmark.class.getName(), FORK,
+                String.valueOf(hotels), String.valueOf(reviews), String.valueOf(threads), String.valueOf(seconds))
+                .directory(dir)
+                .redirectErrorStream(true)
+                .start();
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.startsWith(RESULT)) continue;
+                String[] fields = line.split("\t");
+                String name = "hotel=" + hotels + " recensioni=" + reviews + " " + fields[1];
+                double nsPerOp = Double.parseDouble(fields[2]);
+                results.put(name, nsPerOp);
+
+                String compare = "";
+                Double base = baseline == null ? null : baseline.get(name);
+                if (base != null) compare = String.format("  (baseline %.1f ns/op, %+.1f%%)", base, (nsPerOp - base) * 100 / base);
+                System.out.printf("%-48s %14.1f ns/op %12.1f op/s%s%n", fields[1], nsPerOp, 1e9 / nsPerOp * Integer.parseInt(fields[3]), compare);
+            }
+        }
+        if (process.waitFor() != 0) System.out.println("--- La JVM dei benchmark è terminata con errore ---");
+        deleteRecursively(dir);
+    }
+
+    /**
+     * Il classpath con percorsi assoluti, perché la JVM dei benchmark parte in un'altra cartella
+     */
+    private static String absoluteClassPath() {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (sb.length() > 0) sb.append(File.pathSeparator);
+            sb.append(new File(entry).getAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File c : children) deleteRecursively(c);
+        if (!file.delete()) file.deleteOnExit();
+    }
+
+    private static String city(int i) {
+        return "Citta" + i;
+    }
+
+    private static String hotelName(int id) {
+        return "Hotel " + id;
+    }
+
+    /**
+     * Scrive application.properties, Hotels.json, Users.json e Reviews.json con i dati richiesti
+     */
+    private static void generate(File dir, int hotels, int reviews) throws IOException {
+        File db = new File(dir, "database");
+        if (!db.mkdirs()) throw new IOException("Impossibile creare " + db);
+
+        try (PrintWriter out = new PrintWriter(new FileWriter(new File(dir, "application.properties")))) {
+            out.println("database.url = database/");
+            // i salvataggi e gli aggiornamenti periodici non devono disturbare le misure
+            out.println("database.updatePeriod = 3600");
+            out.println("application.ratingUpdatePeriod = 3600");
+            out.println("multicast.group = 224.0.0.1");
+            out.println("multicast.port = " + (20000 + ThreadLocalRandom.current().nextInt(20000)));
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int cities = Math.max(1, hotels / HOTELS_PER_CITY);
+        try (JsonWriter w = new JsonWriter(new FileWriter(new File(db, "Hotels.json")))) {
+            w.beginArray();
+            for (int id = 1; id <= hotels; id++) {
+                w.beginObject();
+                w.name("id").value(id);
+                w.name("name").value(hotelName(id));
+                w.name("description").value("Hotel di prova numero " + id);
+                w.name("city").value(city(id % cities));
+                w.name("phone").value("000-" + id);
+                w.name("services").beginArray();
+                for (String s : SERVICES) if (random.nextBoolean()) w.value(s);
+                w.endArray();
+                w.name("rate").value(0.0);
+                w.name("ratings").beginObject().name("cleaning").value(0.0).name("position").value(0.0)
+                        .name("services").value(0.0).name("quality").value(0.0).endObject();
+                w.name("rank").value(0);
+                w.endObject();
+            }
+            w.endArray();
+        }
+
+        int users = Math.max(100, reviews / REVIEWS_PER_USER);
+        try (JsonWriter w = new JsonWriter(new FileWriter(new File(db, "Users.json")))) {
+            w.beginArray();
+            for (int i = 0; i < users; i++) {
+                w.beginObject();
+                w.name("username").value("utente" + i);
+                w.name("password").value(PasswordUtils.hashPassword("password" + i));
+                w.name("numRecensioni").value(0);
+                w.endObject();
+            }
+            w.endArray();
+        }
+
+        long now = System.currentTimeMillis();
+        try (JsonWriter w = new JsonWriter(new FileWriter(new File(db, "Reviews.json")))) {
+            w.beginArray();
+            for (int i = 0; i < reviews; i++) {
+                w.beginObject();
+                w.name("username").value("utente" + random.nextInt(users));
+                w.name("hotelID").value(1 + random.nextInt(hotels));
+                w.name("rating").value(random.nextInt(6));
+                w.name("ratings").beginObject().name("cleaning").value(random.nextInt(6)).name("position").value(random.nextInt(6))
+                        .name("services").value(random.nextInt(6)).name("quality").value(random.nextInt(6)).endObject();
+                w.name("timestamp").value(now - random.nextLong(90L * 86400000L));
+                w.endObject();
+            }
+            w.endArray();
+        }
+    }
+
+    // --- JVM dei benchmark ---
+
+    private static void fork(int hotels, int reviews, int threads, int seconds) throws Exception {
+        DatabaseManager db = DatabaseManager.getInstance();
+        ServerManager server = ServerManager.getInstance();
+        int cities = Math.max(1, hotels / HOTELS_PER_CITY);
+        int users = Math.max(100, reviews / REVIEWS_PER_USER);
+
+        Method persistData = DatabaseManager.class.getDeclaredMethod("persistData");
+        persistData.setAccessible(true);
+        AtomicBoolean[] modifiedFlags = new AtomicBoolean[3];
+        String[] flagNames = {"isUserListModified", "isHotelListModified", "isRatingsListModified"};
+        for (int i = 0; i < flagNames.length; i++) {
+            Field f = DatabaseManager.class.getDeclaredField(flagNames[i]);
+            f.setAccessible(true);
+            modifiedFlags[i] = (AtomicBoolean) f.get(db);
+        }
+
+        byte[][] hashes = new byte[1024][];
+        for (int i = 0; i < hashes.length; i++) hashes[i] = PasswordUtils.hashPasswordBytes("password" + i);
+
+        Ratings ratings = new Ratings(4.0, 3.5, 3.0, 4.5);
+
+        // ogni thread inserisce recensioni di utenti diversi, come farebbero sessioni diverse
+        Operation insertRandom = random -> {
+            User u = db.getUserById(random.nextInt(users));
+            int id = 1 + random.nextInt(hotels);
+            server.insertReview(u, hotelName(id), city(id % cities), random.nextInt(6), ratings);
+        };
+        // tutti i thread recensiscono lo stesso hotel, quindi lo stesso shard
+        Operation insertHot = random -> {
+            User u = db.getUserById(random.nextInt(users));
+            server.insertReview(u, hotelName(1), city(1 % cities), random.nextInt(6), ratings);
+        };
+        Operation byNameAndCity = random -> {
+            int id = 1 + random.nextInt(hotels);
+            sink = db.getHotelByNameAndCity(hotelName(id), city(id % cities));
+        };
+        Operation byCity = random -> sink = db.getHotelsByCity(city(random.nextInt(cities)));
+        Operation rankings = random -> sink = db.updateLocalRankings();
+        Operation persist = random -> {
+            for (AtomicBoolean f : modifiedFlags) f.set(true);
+            persistData.invoke(db);
+        };
+        Operation checkPassword = random -> {
+            int i = random.nextInt(hashes.length);
+            if (!PasswordUtils.checkPassword("password" + i, hashes[i])) throw new AssertionError();
+        };
+
+        measure("getHotelByNameAndCity", 1, seconds, byNameAndCity, null);
+        measure("getHotelByNameAndCity", threads, seconds, byNameAndCity, null);
+        measure("getHotelsByCity", 1, seconds, byCity, null);
+        measure("getHotelsByCity", threads, seconds, byCity, null);
+        measure("checkPassword", 1, seconds, checkPassword, null);
+        measure("checkPassword", threads, seconds, checkPassword, null);
+        measure("insertReview", 1, seconds, insertRandom, null);
+        measure("insertReview", threads, seconds, insertRandom, null);
+        measure("insertReview (stesso hotel)", threads, seconds, insertHot, null);
+        measure("updateLocalRankings", 1, seconds, rankings, null);
+        measure("updateLocalRankings (+inserimenti)", 1, seconds, rankings, insertRandom);
+        measure("persistData", 1, seconds, persist, null);
+        measure("persistData (+inserimenti)", 1, seconds, persist, insertRandom);
+    }
+
+    /**
+     * Esegue l'operazione su 'threads' thread per un giro di riscaldamento e uno di misura, e stampa il tempo medio per
+     * operazione di ogni thread
+     * @param background se non null, viene eseguita in ciclo da altri 'threads' thread durante la misura, per misurare
+     *                   l'operazione in contesa con le scritture
+     */
+    private static void measure(String name, int threads, int seconds, Operation op, Operation background) throws InterruptedException {
+        String fullName = name + " [" + threads + "t]";
+        for (int round = 0; round < 2; round++) {
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicLong ops = new AtomicLong();
+            AtomicLong busyNanos = new AtomicLong();
+            List<Thread> workers = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(threads);
+
+            if (background != null) {
+                for (int t = 0; t < Math.max(1, Runtime.getRuntime().availableProcessors() - 1); t++) {
+                    workers.add(new Thread(() -> loop(background, stop, null, null, null)));
+                }
+            }
+            for (int t = 0; t < threads; t++) {
+                workers.add(new Thread(() -> loop(op, stop, ops, busyNanos, done)));
+            }
+            workers.forEach(Thread::start);
+            Thread.sleep(seconds * 1000L);
+            stop.set(true);
+            done.await();
+            for (Thread w : workers) w.join();
+
+            if (round == 1 && ops.get() > 0) {
+                // tempo medio di un'operazione visto da un thread; il throughput totale è threads / tempo
+                System.out.println(RESULT + fullName + "\t" + ((double) busyNanos.get() / ops.get()) + "\t" + threads);
+            }
+        }
+    }
+
+    private static void loop(Operation op, AtomicBoolean stop, AtomicLong ops, AtomicLong busyNanos, CountDownLatch done) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long n = 0;
+        long begin = System.nanoTime();
+        try {
+            while (!stop.get()) {
+                op.run(random);
+                n++;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (ops != null) {
+                busyNanos.addAndGet(System.nanoTime() - begin);
+                ops.addAndGet(n);
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package code.bench;
+
+import code.utils.PasswordUtils;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Generatore di database sintetici (Hotels.json, Users.json e Reviews.json) di dimensione configurabile, per
+ * misurare avvio, memoria e classifiche del server su dati di produzione. La generazione dipende solo dal seme e
+ * dall'istante di riferimento delle recensioni: con gli stessi parametri (compreso now) due esecuzioni producono gli
+ * stessi file, e cambiando solo now cambiano solo i timestamp delle recensioni.<br>
+ * I dati non sono uniformi:<br>
+ * - la dimensione delle città segue una legge di Zipf (poche città con molti hotel, molte città con pochi hotel), e
+ * ogni città ha almeno un hotel<br>
+ * - anche la popolarità degli hotel segue una legge di Zipf, su un ordine casuale degli hotel<br>
+ * - ogni hotel ha una qualità di fondo, e i voti delle sue recensioni le si distribuiscono intorno<br>
+ * - il numero di recensioni di un utente segue una distribuzione geometrica, e un utente recensisce ogni hotel al più
+ * una volta (una seconda recensione sostituirebbe la prima e i contatori non tornerebbero)<br>
+ * - l'età delle recensioni segue una distribuzione esponenziale (le recensioni recenti sono le più frequenti), e l'ora
+ * del giorno è concentrata nel pomeriggio e nella sera<br>
+ * Le recensioni vengono scritte man mano che vengono generate, insieme agli utenti, e Hotels.json viene scritto per
+ * ultimo con le medie dei voti già calcolate, come le salverebbe il server. In memoria restano solo pochi array
+ * grandi quanto il numero di hotel.<br><br>
+ *
+ * Uso: java -cp lib/gson-2.10.1.jar:out:out-bench code.bench.DatasetGenerator [chiave=valore ...]<br>
+ * - out: cartella in cui scrivere i file, da usare come database.url (database-gen/)<br>
+ * - hotels (500000), cities (8000), reviews (50000000)<br>
+ * - reviewsPerUser: numero medio di recensioni per utente, da cui dipende il numero di utenti (20)<br>
+ * - citySkew, hotelSkew: esponenti delle leggi di Zipf, 0 per una distribuzione uniforme (1.0 e 0.8)<br>
+ * - days: età massima delle recensioni in giorni (730); meanAge: età media in giorni (120)<br>
+ * - now: istante (in millisecondi) a cui si riferiscono le età delle recensioni (l'istante attuale)<br>
+ * - seed (1), pretty: file indentati come quelli salvati dal server (false)<br>
+ * La password dell'utente "utenteN" è "passwordN".
+ */
+public class DatasetGenerator {
+    private static final long DAY_MILLIS = 86400000L;
+    private static final long HOUR_MILLIS = 3600000L;
+    private static final String[] SERVICES = {"Wi-Fi", "Palestra", "TV in camera", "Cancellazione gratuita", "Piscina", "Parcheggio"};
+    private static final String[] STREETS = {"Via Roma", "Via Garibaldi", "Corso Italia", "Via Dante", "Piazza del Duomo", "Via Mazzini"};
+    // peso delle recensioni scritte in ogni ora del giorno
+    private static final int[] HOUR_WEIGHTS = {2, 1, 1, 1, 1, 1, 2, 3, 4, 5, 5, 6, 7, 7, 6, 6, 7, 8, 9, 10, 10, 9, 6, 4};
+    // categorie nell'ordine di Reviews.json: rating, cleaning, position, services, quality
+    private static final int CATEGORIES = 5;
+
+    private final File out;
+    private final int numHotels;
+    private final int numCities;
+    private final long numReviews;
+    private final double reviewsPerUser;
+    private final double citySkew;
+    private final double hotelSkew;
+    private final int maxAgeDays;
+    private final double meanAgeDays;
+    private final long now;
+    private final boolean pretty;
+    private final Random random;
+
+    // per ogni hotel (indice = id - 1): città, qualità di fondo, numero di recensioni e somme dei voti in centesimi
+    private int[] hotelCity;
+    private float[] hotelQuality;
+    private int[] reviewCount;
+    private long[] scoreSums;
+
+    /**
+     * Distribuzione di Zipf su n elementi: l'elemento di posizione k (da 0) ha peso 1 / (k + 1)^s. Il campionamento è
+     * una ricerca binaria sulla distribuzione cumulativa
+     */
+    private static final class Zipf {
+        private final double[] cumulative;
+
+        private Zipf(int n, double s) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += Math.pow(k + 1, -s);
+                cumulative[k] = sum;
+            }
+        }
+
+        private int next(Random random) {
+            double u = random.nextDouble() * cumulative[cumulative.length - 1];
+            int i = Arrays.binarySearch(cumulative, u);
+            return i >= 0 ? i : Math.min(-i - 1, cumulative.length - 1);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Argomento non valido (atteso chiave=valore): " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new DatasetGenerator(options).run();
+    }
+
+    private DatasetGenerator(Map<String, String> options) {
+        out = new File(options.getOrDefault("out", "database-gen/"));
+        numHotels = Integer.parseInt(options.getOrDefault("hotels", "500000"));
+        numCities = Math.min(numHotels, Integer.parseInt(options.getOrDefault("cities", "8000")));
+        numReviews = Long.parseLong(options.getOrDefault("reviews", "50000000"));
+        reviewsPerUser = Double.parseDouble(options.getOrDefault("reviewsPerUser", "20"));
+        citySkew = Double.parseDouble(options.getOrDefault("citySkew", "1.0"));
+        hotelSkew = Double.parseDouble(options.getOrDefault("hotelSkew", "0.8"));
+        maxAgeDays = Integer.parseInt(options.getOrDefault("days", "730"));
+        meanAgeDays = Double.parseDouble(options.getOrDefault("meanAge", "120"));
+        now = Long.parseLong(options.getOrDefault("now", String.valueOf(System.currentTimeMillis())));
+        pretty = Boolean.parseBoolean(options.getOrDefault("pretty", "false"));
+        random = new Random(Long.parseLong(options.getOrDefault("seed", "1")));
+
+        if (numHotels <= 0 || numCities <= 0) throw new IllegalArgumentException("Servono almeno un hotel e una città");
+        if (numReviews < 0) throw new IllegalArgumentException("Il numero di recensioni non può essere negativo");
+        if (reviewsPerUser < 1) throw new IllegalArgumentException("reviewsPerUser deve essere almeno 1");
+        if (maxAgeDays <= 0 || meanAgeDays <= 0) throw new IllegalArgumentException("days e meanAge devono essere positivi");
+    }
+
+    private void run() throws IOException {
+        if (!out.isDirectory() && !out.mkdirs()) throw new IOException("Impossibile creare " + out);
+        // Users.dat e l'archivio si riferiscono a un altro database: il server li userebbe al posto dei file generati
+        if (new File(out, "Users.dat").exists() || new File(out, "archive").exists()) {
+            throw new IOException("La cartella " + out + " contiene Users.dat o archive/ di un altro database");
+        }
+
+        long start = System.nanoTime();
+        assignCities();
+        long users = writeReviewsAndUsers();
+        writeHotels();
+
+        int[] citySizes = new int[numCities];
+        for (int c : hotelCity) citySizes[c]++;
+        int maxReviews = 0;
+        for (int n : reviewCount) maxReviews = Math.max(maxReviews, n);
+        System.out.printf("%d hotel in %d città (la più grande ne ha %d), %d utenti, %d recensioni (massimo %d per hotel) in %.1f s%n",
+                numHotels, numCities, Arrays.stream(citySizes).max().orElse(0), users, numReviews, maxReviews,
+                (System.nanoTime() - start) / 1e9);
+        System.out.println("File scritti in " + out.getAbsolutePath());
+    }
+
+    private JsonWriter newWriter(String name) throws IOException {
+        JsonWriter w = new JsonWriter(new BufferedWriter(new FileWriter(new File(out, name)), 1 << 16));
+        if (pretty) w.setIndent("  ");
+        return w;
+    }
+
+    private static String city(int i) {
+        return "Citta" + (i + 1);
+    }
+
+    /**
+     * Assegna ogni hotel a una città e gli dà una qualità di fondo. I primi hotel vanno uno per città, così nessuna
+     * città resta vuota, gli altri seguono la legge di Zipf
+     */
+    private void assignCities() {
+        hotelCity = new int[numHotels];
+        hotelQuality = new float[numHotels];
+        reviewCount = new int[numHotels];
+        scoreSums = new long[numHotels * CATEGORIES];
+
+        Zipf cities = new Zipf(numCities, citySkew);
+        for (int h = 0; h < numHotels; h++) {
+            hotelCity[h] = h < numCities ? h : cities.next(random);
+            hotelQuality[h] = (float) Math.max(0.5, Math.min(5, 3.5 + random.nextGaussian() * 0.7));
+        }
+    }
+
+    /**
+     * @return un ordine casuale degli hotel: l'hotel in posizione k è il k-esimo più popolare
+     */
+    private int[] popularityOrder() {
+        int[] order = new int[numHotels];
+        for (int i = 0; i < numHotels; i++) order[i] = i;
+        for (int i = numHotels - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        return order;
+    }
+
+    /**
+     * Genera gli utenti uno alla volta, ognuno con le sue recensioni, finché non si raggiunge il numero di recensioni
+     * richiesto
+     * @return il numero di utenti generati
+     */
+    private long writeReviewsAndUsers() throws IOException {
+        int[] order = popularityOrder();
+        Zipf popularity = new Zipf(numHotels, hotelSkew);
+        int[] hourCumulative = new int[HOUR_WEIGHTS.length];
+        for (int h = 0, sum = 0; h < HOUR_WEIGHTS.length; h++) hourCumulative[h] = sum += HOUR_WEIGHTS[h];
+
+        long today = Math.floorDiv(now, DAY_MILLIS) * DAY_MILLIS;
+        double continueProbability = 1 - 1 / reviewsPerUser;
+        int[] scores = new int[CATEGORIES];
+        HashSet<Integer> reviewed = new HashSet<>();
+
+        long users = 0;
+        long written = 0;
+        try (JsonWriter reviewsOut = newWriter("Reviews.json"); JsonWriter usersOut = newWriter("Users.json")) {
+            reviewsOut.beginArray();
+            usersOut.beginArray();
+            while (written < numReviews) {
+                String username = "utente" + users;
+
+                // numero di recensioni dell'utente: geometrica con media reviewsPerUser
+                int n = 1;
+                while (n < numHotels && random.nextDouble() < continueProbability) n++;
+                n = (int) Math.min(n, numReviews - written);
+
+                reviewed.clear();
+                while (reviewed.size() < n) {
+                    int h = order[popularity.next(random)];
+                    if (!reviewed.add(h)) continue;
+
+                    for (int c = 0; c < CATEGORIES; c++) {
+                        scores[c] = (int) Math.max(0, Math.min(5, Math.round(hotelQuality[h] + random.nextGaussian() * 0.8)));
+                    }
+                    reviewCount[h]++;
+                    for (int c = 0; c < CATEGORIES; c++) scoreSums[h * CATEGORIES + c] += scores[c] * 100L;
+
+                    reviewsOut.beginObject();
+                    reviewsOut.name("username").value(username);
+                    reviewsOut.name("hotelID").value(h + 1);
+                    reviewsOut.name("rating").value(scores[0]);
+                    reviewsOut.name("ratings").beginObject().name("cleaning").value(scores[1]).name("position").value(scores[2])
+                            .name("services").value(scores[3]).name("quality").value(scores[4]).endObject();
+                    reviewsOut.name("timestamp").value(timestamp(today, hourCumulative));
+                    reviewsOut.endObject();
+                }
+                written += n;
+
+                usersOut.beginObject();
+                usersOut.name("username").value(username);
+                usersOut.name("password").value(PasswordUtils.hashPassword("password" + users));
+                usersOut.name("numRecensioni").value(n);
+                usersOut.endObject();
+                users++;
+
+                if (users % 100000 == 0) System.out.printf("%d recensioni scritte%n", written);
+            }
+            reviewsOut.endArray();
+            usersOut.endArray();
+        }
+        return users;
+    }
+
+    /**
+     * Età in giorni esponenziale con media meanAge (ripetuta se supera days), ora del giorno secondo HOUR_WEIGHTS
+     */
+    private long timestamp(long today, int[] hourCumulative) {
+        long age;
+        do {
+            age = (long) (-meanAgeDays * Math.log(1 - random.nextDouble()));
+        } while (age >= maxAgeDays);
+
+        int pick = random.nextInt(hourCumulative[hourCumulative.length - 1]);
+        int hour = 0;
+        while (hourCumulative[hour] <= pick) hour++;
+
+        long ts = today - age * DAY_MILLIS + hour * HOUR_MILLIS + (long) (random.nextDouble() * HOUR_MILLIS);
+        // le recensioni di oggi non possono essere nel futuro. Il numero casuale viene estratto comunque, così le
+        // estrazioni successive non dipendono da now
+        double sinceMidnight = random.nextDouble();
+        return ts <= now ? ts : now - (long) (sinceMidnight * (now - today));
+    }
+
+    private static double average(long sumHundredths, int count) {
+        return Math.round((double) sumHundredths / count) / 100.0;
+    }
+
+    private void writeHotels() throws IOException {
+        int[] numberInCity = new int[numCities];
+        try (JsonWriter w = newWriter("Hotels.json")) {
+            w.beginArray();
+            for (int h = 0; h < numHotels; h++) {
+                int c = hotelCity[h];
+                int n = ++numberInCity[c];
+                w.beginObject();
+                w.name("id").value(h + 1);
+                w.name("name").value("Hotel " + city(c) + " " + n);
+                w.name("description").value("Un hotel a " + city(c) + ", in " + STREETS[random.nextInt(STREETS.length)]
+                        + ", " + (1 + random.nextInt(200)));
+                w.name("city").value(city(c));
+                w.name("phone").value(String.format("%03d-%07d", 300 + random.nextInt(100), random.nextInt(10000000)));
+                w.name("services").beginArray();
+                for (String s : SERVICES) if (random.nextBoolean()) w.value(s);
+                w.endArray();
+
+                int count = reviewCount[h];
+                boolean hasAverages = count > 0;
+                int base = h * CATEGORIES;
+                w.name("rate").value(hasAverages ? average(scoreSums[base], count) : 0.0);
+                w.name("ratings").beginObject()
+                        .name("cleaning").value(hasAverages ? average(scoreSums[base + 1], count) : 0.0)
+                        .name("position").value(hasAverages ? average(scoreSums[base + 2], count) : 0.0)
+                        .name("services").value(hasAverages ? average(scoreSums[base + 3], count) : 0.0)
+                        .name("quality").value(hasAverages ? average(scoreSums[base + 4], count) : 0.0)
+                        .endObject();
+                // i rank vengono calcolati dal server al primo aggiornamento delle classifiche
+                w.name("rank").value(0);
+                w.endObject();
+            }
+            w.endArray();
+        }
+    }
+}
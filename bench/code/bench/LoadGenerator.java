@@ -0,0 +1,448 @@
+package code.bench;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Generatore di carico a ciclo chiuso per un server HOTELIER locale. Apre molte connessioni, ognuna con il suo utente
+ * (registrato e loggato all'avvio), e su ognuna invia comandi scelti a caso secondo un mix configurabile tra register,
+ * login, searchHotel, searchAllHotels, insertReview e showMyBadges, attendendo la risposta prima del comando
+ * successivo. Nel frattempo ascolta il gruppo multicast restituito dal login e conta le notifiche delle classifiche.<br>
+ * Alla fine stampa per ogni comando throughput, errori e latenze (p50, p99, p99.9, massimo).<br><br>
+ *
+ * Correzione della coordinated omission: con rate &gt; 0 ogni connessione ha un calendario di invii (uno ogni 1/rate
+ * secondi) e la latenza viene misurata dall'istante in cui il comando sarebbe dovuto partire, non da quando è partito
+ * davvero. Così un server che si blocca viene penalizzato anche per i comandi che i client non hanno potuto inviare
+ * mentre aspettavano. Con rate = 0 ogni connessione invia il comando successivo appena riceve la risposta.<br><br>
+ *
+ * Uso: java -cp lib/gson-2.10.1.jar:out-bench code.bench.LoadGenerator [chiave=valore ...]<br>
+ * - host (localhost), port (800), connections (100), duration (30 secondi), warmup (5 secondi)<br>
+ * - rate: comandi al secondo per connessione, 0 per ciclo chiuso senza pause (default 10)<br>
+ * - mix: pesi dei comandi, ad esempio searchHotel:40,searchAllHotels:30,insertReview:15,showMyBadges:5,login:5,register:5<br>
+ * - hotels: file Hotels.json da cui prendere nomi e città degli hotel (database/Hotels.json)
+ */
+public class LoadGenerator {
+    private static final String[] COMMANDS = {"register", "login", "searchHotel", "searchAllHotels", "insertReview", "showMyBadges"};
+    private static final String DEFAULT_MIX = "register:5,login:5,searchHotel:40,searchAllHotels:30,insertReview:15,showMyBadges:5";
+    private static final String PASSWORD = "load-password";
+
+    /**
+     * Istogramma delle latenze in microsecondi: valori esatti fino a {@value #SUB_BUCKETS}, poi con una precisione
+     * relativa di circa l'1.5% (64 fasce per ogni potenza di 2). Non è thread-safe: ogni connessione ha i suoi
+     * istogrammi, che vengono sommati alla fine
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 7;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int HALF = SUB_BUCKETS / 2;
+        private final long[] counts = new long[SUB_BUCKETS + 64 * HALF];
+        private long total;
+        private long max;
+
+        private static int index(long v) {
+            if (v < SUB_BUCKETS) return (int) Math.max(0, v);
+            int shift = 64 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return SUB_BUCKETS + (shift - 1) * HALF + (int) (v >>> shift) - HALF;
+        }
+
+        private static long valueOf(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int shift = (index - SUB_BUCKETS) / HALF + 1;
+            long sub = (index - SUB_BUCKETS) % HALF + HALF;
+            // metà della fascia, per non sottostimare sistematicamente
+            return (sub << shift) + (1L << (shift - 1));
+        }
+
+        void record(long micros) {
+            counts[index(micros)]++;
+            total++;
+            if (micros > max) max = micros;
+        }
+
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        long percentile(double p) {
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(p / 100.0 * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(valueOf(i), max);
+            }
+            return max;
+        }
+
+        long getTotal() {
+            return total;
+        }
+
+        long getMax() {
+            return max;
+        }
+    }
+
+    /**
+     * Risultati di una connessione, indicizzati come {@link #COMMANDS}
+     */
+    private static final class Stats {
+        private final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+        private final long[] errors = new long[COMMANDS.length];
+        private final TreeMap<String, Long> statusCodes = new TreeMap<>();
+
+        private Stats() {
+            for (int i = 0; i < COMMANDS.length; i++) latencies[i] = new LatencyHistogram();
+        }
+
+        private void add(Stats other) {
+            for (int i = 0; i < COMMANDS.length; i++) {
+                latencies[i].add(other.latencies[i]);
+                errors[i] += other.errors[i];
+            }
+            other.statusCodes.forEach((k, v) -> statusCodes.merge(k, v, Long::sum));
+        }
+    }
+
+    private static final class HotelRef {
+        private final String name;
+        private final String city;
+
+        private HotelRef(String name, String city) {
+            this.name = name;
+            this.city = city;
+        }
+    }
+
+    private final Gson gson = new Gson();
+    private final Map<String, String> options = new HashMap<>();
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final double rate;
+    private final int[] cumulativeWeights = new int[COMMANDS.length];
+    private final List<HotelRef> hotels = new ArrayList<>();
+    private final List<String> cities = new ArrayList<>();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    private final AtomicBoolean stop = new AtomicBoolean();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicBoolean multicastStarted = new AtomicBoolean();
+    private volatile long measureStart;
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(args).run();
+    }
+
+    private LoadGenerator(String[] args) throws IOException {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Argomento non valido (atteso chiave=valore): " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        host = options.getOrDefault("host", "localhost");
+        port = Integer.parseInt(options.getOrDefault("port", "800"));
+        connections = Integer.parseInt(options.getOrDefault("connections", "100"));
+        durationNanos = Long.parseLong(options.getOrDefault("duration", "30")) * 1_000_000_000L;
+        warmupNanos = Long.parseLong(options.getOrDefault("warmup", "5")) * 1_000_000_000L;
+        rate = Double.parseDouble(options.getOrDefault("rate", "10"));
+        if (connections <= 0 || durationNanos <= 0 || warmupNanos < 0 || !(rate >= 0)) {
+            throw new IllegalArgumentException("connections e duration devono essere positivi, warmup e rate non negativi");
+        }
+
+        Map<String, Integer> weights = new HashMap<>();
+        for (String entry : options.getOrDefault("mix", DEFAULT_MIX).split(",")) {
+            String[] kv = entry.split(":");
+            // un comando scritto male verrebbe ignorato in silenzio, cambiando il mix misurato
+            if (kv.length != 2 || !Arrays.asList(COMMANDS).contains(kv[0].trim())) {
+                throw new IllegalArgumentException("Voce del mix non valida (atteso comando:peso): " + entry);
+            }
+            int weight = Integer.parseInt(kv[1].trim());
+            if (weight < 0) throw new IllegalArgumentException("Peso negativo nel mix: " + entry);
+            weights.put(kv[0].trim(), weight);
+        }
+        int sum = 0;
+        for (int i = 0; i < COMMANDS.length; i++) {
+            sum += weights.getOrDefault(COMMANDS[i], 0);
+            cumulativeWeights[i] = sum;
+        }
+        if (sum == 0) throw new IllegalArgumentException("Il mix non contiene comandi");
+
+        loadHotels(new File(options.getOrDefault("hotels", "database/Hotels.json")));
+    }
+
+    private void loadHotels(File file) throws IOException {
+        try (Reader reader = new FileReader(file)) {
+            Set<String> seenCities = new LinkedHashSet<>();
+            for (JsonElement e : JsonParser.parseReader(reader).getAsJsonArray()) {
+                JsonObject h = e.getAsJsonObject();
+                hotels.add(new HotelRef(h.get("name").getAsString(), h.get("city").getAsString()));
+                seenCities.add(h.get("city").getAsString());
+            }
+            cities.addAll(seenCities);
+        }
+        if (hotels.isEmpty()) throw new IllegalArgumentException("Nessun hotel in " + file);
+    }
+
+    private void run() throws InterruptedException {
+        System.out.printf("connessioni=%d, durata=%ds (+%ds di riscaldamento), rate=%s cmd/s per connessione, %d hotel%n",
+                connections, durationNanos / 1_000_000_000L, warmupNanos / 1_000_000_000L,
+                rate > 0 ? String.valueOf(rate) : "illimitato", hotels.size());
+
+        List<Stats> results = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch ready = new CountDownLatch(connections);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        AtomicLong failedConnections = new AtomicLong();
+
+        for (int c = 0; c < connections; c++) {
+            final int id = c;
+            // stack piccolo: i thread sono tanti e fanno solo I/O
+            Thread t = new Thread(null, () -> {
+                Stats stats = new Stats();
+                try {
+                    connection(id, stats, ready, go);
+                    results.add(stats);
+                } catch (IOException | InterruptedException e) {
+                    failedConnections.incrementAndGet();
+                    ready.countDown();
+                }
+            }, "load-" + c, 256 * 1024);
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        measureStart = start + warmupNanos;
+        go.countDown();
+
+        Thread.sleep((warmupNanos + durationNanos) / 1_000_000L);
+        stop.set(true);
+        for (Thread t : workers) t.join(10_000);
+
+        Stats total = new Stats();
+        synchronized (results) {
+            for (Stats s : results) total.add(s);
+        }
+        report(total, failedConnections.get());
+    }
+
+    /**
+     * Ciclo di una connessione: registrazione e login del suo utente, poi comandi fino alla fine del test
+     */
+    private void connection(int id, Stats stats, CountDownLatch ready, CountDownLatch go) throws IOException, InterruptedException {
+        String username = "load-" + runId + "-" + id;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), 10_000);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(60_000);
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            send(out, in, "register", credentials(username));
+            String login = send(out, in, "login", credentials(username));
+            if (!login.startsWith("200")) throw new IOException("Login fallito per " + username + ": " + login);
+            startMulticastListener(login);
+
+            ready.countDown();
+            go.await();
+
+            long intervalNanos = rate > 0 ? (long) (1_000_000_000L / rate) : 0;
+            // le connessioni partono sfasate, così gli invii non arrivano tutti insieme
+            long intended = System.nanoTime() + (intervalNanos > 0 ? random.nextLong(intervalNanos) : 0);
+            long registered = 0;
+
+            while (!stop.get()) {
+                if (intervalNanos > 0) {
+                    long wait = intended - System.nanoTime();
+                    if (wait > 0) Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                }
+                long begin = intervalNanos > 0 ? intended : System.nanoTime();
+
+                int cmd = pickCommand(random);
+                String response;
+                switch (COMMANDS[cmd]) {
+                    case "register":
+                        response = send(out, in, "register", credentials(username + "-" + (registered++)));
+                        break;
+                    case "login":
+                        // un login sulla stessa sessione richiede prima il logout, che non viene misurato
+                        send(out, in, "logout", "{\"username\":\"" + username + "\"}");
+                        begin = intervalNanos > 0 ? intended : System.nanoTime();
+                        response = send(out, in, "login", credentials(username));
+                        break;
+                    case "searchHotel": {
+                        HotelRef h = hotels.get(random.nextInt(hotels.size()));
+                        JsonObject body = new JsonObject();
+                        body.addProperty("nomeHotel", h.name);
+                        body.addProperty("citta", h.city);
+                        response = send(out, in, "searchHotel", gson.toJson(body));
+                        break;
+                    }
+                    case "searchAllHotels": {
+                        JsonObject body = new JsonObject();
+                        body.addProperty("citta", cities.get(random.nextInt(cities.size())));
+                        response = send(out, in, "searchAllHotels", gson.toJson(body));
+                        break;
+                    }
+                    case "insertReview": {
+                        HotelRef h = hotels.get(random.nextInt(hotels.size()));
+                        JsonObject scores = new JsonObject();
+                        scores.addProperty("cleaning", random.nextInt(6));
+                        scores.addProperty("position", random.nextInt(6));
+                        scores.addProperty("services", random.nextInt(6));
+                        scores.addProperty("quality", random.nextInt(6));
+                        JsonObject body = new JsonObject();
+                        body.addProperty("nomeHotel", h.name);
+                        body.addProperty("citta", h.city);
+                        body.addProperty("globalScore", random.nextInt(6));
+                        body.add("singleScores", scores);
+                        response = send(out, in, "insertReview", gson.toJson(body));
+                        break;
+                    }
+                    default:
+                        response = send(out, in, "showMyBadges", null);
+                }
+                long end = System.nanoTime();
+
+                if (begin >= measureStart) {
+                    stats.latencies[cmd].record((end - begin) / 1000);
+                    String status = response.length() >= 3 ? response.substring(0, 3) : response;
+                    stats.statusCodes.merge(COMMANDS[cmd] + " " + status, 1L, Long::sum);
+                    // 409 su register è atteso solo per username già usati, che qui non capitano
+                    if (!response.startsWith("2")) stats.errors[cmd]++;
+                }
+                intended += intervalNanos;
+            }
+        } catch (SocketTimeoutException e) {
+            throw new IOException("Timeout della connessione " + id, e);
+        }
+    }
+
+    private String credentials(String username) {
+        JsonObject body = new JsonObject();
+        body.addProperty("username", username);
+        body.addProperty("password", PASSWORD);
+        return gson.toJson(body);
+    }
+
+    private int pickCommand(ThreadLocalRandom random) {
+        int r = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (r < cumulativeWeights[i]) return i;
+        }
+        return cumulativeWeights.length - 1;
+    }
+
+    /**
+     * Invia un comando con il suo corpo e legge la risposta fino alla linea vuota che la conclude
+     */
+    private static String send(Writer out, BufferedReader in, String command, String body) throws IOException {
+        out.write(command);
+        out.write('\n');
+        if (body != null) {
+            out.write(body);
+            out.write('\n');
+        }
+        out.write('\n');
+        out.flush();
+
+        StringBuilder response = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            if (response.length() > 0) response.append('\n');
+            response.append(line);
+        }
+        if (line == null) throw new EOFException("Connessione chiusa dal server");
+        return response.toString();
+    }
+
+    /**
+     * Alla prima risposta di login avvia il thread che si iscrive al gruppo multicast e conta le notifiche
+     */
+    private void startMulticastListener(String loginResponse) {
+        if (!multicastStarted.compareAndSet(false, true)) return;
+
+        JsonObject info = JsonParser.parseString(loginResponse.substring(loginResponse.indexOf('\n') + 1)).getAsJsonObject();
+        String group = info.get("group").getAsString();
+        int multicastPort = info.get("port").getAsInt();
+
+        Thread t = new Thread(() -> {
+            try (MulticastSocket socket = new MulticastSocket(multicastPort)) {
+                // null: interfaccia di default, come joinGroup(InetAddress) che è deprecato
+                socket.joinGroup(new InetSocketAddress(InetAddress.getByName(group), multicastPort), null);
+                socket.setSoTimeout(1000);
+                byte[] buffer = new byte[8192];
+                while (!stop.get()) {
+                    try {
+                        socket.receive(new DatagramPacket(buffer, buffer.length));
+                        notifications.incrementAndGet();
+                    } catch (SocketTimeoutException ignored) {
+                        // controllo se il test è finito
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("--- Impossibile ascoltare il gruppo multicast " + group + ":" + multicastPort + " ---");
+            }
+        }, "load-multicast");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void report(Stats total, long failedConnections) {
+        double seconds = durationNanos / 1e9;
+        System.out.println();
+        System.out.printf("%-16s %10s %10s %8s %10s %10s %10s %10s%n",
+                "comando", "comandi", "cmd/s", "errori", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+
+        long all = 0;
+        LatencyHistogram allLatencies = new LatencyHistogram();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            LatencyHistogram h = total.latencies[i];
+            if (h.getTotal() == 0) continue;
+            all += h.getTotal();
+            allLatencies.add(h);
+            printRow(COMMANDS[i], h, total.errors[i], seconds);
+        }
+        long errors = Arrays.stream(total.errors).sum();
+        printRow("totale", allLatencies, errors, seconds);
+        System.out.println();
+
+        StringJoiner codes = new StringJoiner(", ");
+        total.statusCodes.forEach((k, v) -> codes.add(k + "=" + v));
+        System.out.println("status: " + codes);
+        System.out.println("notifiche multicast ricevute: " + notifications.get());
+        if (failedConnections > 0) System.out.println("connessioni fallite: " + failedConnections);
+        if (all == 0) System.out.println("--- Nessun comando completato durante la misura ---");
+    }
+
+    private static void printRow(String name, LatencyHistogram h, long errors, double seconds) {
+        System.out.printf("%-16s %10d %10.1f %8d %10.2f %10.2f %10.2f %10.2f%n", name, h.getTotal(), h.getTotal() / seconds,
+                errors, h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0, h.getMax() / 1000.0);
+    }
+}
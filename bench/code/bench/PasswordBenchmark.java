@@ -0,0 +1,117 @@
+package code.bench;
+
+import code.utils.PasswordUtils;
+
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Benchmark del percorso delle credenziali: confronta l'implementazione originale di hashing (MessageDigest creato ad
+ * ogni chiamata, charset di piattaforma, esadecimale via StringBuilder, confronto con equals) con quella di
+ * {@link PasswordUtils}, simulando raffiche di register e login su più thread.<br>
+ * Per ogni scenario stampa la latenza media per operazione e i byte allocati per operazione (misurati con
+ * {@code com.sun.management.ThreadMXBean}).<br><br>
+ *
+ * Uso: java -cp out:out-bench code.bench.PasswordBenchmark [threads] [operazioniPerThread]
+ */
+public class PasswordBenchmark {
+
+    private interface Operation {
+        void run(int i);
+    }
+
+    // --- implementazione originale, mantenuta solo come riferimento per il confronto ---
+
+    private static String legacyHash(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hashBytes = digest.digest(password.getBytes());
+
+            StringBuilder hexString = new StringBuilder();
+            for (byte hashByte : hashBytes) {
+                String hex = Integer.toHexString(0xff & hashByte);
+                if (hex.length() == 1) hexString.append('0');
+                hexString.append(hex);
+            }
+            return hexString.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean legacyCheck(String password, String hash) {
+        return legacyHash(password).equals(hash);
+    }
+
+    // -------------------------------------------------------------------------------------
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int ops = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        String[] passwords = new String[1024];
+        String[] hexHashes = new String[passwords.length];
+        byte[][] binHashes = new byte[passwords.length][];
+        for (int i = 0; i < passwords.length; i++) {
+            passwords[i] = "password-utente-" + i;
+            hexHashes[i] = PasswordUtils.hashPassword(passwords[i]);
+            binHashes[i] = PasswordUtils.fromHex(hexHashes[i]);
+        }
+        int mask = passwords.length - 1;
+
+        System.out.println("threads=" + threads + ", operazioni per thread=" + ops);
+        // un primo giro serve solo a scaldare la JIT
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            run("register (originale)", threads, ops, print, i -> sink = legacyHash(passwords[i & mask]));
+            run("register (nuovo)", threads, ops, print, i -> sink = PasswordUtils.toHex(PasswordUtils.hashPasswordBytes(passwords[i & mask])));
+            run("login (originale)", threads, ops, print, i -> {
+                if (!legacyCheck(passwords[i & mask], hexHashes[i & mask])) throw new AssertionError();
+            });
+            run("login (nuovo)", threads, ops, print, i -> {
+                if (!PasswordUtils.checkPassword(passwords[i & mask], binHashes[i & mask])) throw new AssertionError();
+            });
+        }
+    }
+
+    private static void run(String name, int threads, int ops, boolean print, Operation op) throws InterruptedException {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        AtomicLong allocated = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long tid = Thread.currentThread().getId();
+                long before = mx.getThreadAllocatedBytes(tid);
+                for (int i = 0; i < ops; i++) op.run(i);
+                allocated.addAndGet(mx.getThreadAllocatedBytes(tid) - before);
+                done.countDown();
+            });
+            thread.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+
+        if (print) {
+            long total = (long) threads * ops;
+            System.out.printf("%-22s %10.1f ns/op (throughput) %10.1f op/ms %8d B/op%n",
+                    name, (double) elapsed / total, total / (elapsed / 1_000_000.0), allocated.get() / total);
+        }
+    }
+}
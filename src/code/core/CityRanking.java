@@ -0,0 +1,84 @@
+package code.core;
+
+import code.entities.Hotel;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Snapshot immutabile della classifica locale di una città. Ogni volta che l'ordine degli hotel cambia viene creato
+ * un nuovo snapshot con una nuova versione, che mantiene un riferimento ai {@value #RETAINED} snapshot precedenti:
+ * così un client che sta scorrendo la classifica a pagine continua a leggere lo stesso ordinamento anche se nel
+ * frattempo i rank vengono ricalcolati.<br>
+ * Gli hotel sono condivisi tra gli snapshot e il loro campo rank è sempre quello della classifica corrente, quindi
+ * ogni snapshot tiene anche il rank che aveva ogni hotel quando è stato creato (vedi {@link #ranksOf(List)}).
+ */
+public class CityRanking {
+    // numero di snapshot raggiungibili a partire da quello corrente (compreso)
+    static final int RETAINED = 4;
+
+    private final long version;
+    private final List<Hotel> hotels;
+    // ranks[i] è il rank di hotels.get(i) in questo snapshot
+    private final int[] ranks;
+    private volatile CityRanking previous;
+
+    /**
+     * @param version versione dello snapshot, crescente
+     * @param hotels gli hotel della città ordinati per rank (la lista non deve più essere modificata)
+     * @param ranks il rank di ogni hotel, nello stesso ordine (l'array non deve più essere modificato)
+     * @param previous lo snapshot sostituito da questo, oppure null
+     */
+    CityRanking(long version, List<Hotel> hotels, int[] ranks, CityRanking previous) {
+        this.version = version;
+        this.hotels = Collections.unmodifiableList(hotels);
+        this.ranks = ranks;
+        this.previous = previous;
+
+        // taglio la catena dopo RETAINED snapshot, così quelli più vecchi possono essere liberati
+        CityRanking last = this;
+        for (int i = 1; i < RETAINED && last.previous != null; i++) last = last.previous;
+        last.previous = null;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Hotel> getHotels() {
+        return hotels;
+    }
+
+    /**
+     * @return il rank dell'hotel in posizione index
+     */
+    int getRank(int index) {
+        return ranks[index];
+    }
+
+    /**
+     * @param page hotel di questo snapshot nello stesso ordine, ad esempio restituiti da
+     * {@link DatabaseManager#page(List, code.entities.HotelFilter, int, int)}
+     * @return il rank di ogni hotel della pagina in questo snapshot
+     */
+    public int[] ranksOf(List<Hotel> page) {
+        int[] result = new int[page.size()];
+        int j = 0;
+        for (int i = 0; i < hotels.size() && j < result.length; i++) {
+            if (hotels.get(i) == page.get(j)) result[j++] = ranks[i];
+        }
+        return result;
+    }
+
+    /**
+     * @return lo snapshot con la versione richiesta se è ancora disponibile, altrimenti null
+     */
+    public CityRanking find(long version) {
+        for (CityRanking r = this; r != null; r = r.previous) {
+            if (r.version == version) return r;
+        }
+        return null;
+    }
+}
@@ -1,22 +1,41 @@
 package code.core;
 
+import code.entities.CompactReview;
 import code.entities.Hotel;
+import code.entities.HotelFilter;
+import code.entities.HotelPage;
 import code.entities.Ratings;
+import code.entities.ReviewRequest;
 import code.entities.User;
 import code.exceptions.IncorrectPasswordException;
 import code.exceptions.UserAlreadyLoggedException;
 import code.exceptions.UserNotFoundException;
 import code.exceptions.UsernameConflictException;
+import code.enums.Compression;
+import code.enums.LogLevel;
 import code.utils.AppConfig;
+import code.utils.Log;
+import code.utils.ResponseCompressor;
+import code.utils.ServiceDictionary;
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
 import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 
 /**
  * @author Andrea Filippi
@@ -27,17 +46,95 @@ import java.util.Scanner;
  *
  */
 public class ConnectionHandler implements Runnable{
+    // numero di hotel per pagina di searchAllHotels quando il client invia un cursore senza "limit"
+    private static final int DEFAULT_PAGE_SIZE = 10;
+    // numero massimo di hotel restituiti da searchHotels quando il client non invia "limit"
+    private static final int DEFAULT_SEARCH_LIMIT = 20;
+    // numero di hotel restituiti da showLeaderboard quando il client non invia "limit"
+    private static final int DEFAULT_LEADERBOARD_SIZE = 10;
+    // finestre (in giorni) restituite da showHotelStats
+    private static final int[] STATS_WINDOWS = {7, 30, HotelDailyStats.DAYS};
+
+    // fine di ogni risposta codificata da encode(): la fine dell'ultima riga e la linea vuota
+    private static final byte[] TERMINATOR = ("\n" + System.lineSeparator()).getBytes(Charset.defaultCharset());
+    // comandi riconosciuti, per non creare una metrica per ogni comando sconosciuto rifiutato
+    private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList("register", "login", "logout",
+            "searchHotel", "searchAllHotels", "searchHotels", "showLeaderboard", "insertReview", "insertReviews",
+            "myReviews", "showHotelStats", "showMyBadges", "stats", "compression"));
+
     private final Socket socket;
+    // indirizzo IP del client, per il limite di richieste
+    private final String address;
     private final DatabaseManager databaseManager;
     private final ServerManager serverManager;
     private final Gson gson;
+    private final ResponseCache responseCache;
+    private final ServerMetrics metrics;
+    // stadi di esecuzione dei comandi e di scrittura delle risposte di questa connessione
+    private final Executor executor;
+    private final Executor writer;
+    // richieste lette ma non ancora risposte
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    // diventa true se una scrittura fallisce: le risposte successive vengono scartate
+    private volatile boolean broken = false;
+    // usati solo dallo stadio di esecuzione, un comando alla volta
     private User curUser;
+    private Compression compression = Compression.NONE;
+    // usato solo dallo stadio di scrittura; creato alla prima risposta da comprimere
+    private ResponseCompressor compressor;
+    private final int compressionMinBytes;
+    private final int compressionLevel;
+    // numero massimo di recensioni in un insertReviews
+    private final int maxReviewBatch;
+
+    /**
+     * Una richiesta letta dalla connessione, che passa dallo stadio di esecuzione a quello di scrittura
+     */
+    private static final class Request {
+        private String command;
+        private final String body;
+        // byte ricevuti per la richiesta, comando, corpo e terminatori compresi
+        private final int bytes;
+        // istante in cui è stato letto il comando
+        private final long start;
+        private final FlightEvents.CommandEvent event;
+        // risposta da codificare, oppure già codificata (ad esempio presa dalla cache delle risposte)
+        private String response;
+        private byte[] encoded;
+        // utente loggato e compressione richiesta dopo l'esecuzione del comando
+        private String user;
+        private Compression compression;
+
+        private Request(String command, String body, int bytes, long start, FlightEvents.CommandEvent event) {
+            this.command = command;
+            this.body = body;
+            this.bytes = bytes;
+            this.start = start;
+            this.event = event;
+        }
+    }
 
-    public ConnectionHandler(Socket socket) {
+    /**
+     * @param socket il socket della connessione
+     * @param execute stadio che esegue i comandi, oppure null per eseguirli sul thread della connessione
+     * @param write stadio che scrive le risposte, oppure null per scriverle sul thread della connessione
+     */
+    public ConnectionHandler(Socket socket, Stage execute, Stage write) {
         this.socket = socket;
+        this.address = socket.getInetAddress().getHostAddress();
         this.curUser = null;
+        this.executor = execute != null ? execute.serial() : Runnable::run;
+        this.writer = write != null ? write.serial() : Runnable::run;
+        this.maxInFlight = Math.max(1, AppConfig.getMaxInFlight());
+        this.inFlight = new Semaphore(maxInFlight);
+        this.compressionMinBytes = AppConfig.getCompressionMinBytes();
+        this.compressionLevel = AppConfig.getCompressionLevel();
+        this.maxReviewBatch = AppConfig.getMaxReviewBatch();
         this.databaseManager = DatabaseManager.getInstance();
         this.serverManager = ServerManager.getInstance();
+        this.responseCache = databaseManager.getResponseCache();
+        this.metrics = ServerMetrics.getInstance();
         this.gson = new GsonBuilder().setPrettyPrinting().create();
     }
 
@@ -76,7 +173,7 @@ public class ConnectionHandler implements Runnable{
             return "201 CREATED";
         } catch (UsernameConflictException e) {
             return "409 CONFLICT";
-        } catch (NullPointerException e) {
+        } catch (NullPointerException | IllegalArgumentException e) {
             return "400 BAD REQUEST";
         }
     }
@@ -87,7 +184,8 @@ public class ConnectionHandler implements Runnable{
      * {
      *  "username":"",<br>
      *  "password":"",<br>
-     * }<br><br>
+     * }<br>
+     * Può contenere anche "compression" per richiedere la compressione delle risposte (vedi {@link #compression(String)})<br><br>
      *
      * @param bodyString il corpo della richiesta che conterrà l'oggetto json
      * @return - "200 OK" se il login è effettuato con successo. Viene inviato anche un oggetto json contenente il
@@ -112,16 +210,22 @@ public class ConnectionHandler implements Runnable{
 
         String username;
         String password;
+        Compression requested = null;
         try {
             username = body.get("username").getAsString();
             password = body.get("password").getAsString();
-        } catch (NullPointerException e) {
+            if (body.has("compression")) {
+                requested = Compression.fromNome(body.get("compression").getAsString());
+                if (requested == null) return "400 BAD REQUEST";
+            }
+        } catch (NullPointerException | ClassCastException | IllegalStateException | UnsupportedOperationException e) {
             return "400 BAD REQUEST";
         }
 
         try {
             // effettuo il login sul server e se ha successo salvo l'utente loggato sulla connessione in this.curUser
             curUser = serverManager.loginUser(username, password);
+            if (requested != null) compression = requested;
 
             // cro l'oggetto contenente le informazioni necessarie per iscriversi al gruppo multicast per il ranking
             JsonObject multicast = new JsonObject();
@@ -169,12 +273,12 @@ public class ConnectionHandler implements Runnable{
      *
      * @see Hotel
      */
-    private String searchHotel(String bodyString) {
+    private byte[] searchHotel(String bodyString) {
         JsonObject body;
         try {
             body = toJsonObject(bodyString);
         } catch (JsonSyntaxException e) {
-            return "400 BAD REQUEST";
+            return encode("400 BAD REQUEST");
         }
 
         String nomeHotel;
@@ -183,43 +287,188 @@ public class ConnectionHandler implements Runnable{
             nomeHotel = body.get("nomeHotel").getAsString();
             citta = body.get("citta").getAsString();
         } catch (NullPointerException e) {
-            return "400 BAD REQUEST";
+            return encode("400 BAD REQUEST");
         }
 
+        String key = ResponseCache.hotelKey(nomeHotel, citta);
+        byte[] cached = responseCache.get(key);
+        if (cached != null) return cached;
+        long stamp = responseCache.stamp(key);
+
         Hotel h = databaseManager.getHotelByNameAndCity(nomeHotel, citta);
-        if (h == null) return "404 NOT FOUND";
+        if (h == null) return encode("404 NOT FOUND");
 
-        return "200 OK\n" + gson.toJson(h);
+        byte[] response = encode("200 OK\n" + gson.toJson(h));
+        responseCache.put(key, response, stamp);
+        return response;
     }
 
     /**
      * Metodo che gestisce una richiesta delle informazioni riguardo gli hotel in una determinatà città. Il metodo si aspetta di ricevere una stringa
      * rappresentante un oggetto json formato così: {"citta":""}<br>
+     * Sono accettati anche dei filtri opzionali: {"citta":"", "servizi":["Wi-Fi"], "minRate":3.5,
+     * "minRatings":{"cleaning":3.0, "quality":4.0}}<br>
+     * Per ottenere solo una parte della classifica:<br>
+     * - "top": n restituisce la lista dei primi n hotel<br>
+     * - "limit": n restituisce una {@link HotelPage} con i primi n hotel; se la classifica continua, la pagina contiene
+     * "nextCursor", da inviare come "cursor" (insieme agli stessi filtri) per ottenere la pagina successiva. Le pagine
+     * successive vengono lette dalla stessa versione della classifica anche se nel frattempo i rank sono cambiati
      *
      * @param bodyString il corpo della richiesta che conterrà l'oggetto json
-     * @return - "200 OK" se ha trovato gli hotel. Conterrà nel corpo l'oggetto json rappresentante una lista di entità {@link Hotel}<br>
+     * @return - "200 OK" se ha trovato gli hotel. Conterrà nel corpo l'oggetto json rappresentante una lista di entità
+     * {@link Hotel}, oppure una {@link HotelPage} se è stato usato "limit" o "cursor"<br>
      * - "400 BAD REQUEST" se il corpo della richiesta è errato<br>
-     * - "404 NOT FOUND" se non viene trovato nessun hotel nella città passata
+     * - "404 NOT FOUND" se non viene trovato nessun hotel nella città passata<br>
+     * - "409 CONFLICT" se la versione della classifica indicata dal cursore non è più disponibile
      *
      * @see Hotel
      */
-    private String searchAllHotels(String bodyString) {
+    private byte[] searchAllHotels(String bodyString) {
         JsonObject body;
         try {
             body = toJsonObject(bodyString);
         } catch (JsonSyntaxException e) {
-            return "400 BAD REQUEST";
+            return encode("400 BAD REQUEST");
         }
 
         String citta;
         try {
             citta = body.get("citta").getAsString();
         } catch (NullPointerException e) {
+            return encode("400 BAD REQUEST");
+        }
+
+        // solo la classifica completa e senza filtri viene messa in cache
+        if (body.size() == 1) {
+            String key = ResponseCache.cityKey(citta);
+            byte[] cached = responseCache.get(key);
+            if (cached != null) return cached;
+            long stamp = responseCache.stamp(key);
+
+            CityRanking ranking = databaseManager.getCityRanking(citta);
+            if (ranking == null) return encode("404 NOT FOUND");
+
+            byte[] response = encode("200 OK\n" + gson.toJson(toJsonRanked(ranking.getHotels(), ranking)));
+            responseCache.put(key, response, stamp);
+            return response;
+        }
+
+        return encode(searchFilteredHotels(body, citta));
+    }
+
+    /**
+     * Gestisce searchAllHotels con filtri, "top", "limit" o "cursor" (vedi {@link #searchAllHotels(String)})
+     */
+    private String searchFilteredHotels(JsonObject body, String citta) {
+
+        HotelFilter filter;
+        try {
+            filter = toHotelFilter(body);
+        } catch (IllegalArgumentException e) {
+            // nessun hotel offre uno dei servizi richiesti
+            return "404 NOT FOUND";
+        }
+        if (filter == null) return "400 BAD REQUEST";
+
+        if (body.has("limit") || body.has("cursor")) return searchHotelsPage(body, citta, filter);
+
+        CityRanking ranking = databaseManager.getCityRanking(citta);
+        if (ranking == null) return "404 NOT FOUND";
+
+        List<Hotel> h;
+        if (body.has("top")) {
+            int top;
+            try {
+                top = body.get("top").getAsInt();
+            } catch (ClassCastException | IllegalStateException | UnsupportedOperationException | NumberFormatException e) {
+                return "400 BAD REQUEST";
+            }
+            if (top <= 0) return "400 BAD REQUEST";
+
+            h = DatabaseManager.page(ranking.getHotels(), filter, 0, top);
+            if (h.size() > top) h = h.subList(0, top);
+        } else {
+            h = DatabaseManager.filter(ranking.getHotels(), filter);
+        }
+        if (h.isEmpty()) return "404 NOT FOUND";
+
+        return "200 OK\n" + gson.toJson(toJsonRanked(h, ranking));
+    }
+
+    /**
+     * Converte in json gli hotel di uno snapshot della classifica, con il rank che hanno in quello snapshot: il campo
+     * rank dell'hotel è quello della classifica corrente, che potrebbe essere già cambiata
+     * @param h hotel dello snapshot, nello stesso ordine
+     */
+    private JsonArray toJsonRanked(List<Hotel> h, CityRanking ranking) {
+        Type typeHotel = new TypeToken<List<Hotel>>(){}.getType();
+        JsonArray array = gson.toJsonTree(h, typeHotel).getAsJsonArray();
+        int[] ranks = ranking.ranksOf(h);
+        for (int i = 0; i < ranks.length; i++) array.get(i).getAsJsonObject().addProperty("rank", ranks[i]);
+        return array;
+    }
+
+    /**
+     * Metodo che gestisce una ricerca testuale degli hotel. Il metodo si aspetta di ricevere una stringa rappresentante
+     * un oggetto json formato così: {"query":"roma pisc", "limit":10}<br>
+     * Vengono restituiti gli hotel che contengono tutte le parole della query (nel nome, nella descrizione, nella città
+     * o nei servizi), anche solo come inizio di parola. "limit" è opzionale (default {@value #DEFAULT_SEARCH_LIMIT})
+     *
+     * @param bodyString il corpo della richiesta che conterrà l'oggetto json
+     * @return - "200 OK" se ha trovato degli hotel. Conterrà nel corpo la lista di entità {@link Hotel} ordinata per rank<br>
+     * - "400 BAD REQUEST" se il corpo della richiesta è errato<br>
+     * - "404 NOT FOUND" se nessun hotel corrisponde alla ricerca
+     */
+    private String searchHotels(String bodyString) {
+        JsonObject body;
+        try {
+            body = toJsonObject(bodyString);
+        } catch (JsonSyntaxException e) {
             return "400 BAD REQUEST";
         }
 
-        List<Hotel> h = databaseManager.getHotelsByCity(citta);
-        if (h == null || h.isEmpty()) return "404 NOT FOUND";
+        String query;
+        int limit;
+        try {
+            query = body.get("query").getAsString();
+            limit = body.has("limit") ? body.get("limit").getAsInt() : DEFAULT_SEARCH_LIMIT;
+        } catch (NullPointerException | ClassCastException | IllegalStateException | UnsupportedOperationException
+                 | NumberFormatException e) {
+            return "400 BAD REQUEST";
+        }
+        if (limit <= 0) return "400 BAD REQUEST";
+
+        List<Hotel> h = databaseManager.searchHotels(query, limit);
+        if (h.isEmpty()) return "404 NOT FOUND";
+
+        Type typeHotel = new TypeToken<List<Hotel>>(){}.getType();
+
+        return "200 OK\n" + gson.toJson(h, typeHotel);
+    }
+
+    /**
+     * Metodo che restituisce i migliori hotel tra tutte le città. Il corpo è opzionale: {"limit":10}
+     * (default {@value #DEFAULT_LEADERBOARD_SIZE}). Vengono restituiti al più "application.leaderboardSize" hotel,
+     * quelli della classifica pubblicata (vedi {@link GlobalLeaderboard})
+     *
+     * @param bodyString il corpo della richiesta, eventualmente vuoto
+     * @return - "200 OK" con la lista di entità {@link Hotel} ordinata dalla prima posizione<br>
+     * - "400 BAD REQUEST" se il corpo della richiesta è errato<br>
+     * - "404 NOT FOUND" se nessun hotel ha ancora recensioni
+     */
+    private String showLeaderboard(String bodyString) {
+        int limit = DEFAULT_LEADERBOARD_SIZE;
+        try {
+            JsonObject body = toJsonObject(bodyString);
+            if (body != null && body.has("limit")) limit = body.get("limit").getAsInt();
+        } catch (JsonSyntaxException | ClassCastException | IllegalStateException | UnsupportedOperationException
+                 | NumberFormatException e) {
+            return "400 BAD REQUEST";
+        }
+        if (limit <= 0) return "400 BAD REQUEST";
+
+        List<Hotel> h = databaseManager.getGlobalTop(limit);
+        if (h.isEmpty()) return "404 NOT FOUND";
 
         Type typeHotel = new TypeToken<List<Hotel>>(){}.getType();
 
@@ -248,7 +497,8 @@ public class ConnectionHandler implements Runnable{
      * @return - "200 OK" se ha correttamente inserito la recensione<br>
      * - "400 BAD REQUEST" se il corpo della richiesta è errato<br>
      * - "401 UNAUTHORIZED" se l'utente non ha effettuato il login
-     * - "404 NOT FOUND" se l'hotel per il quale si vuole aggiungere una recensione non esiste
+     * - "404 NOT FOUND" se l'hotel per il quale si vuole aggiungere una recensione non esiste<br>
+     * - "500 INTERNAL SERVER ERROR" se non è stato possibile salvare la recensione
      *
      * @see Hotel
      */
@@ -263,25 +513,184 @@ public class ConnectionHandler implements Runnable{
             return "400 BAD REQUEST";
         }
 
+        ReviewRequest request = toReviewRequest(body);
+        if (request == null || !request.isValid()) return "400 BAD REQUEST";
+
+        try {
+            serverManager.insertReview(curUser, request.getNomeHotel(), request.getCitta(), request.getGlobalScore(), request.getSingleScores());
+            return "200 OK";
+        } catch (NullPointerException e) {
+            return "404 NOT FOUND";
+        } catch (IllegalArgumentException e) {
+            return "400 BAD REQUEST";
+        } catch (CompletionException e) {
+            Log.error("Errore durante il salvataggio della recensione", e.getCause());
+            return "500 INTERNAL SERVER ERROR";
+        }
+    }
+
+    /**
+     * Metodo che permette di gestire l'inserimento di più recensioni con un solo comando (ad esempio per importazioni
+     * massive da parte di sistemi partner). L'utente deve aver precedentemente effettuato il login sulla sessione.
+     * Il metodo si aspetta di ricevere una stringa rappresentante un oggetto json così formato:<br>
+     * {<br>
+     *     "reviews": [<br>
+     *       { "nomeHotel": "Hotel Genova 2", "citta": "Genova", "globalScore": 3.5, "singleScores": {...} },<br>
+     *       ...<br>
+     *     ]<br>
+     * }<br><br>
+     * dove ogni elemento ha lo stesso formato del corpo di insertReview
+     *
+     * @param bodyString il corpo della richiesta che conterrà l'oggetto json
+     * @return - "200 OK" se il batch è stato elaborato. Il corpo contiene un oggetto json {"results":[...]} con lo
+     * status code di ogni recensione, nello stesso ordine della richiesta (200, 400, 404 o 409)<br>
+     * - "400 BAD REQUEST" se il corpo della richiesta è errato o contiene più di "application.maxReviewBatch"
+     * recensioni<br>
+     * - "401 UNAUTHORIZED" se l'utente non ha effettuato il login<br>
+     * - "500 INTERNAL SERVER ERROR" se non è stato possibile salvare le recensioni (alcune potrebbero essere state
+     * salvate comunque)
+     *
+     * @see ServerManager#insertReviews(User, List)
+     */
+    private String insertReviews(String bodyString) {
+        // non ci sono utenti loggati sulla sessione
+        if (curUser == null) return "401 UNAUTHORIZED";
+
+        JsonArray items;
+        try {
+            items = toJsonObject(bodyString).getAsJsonArray("reviews");
+        } catch (JsonSyntaxException | NullPointerException | ClassCastException e) {
+            return "400 BAD REQUEST";
+        }
+        if (items == null || items.size() > maxReviewBatch) return "400 BAD REQUEST";
+
+        // un elemento malformato non invalida tutto il batch: viene passato come null e avrà status 400
+        List<ReviewRequest> requests = new ArrayList<>(items.size());
+        for (JsonElement item : items) {
+            requests.add(item.isJsonObject() ? toReviewRequest(item.getAsJsonObject()) : null);
+        }
+
+        int[] status;
+        try {
+            status = serverManager.insertReviews(curUser, requests);
+        } catch (CompletionException e) {
+            Log.error("Errore durante il salvataggio delle recensioni", e.getCause());
+            return "500 INTERNAL SERVER ERROR";
+        }
+
+        JsonArray results = new JsonArray(status.length);
+        for (int code : status) results.add(code);
+        JsonObject response = new JsonObject();
+        response.add("results", results);
+
+        return "200 OK\n" + gson.toJson(response);
+    }
+
+    /**
+     * Metodo che restituisce le recensioni dell'utente collegato, dalla più recente, a pagine. Il corpo è opzionale:
+     * {"limit":10, "cursor":"..."} (limit di default {@value #DEFAULT_PAGE_SIZE}). La risposta contiene il numero totale
+     * di recensioni dell'utente e, se ce ne sono altre, "nextCursor" da inviare per la pagina successiva. Il cursore
+     * indica l'ultima recensione restituita ("timestamp-idHotel"), quindi le pagine non cambiano se nel frattempo
+     * l'utente inserisce altre recensioni. Le recensioni archiviate (vedi {@link ReviewArchive}) non vengono
+     * restituite: "archived" indica quante sono
+     *
+     * @param bodyString il corpo della richiesta, eventualmente vuoto
+     * @return - "200 OK" con un oggetto json {"total":n, "archived":n, "reviews":[...], "nextCursor":"..."}<br>
+     * - "400 BAD REQUEST" se il corpo della richiesta è errato<br>
+     * - "401 UNAUTHORIZED" se l'utente non ha effettuato il login
+     */
+    private String myReviews(String bodyString) {
+        // non ci sono utenti loggati sulla sessione
+        if (curUser == null) return "401 UNAUTHORIZED";
+
+        int limit = DEFAULT_PAGE_SIZE;
+        long afterTimestamp = Long.MAX_VALUE;
+        int afterHotel = Integer.MIN_VALUE;
+        try {
+            JsonObject body = toJsonObject(bodyString);
+            if (body != null && body.has("limit")) limit = body.get("limit").getAsInt();
+            if (body != null && body.has("cursor")) {
+                String cursor = body.get("cursor").getAsString();
+                int sep = cursor.indexOf('-');
+                afterTimestamp = Long.parseLong(cursor.substring(0, sep));
+                afterHotel = Integer.parseInt(cursor.substring(sep + 1));
+            }
+        } catch (JsonSyntaxException | ClassCastException | IllegalStateException | UnsupportedOperationException
+                 | IndexOutOfBoundsException | NumberFormatException e) {
+            return "400 BAD REQUEST";
+        }
+        if (limit <= 0) return "400 BAD REQUEST";
+
+        // l'indice per utente parte direttamente dal cursore; una recensione in più dice se c'è un'altra pagina
+        List<CompactReview> userReviews = databaseManager.getUserReviews(curUser.getId(), afterTimestamp, afterHotel,
+                Math.min(limit, Integer.MAX_VALUE - 1) + 1);
+        boolean more = userReviews.size() > limit;
+        int end = more ? limit : userReviews.size();
+
+        JsonArray page = new JsonArray(end);
+        for (int i = 0; i < end; i++) {
+            page.add(gson.toJsonTree(userReviews.get(i).toUserReview(curUser.getUsername())));
+        }
+
+        JsonObject response = new JsonObject();
+        response.addProperty("total", databaseManager.getUserReviewCount(curUser.getId()));
+        response.addProperty("archived", databaseManager.getArchivedReviewCount(curUser.getId()));
+        response.add("reviews", page);
+        if (more) {
+            CompactReview last = userReviews.get(end - 1);
+            response.addProperty("nextCursor", last.getTimestamp() + "-" + last.getHotelId());
+        }
+
+        return "200 OK\n" + gson.toJson(response);
+    }
+
+    /**
+     * Metodo che restituisce le statistiche delle recensioni recenti di un hotel: per gli ultimi 7, 30 e 90 giorni
+     * numero di recensioni, medie e istogramma dei voti di ogni categoria. Le recensioni archiviate non sono contate,
+     * quindi con "database.archiveAfterDays" inferiore a 90 le finestre più lunghe coprono in pratica solo gli ultimi
+     * archiveAfterDays giorni. Il metodo si aspetta di ricevere una stringa rappresentante un oggetto json formato così:
+     * {"nomeHotel":"", "citta":""}
+     *
+     * @param bodyString il corpo della richiesta che conterrà l'oggetto json
+     * @return - "200 OK" con un oggetto json contenente le fasce degli istogrammi ("bins") e le statistiche di ogni
+     * finestra ("windows")<br>
+     * - "400 BAD REQUEST" se il corpo della richiesta è errato<br>
+     * - "404 NOT FOUND" se l'hotel non esiste
+     *
+     * @see HotelDailyStats
+     */
+    private String showHotelStats(String bodyString) {
+        JsonObject body;
         String nomeHotel;
         String citta;
-        Double globalScore;
-        Ratings singleScores;
         try {
+            body = toJsonObject(bodyString);
             nomeHotel = body.get("nomeHotel").getAsString();
             citta = body.get("citta").getAsString();
-            globalScore = body.get("globalScore").getAsDouble();
-            singleScores = gson.fromJson(body.get("singleScores"), Ratings.class);
-        } catch (NullPointerException | JsonSyntaxException e) {
+        } catch (JsonSyntaxException | NullPointerException | ClassCastException | IllegalStateException
+                 | UnsupportedOperationException e) {
             return "400 BAD REQUEST";
         }
 
-        try {
-            serverManager.insertReview(curUser, nomeHotel, citta, globalScore, singleScores);
-            return "200 OK";
-        } catch (NullPointerException e) {
-            return "404 NOT FOUND";
-        }
+        Hotel h = databaseManager.getHotelByNameAndCity(nomeHotel, citta);
+        if (h == null) return "404 NOT FOUND";
+
+        HotelDailyStats stats = databaseManager.getHotelDailyStats(h.getId());
+        if (stats == null) stats = new HotelDailyStats();
+
+        long now = System.currentTimeMillis();
+        JsonArray bins = new JsonArray(HotelDailyStats.BINS);
+        for (int b = 0; b < HotelDailyStats.BINS; b++) bins.add(b + "-" + (b + 1));
+        JsonArray windows = new JsonArray(STATS_WINDOWS.length);
+        for (int days : STATS_WINDOWS) windows.add(gson.toJsonTree(stats.window(days, now)));
+
+        JsonObject response = new JsonObject();
+        response.addProperty("nomeHotel", h.getName());
+        response.addProperty("citta", h.getCity());
+        response.add("bins", bins);
+        response.add("windows", windows);
+
+        return "200 OK\n" + gson.toJson(response);
     }
 
     /**
@@ -298,17 +707,67 @@ public class ConnectionHandler implements Runnable{
         return "200 OK\n{\"badge\":\"" + curUser.getBadge() + "\"}";
     }
 
+    /**
+     * Metodo che gestisce la richiesta di compressione delle risposte, da inviare appena aperta la connessione (oppure
+     * insieme al login). Il metodo si aspetta di ricevere una stringa rappresentante un oggetto json formato così:
+     * {"algorithm":"gzip"}, con "deflate" (formato zlib), "gzip" oppure "none" per tornare alle risposte in chiaro.<br>
+     * Dalla risposta successiva, i corpi lunghi almeno "compression.minBytes" byte vengono inviati compressi:<br>
+     * - la prima riga contiene lo status code come sempre<br>
+     * - la seconda riga è "compressed &lt;algoritmo&gt; &lt;n&gt;"<br>
+     * - seguono esattamente n byte con il corpo compresso, e poi la linea vuota che conclude ogni risposta<br>
+     * I corpi più corti continuano ad essere inviati in chiaro
+     *
+     * @param bodyString il corpo della richiesta che conterrà l'oggetto json
+     * @return - "200 OK" se la compressione è stata impostata<br>
+     * - "400 BAD REQUEST" se il corpo della richiesta è errato o l'algoritmo non è supportato
+     */
+    private String compression(String bodyString) {
+        Compression requested;
+        try {
+            requested = Compression.fromNome(toJsonObject(bodyString).get("algorithm").getAsString());
+        } catch (JsonSyntaxException | NullPointerException | ClassCastException | IllegalStateException
+                 | UnsupportedOperationException e) {
+            return "400 BAD REQUEST";
+        }
+        if (requested == null) return "400 BAD REQUEST";
+
+        compression = requested;
+        return "200 OK";
+    }
+
+    /**
+     * Metodo che gestisce una richiesta delle metriche del server (vedi {@link ServerMetrics}). È riservato agli
+     * amministratori: connessioni locali oppure utenti elencati nella proprietà admin.users
+     *
+     * @return - "200 OK" con le metriche in formato json<br>
+     * - "403 FORBIDDEN" se la richiesta non arriva da un amministratore
+     */
+    private String stats() {
+        boolean isAdmin = socket.getInetAddress().isLoopbackAddress()
+                || (curUser != null && AppConfig.getAdminUsers().contains(curUser.getUsername()));
+        if (!isAdmin) return "403 FORBIDDEN";
+
+        return "200 OK\n" + gson.toJson(metrics.snapshot());
+    }
+
+    /**
+     * @return lo status code all'inizio di una risposta già codificata
+     */
+    private static String statusOf(byte[] encoded) {
+        return new String(encoded, 0, Math.min(3, encoded.length), StandardCharsets.US_ASCII);
+    }
+
     /**
      * Costruisce una stringa contenente il corpo della richiesta. Il corpo può essere di lunghezza variabile e viene
      * inteso come concluso quando viene trovata una linea vuota
      *
-     * @param in scanner associato allo stream di input del socket
+     * @param in lettore associato allo stream di input del socket
      * @return il corpo della richiesta
      */
-    private String getRequestBody(Scanner in) {
+    private String getRequestBody(RequestReader in) {
         StringBuilder bodyBuilder = new StringBuilder();
-        while (in.hasNextLine()) {
-            String line = in.nextLine();
+        String line;
+        while ((line = in.readLine()) != null) {
             if (line.isEmpty()) break;
             bodyBuilder.append(line);
         }
@@ -316,6 +775,121 @@ public class ConnectionHandler implements Runnable{
         return bodyBuilder.toString();
     }
 
+    /**
+     * Costruisce una {@link ReviewRequest} a partire dal corpo di una recensione (formato di insertReview). Tutti i
+     * campi, compresi i quattro voti di singleScores, devono essere presenti
+     *
+     * @param review oggetto json della recensione
+     * @return la richiesta, oppure null se l'oggetto è malformato o incompleto
+     */
+    private ReviewRequest toReviewRequest(JsonObject review) {
+        try {
+            JsonObject scores = review.getAsJsonObject("singleScores");
+            Ratings singleScores = new Ratings(
+                    scores.get("cleaning").getAsDouble(),
+                    scores.get("position").getAsDouble(),
+                    scores.get("services").getAsDouble(),
+                    scores.get("quality").getAsDouble());
+
+            return new ReviewRequest(review.get("nomeHotel").getAsString(), review.get("citta").getAsString(),
+                    review.get("globalScore").getAsDouble(), singleScores);
+        } catch (NullPointerException | ClassCastException | IllegalStateException | UnsupportedOperationException
+                 | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gestisce searchAllHotels con "limit" e/o "cursor" (vedi {@link #searchAllHotels(String)}). Il cursore ha la forma
+     * "versione-offset", dove offset è il numero di hotel (che rispettano i filtri) già restituiti
+     */
+    private String searchHotelsPage(JsonObject body, String citta, HotelFilter filter) {
+        int limit;
+        String cursor;
+        try {
+            limit = body.has("limit") ? body.get("limit").getAsInt() : DEFAULT_PAGE_SIZE;
+            cursor = body.has("cursor") ? body.get("cursor").getAsString() : null;
+        } catch (ClassCastException | IllegalStateException | UnsupportedOperationException | NumberFormatException e) {
+            return "400 BAD REQUEST";
+        }
+        if (limit <= 0) return "400 BAD REQUEST";
+
+        CityRanking ranking = databaseManager.getCityRanking(citta);
+        if (ranking == null) return "404 NOT FOUND";
+
+        int offset = 0;
+        if (cursor != null) {
+            int sep = cursor.indexOf('-');
+            long version;
+            try {
+                version = Long.parseLong(cursor.substring(0, sep));
+                offset = Integer.parseInt(cursor.substring(sep + 1));
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                return "400 BAD REQUEST";
+            }
+            if (offset < 0) return "400 BAD REQUEST";
+
+            ranking = ranking.find(version);
+            // la classifica è cambiata troppe volte dalla prima pagina, il client deve ricominciare
+            if (ranking == null) return "409 CONFLICT";
+        }
+
+        List<Hotel> h = DatabaseManager.page(ranking.getHotels(), filter, offset, limit);
+        if (h.isEmpty()) return "404 NOT FOUND";
+
+        String nextCursor = null;
+        if (h.size() > limit) {
+            h = h.subList(0, limit);
+            nextCursor = ranking.getVersion() + "-" + (offset + limit);
+        }
+
+        JsonObject page = gson.toJsonTree(new HotelPage(ranking.getVersion(), h, nextCursor)).getAsJsonObject();
+        page.add("hotels", toJsonRanked(h, ranking));
+        return "200 OK\n" + gson.toJson(page);
+    }
+
+    /**
+     * Legge i filtri opzionali di searchAllHotels: "servizi" (array di nomi), "minRate" e "minRatings" (oggetto con
+     * cleaning, position, services e quality, tutti opzionali)
+     * @return il filtro, {@link HotelFilter#NONE} se non ci sono filtri, oppure null se i filtri sono malformati
+     * @throws IllegalArgumentException se uno dei servizi richiesti non è offerto da nessun hotel
+     */
+    private HotelFilter toHotelFilter(JsonObject body) throws IllegalArgumentException {
+        if (!body.has("servizi") && !body.has("minRate") && !body.has("minRatings")) return HotelFilter.NONE;
+
+        try {
+            long services = 0;
+            if (body.has("servizi")) {
+                List<String> names = new ArrayList<>();
+                for (JsonElement s : body.getAsJsonArray("servizi")) names.add(s.getAsString());
+                services = ServiceDictionary.lookupMask(names);
+            }
+
+            double minRate = body.has("minRate") ? body.get("minRate").getAsDouble() : 0.0;
+
+            Ratings minRatings = new Ratings(0.0, 0.0, 0.0, 0.0);
+            if (body.has("minRatings")) {
+                JsonObject r = body.getAsJsonObject("minRatings");
+                minRatings = new Ratings(
+                        r.has("cleaning") ? r.get("cleaning").getAsDouble() : 0.0,
+                        r.has("position") ? r.get("position").getAsDouble() : 0.0,
+                        r.has("services") ? r.get("services").getAsDouble() : 0.0,
+                        r.has("quality") ? r.get("quality").getAsDouble() : 0.0);
+            }
+
+            return new HotelFilter(services, minRate, minRatings);
+        } catch (ClassCastException | IllegalStateException | UnsupportedOperationException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Codifica una risposta così come viene inviata al client: la risposta seguita da una linea vuota
+     */
+    private static byte[] encode(String response) {
+        return (response + "\n" + System.lineSeparator()).getBytes(Charset.defaultCharset());
+    }
+
     /**
      * Funzione che trasforma una stringa in {@link JsonObject}
      *
@@ -330,20 +904,66 @@ public class ConnectionHandler implements Runnable{
     /**
      * Apre gli stream da/verso il client e si mette in attesa di ricevere i comandi, con eventuale corpo. Una volta
      * elaborate le richieste invia al client una risposta testuale contenente uno status code ed eventualmente un corpo.<br>
-     * Quando la connessione viene interrotta, si occupa di chiudere correttamente gli stream e di eliminare l'utente dalla
-     * lista di utenti connessi
+     * Questo thread legge solo le richieste: ogni richiesta viene eseguita dallo stadio di esecuzione e la risposta
+     * scritta dallo stadio di scrittura, sempre nell'ordine in cui le richieste sono arrivate. Se ci sono già
+     * "pipeline.maxInFlight" richieste senza risposta la lettura si ferma, quindi un client che non legge le risposte
+     * viene rallentato invece di occupare memoria.<br>
+     * Quando la connessione viene interrotta, aspetta le risposte in sospeso, si occupa di chiudere correttamente gli
+     * stream e di eliminare l'utente dalla lista di utenti connessi
      */
     private void waitForCommands() {
-        try (Scanner in = new Scanner(socket.getInputStream());
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            while (in.hasNextLine()) {
-                System.out.println(Thread.currentThread().getName() + ": comando ricevuto");
-                // legge il comando
-                String command = in.nextLine().trim();
-                // legge il corpo se presente
-                String requestBody = getRequestBody(in);
-                // Stringa da inviare come risposta
-                String response;
+        try (InputStream input = socket.getInputStream();
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            RequestReader in = new RequestReader(input);
+            try {
+                long requestStart = 0;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    // legge il comando
+                    String command = line.trim();
+                    long start = System.nanoTime();
+                    FlightEvents.CommandEvent event = new FlightEvents.CommandEvent();
+                    event.begin();
+                    // legge il corpo se presente
+                    String requestBody = getRequestBody(in);
+                    int bytes = (int) Math.min(Integer.MAX_VALUE, in.getBytesRead() - requestStart);
+                    requestStart = in.getBytesRead();
+
+                    Request request = new Request(command, requestBody, bytes, start, event);
+                    inFlight.acquireUninterruptibly();
+                    executor.execute(() -> execute(request, out));
+                }
+            } finally {
+                // aspetto che tutte le risposte in sospeso siano state scritte prima di chiudere gli stream
+                inFlight.acquireUninterruptibly(maxInFlight);
+                if (compressor != null) compressor.end();
+            }
+        } catch (IOException e) {
+            Log.error("Errore sulla connessione " + socket.getRemoteSocketAddress(), e);
+        }
+
+        // se il client si disconnette mentre era loggato, eseguo il logout
+        if (curUser != null) {
+            serverManager.logout(curUser.getUsername());
+        }
+    }
+
+    /**
+     * Esegue un comando (stadio di esecuzione) e passa la risposta allo stadio di scrittura
+     */
+    private void execute(Request request, OutputStream out) {
+        String command = request.command;
+        String requestBody = request.body;
+        // Stringa da inviare come risposta
+        String response = null;
+        // risposta già codificata (ad esempio presa dalla cache delle risposte)
+        byte[] encoded = null;
+        try {
+            if (!serverManager.allowRequest(address, curUser != null ? curUser.getUsername() : null)) {
+                // il client ha superato il limite di richieste: non eseguo il comando
+                response = "429 TOO MANY REQUESTS";
+                if (!COMMANDS.contains(command)) command = "unknown";
+            } else {
                 switch (command) {
                     case "register":
                         response = register(requestBody);
@@ -355,38 +975,145 @@ public class ConnectionHandler implements Runnable{
                         response = logout(requestBody);
                         break;
                     case "searchHotel":
-                        response = searchHotel(requestBody);
+                        encoded = searchHotel(requestBody);
                         break;
                     case "searchAllHotels":
-                        response = searchAllHotels(requestBody);
+                        encoded = searchAllHotels(requestBody);
+                        break;
+                    case "searchHotels":
+                        response = searchHotels(requestBody);
+                        break;
+                    case "showLeaderboard":
+                        response = showLeaderboard(requestBody);
                         break;
                     case "insertReview":
                         response = insertReview(requestBody);
                         break;
+                    case "insertReviews":
+                        response = insertReviews(requestBody);
+                        break;
+                    case "myReviews":
+                        response = myReviews(requestBody);
+                        break;
+                    case "showHotelStats":
+                        response = showHotelStats(requestBody);
+                        break;
                     case "showMyBadges":
                         response = showMyBadges();
                         break;
+                    case "stats":
+                        response = stats();
+                        break;
+                    case "compression":
+                        response = compression(requestBody);
+                        break;
                     default:
+                        // i comandi sconosciuti finiscono tutti nella stessa metrica
+                        command = "unknown";
                         response = "400 BAD REQUEST";
                 }
+            }
+        } catch (RuntimeException e) {
+            // senza risposta il client resterebbe in attesa: chiudo la connessione
+            Log.error("Errore durante l'esecuzione di " + command, e);
+            broken = true;
+            closeSocket();
+            inFlight.release();
+            return;
+        }
+
+        request.command = command;
+        request.response = response;
+        request.encoded = encoded;
+        request.user = curUser != null ? curUser.getUsername() : null;
+        request.compression = compression;
+        writer.execute(() -> write(request, out));
+    }
+
+    /**
+     * Codifica e scrive una risposta (stadio di scrittura), poi registra le metriche della richiesta
+     */
+    private void write(Request request, OutputStream out) {
+        try {
+            byte[] encoded = request.encoded != null ? request.encoded : encode(request.response);
+            if (broken) return;
+            int sent;
+            try {
+                sent = writeResponse(encoded, request.compression, out);
+                out.flush();
+            } catch (IOException e) {
+                // il client non legge più: il thread della connessione se ne accorge quando il socket viene chiuso
+                Log.debug("Scrittura della risposta fallita", "client", socket.getRemoteSocketAddress(), "errore", e.getMessage());
+                broken = true;
+                closeSocket();
+                return;
+            }
 
-                out.println(response + "\n");
-                System.out.println(Thread.currentThread().getName() + ": risposta inviata");
+            metrics.recordRequest(request.command, statusOf(encoded), System.nanoTime() - request.start);
+            FlightEvents.CommandEvent event = request.event;
+            if (event.shouldCommit()) {
+                event.command = request.command;
+                event.status = statusOf(encoded);
+                event.user = request.user;
+                event.requestBytes = request.bytes;
+                event.responseBytes = sent;
+                event.commit();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            Log.sampled(LogLevel.DEBUG, "Risposta inviata", "comando", request.command, "status", statusOf(encoded),
+                    "us", (System.nanoTime() - request.start) / 1000);
+        } finally {
+            inFlight.release();
         }
+    }
 
-        // se il client si disconnette mentre era loggato, eseguo il logout
-        if (curUser != null) {
-            serverManager.logout(curUser.getUsername());
+    /**
+     * Scrive una risposta già codificata, comprimendone il corpo se il client l'ha richiesto e se è abbastanza lungo
+     * (vedi {@link #compression(String)})
+     * @return il numero di byte scritti
+     */
+    private int writeResponse(byte[] encoded, Compression compression, OutputStream out) throws IOException {
+        int statusEnd = 0;
+        while (statusEnd < encoded.length && encoded[statusEnd] != '\n') statusEnd++;
+        int bodyStart = statusEnd + 1;
+        int bodyLength = encoded.length - bodyStart - TERMINATOR.length;
+
+        if (compression == Compression.NONE || bodyLength < Math.max(1, compressionMinBytes)) {
+            out.write(encoded);
+            return encoded.length;
+        }
+
+        if (compressor == null || compressor.getCompression() != compression) {
+            if (compressor != null) compressor.end();
+            compressor = new ResponseCompressor(compression, compressionLevel);
+        }
+        compressor.compress(encoded, bodyStart, bodyLength);
+        metrics.recordCompression(bodyLength, compressor.getLength());
+
+        byte[] header = ("compressed " + compression.getNome() + " " + compressor.getLength() + "\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        out.write(encoded, 0, bodyStart);
+        out.write(header);
+        out.write(compressor.getBuffer(), 0, compressor.getLength());
+        out.write(TERMINATOR);
+        return bodyStart + header.length + compressor.getLength() + TERMINATOR.length;
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
         }
     }
 
     @Override
     public void run() {
-        System.out.println("Connected: " + socket);
-        waitForCommands();
-        System.out.println("Connection closed: " + socket);
+        Log.info("Connessione aperta", "client", socket.getRemoteSocketAddress());
+        metrics.connectionOpened();
+        try {
+            waitForCommands();
+        } finally {
+            metrics.connectionClosed();
+        }
+        Log.info("Connessione chiusa", "client", socket.getRemoteSocketAddress());
     }
 }
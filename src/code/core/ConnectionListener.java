@@ -1,27 +1,42 @@
 package code.core;
 
 import code.utils.AppConfig;
+import code.utils.Log;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 
 /**
  * @author Andrea Filippi
  */
 public class ConnectionListener {
+    // StandardSocketOptions.SO_REUSEPORT esiste solo da Java 9: la cerco per riflessione
+    private static final SocketOption<?> SO_REUSEPORT = findReusePort();
+
+    private ThreadPoolExecutor pool;
+    private Stage execute;
+    private Stage write;
 
     /**
-     * Funzione di partenza del server: si mette in ascolto sulla porta specificata in application.properties e crea un
-     * threadpool di dimensione specificata sempre nelle proprietà
+     * Funzione di partenza del server: si mette in ascolto sugli indirizzi specificati in application.properties e crea
+     * un threadpool di dimensione specificata sempre nelle proprietà.<br>
+     * Su ogni indirizzo accettano le connessioni "server.acceptors" thread. Se il sistema supporta SO_REUSEPORT ogni
+     * thread apre il suo socket sullo stesso indirizzo e il kernel distribuisce tra loro le nuove connessioni, altrimenti
+     * i thread chiamano accept() sullo stesso socket
      *
      * @see AppConfig
      */
     public void start() {
-        try(ServerSocket listener = new ServerSocket(AppConfig.getPort())) {
-            printApplicationCoordinates();
-
+        List<ServerSocket> listeners = new ArrayList<>();
+        try {
             int maxUsers = AppConfig.getMaxUsers();
 
             /*
@@ -32,27 +47,149 @@ public class ConnectionListener {
             - si usa una SynchronousQueue per indicare che NON possono rimanere task in attesa, se non ci sono thread
                 disponibili, fallisce
              */
-            ExecutorService pool = new ThreadPoolExecutor((int)Math.ceil(maxUsers/2.0), maxUsers,
+            pool = new ThreadPoolExecutor((int)Math.ceil(maxUsers/2.0), maxUsers,
                     60L, TimeUnit.SECONDS,
                     new SynchronousQueue<>());
+            ServerMetrics.getInstance().setConnectionPool(pool);
+
+            /*
+            Stadi di esecuzione dei comandi e di scrittura delle risposte: i thread delle connessioni si limitano a
+            leggere le richieste. Ogni connessione ha al più un task nella coda di ogni stadio, quindi basta una coda
+            grande quanto il numero massimo di utenti
+             */
+            if (AppConfig.getPipelineEnabled()) {
+                execute = new Stage("execute", AppConfig.getExecuteThreads(), maxUsers);
+                write = new Stage("write", AppConfig.getWriteThreads(), maxUsers);
+            }
+
+            int acceptors = Math.max(1, AppConfig.getAcceptors());
+            int backlog = AppConfig.getBacklog();
+            boolean reusePort = acceptors > 1 && AppConfig.getReusePort() && isReusePortSupported();
+
+            List<Thread> threads = new ArrayList<>();
+            for (String address : AppConfig.getListenAddresses()) {
+                InetSocketAddress endpoint = parseAddress(address);
+                ServerSocket shared = null;
+                for (int i = 0; i < acceptors; i++) {
+                    ServerSocket listener;
+                    if (reusePort) {
+                        listener = bind(endpoint, backlog, true);
+                        listeners.add(listener);
+                    } else {
+                        if (shared == null) {
+                            shared = bind(endpoint, backlog, false);
+                            listeners.add(shared);
+                        }
+                        listener = shared;
+                    }
+                    threads.add(new Thread(() -> acceptConnections(listener), "acceptor-" + (threads.size() + 1)));
+                }
+                printApplicationCoordinates(endpoint, acceptors, reusePort);
+            }
+
+            threads.forEach(Thread::start);
+            for (Thread t : threads) t.join();
+        } catch (IllegalArgumentException e) {
+            Log.error("Proprietà non valida in application.properties", e);
+        } catch (IOException e) {
+            Log.error("Errore del socket di ascolto", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (ServerSocket listener : listeners) {
+                try {
+                    listener.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Ciclo di un thread che accetta connessioni: ogni connessione viene passata al threadpool. Termina solo se il
+     * socket di ascolto non è più utilizzabile
+     */
+    private void acceptConnections(ServerSocket listener) {
+        while (true) {
+            Socket clientSocket;
+            try {
+                clientSocket = listener.accept();
+            } catch (IOException e) {
+                Log.error("Errore del socket di ascolto " + listener.getLocalSocketAddress(), e);
+                return;
+            }
 
-            while (true) {
-                Socket clientSocket = listener.accept();
+            try {
+                pool.execute(new ConnectionHandler(clientSocket, execute, write));
+            } catch (RejectedExecutionException e) {
+                // ho superato il massimo numero di client contemporanei, chiudo la connessione
+                ServerMetrics.getInstance().connectionRejected();
                 try {
-                    pool.execute(new ConnectionHandler(clientSocket));
-                } catch (RejectedExecutionException e) {
-                    // ho superato il massimo numero di client contemporanei, chiudo la connessione
                     clientSocket.close();
+                } catch (IOException ignored) {
                 }
             }
-        } catch (NumberFormatException e) {
-            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Legge un indirizzo nella forma host:porta, :porta (tutte le interfacce) oppure [indirizzo IPv6]:porta
+     * @throws IllegalArgumentException se l'indirizzo non è valido
+     */
+    private static InetSocketAddress parseAddress(String address) throws IllegalArgumentException {
+        int sep = address.lastIndexOf(':');
+        if (sep < 0) throw new IllegalArgumentException("Indirizzo senza porta: " + address);
+
+        String host = address.substring(0, sep).trim();
+        int port = Integer.parseInt(address.substring(sep + 1).trim());
+        if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+
+        return host.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+    }
+
+    private static ServerSocket bind(InetSocketAddress endpoint, int backlog, boolean reusePort) throws IOException {
+        ServerSocket socket = new ServerSocket();
+        try {
+            if (reusePort) {
+                try {
+                    ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class)
+                            .invoke(socket, SO_REUSEPORT, true);
+                } catch (ReflectiveOperationException e) {
+                    throw new IOException("Impossibile impostare SO_REUSEPORT", e);
+                }
+            }
+            socket.bind(endpoint, backlog);
         } catch (IOException e) {
-            e.printStackTrace();
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    private static SocketOption<?> findReusePort() {
+        try {
+            return (SocketOption<?>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true se la JVM e il sistema operativo permettono di aprire più socket di ascolto sullo stesso indirizzo
+     */
+    private static boolean isReusePortSupported() {
+        if (SO_REUSEPORT == null) return false;
+        try (ServerSocket probe = new ServerSocket()) {
+            Set<?> options = (Set<?>) ServerSocket.class.getMethod("supportedOptions").invoke(probe);
+            return options.contains(SO_REUSEPORT);
+        } catch (IOException | ReflectiveOperationException e) {
+            return false;
         }
     }
 
-    private void printApplicationCoordinates() {
-        System.out.println("Application started at localhost:" + AppConfig.getPort());
+    private void printApplicationCoordinates(InetSocketAddress endpoint, int acceptors, boolean reusePort) {
+        String host = endpoint.getAddress().isAnyLocalAddress() ? "localhost" : endpoint.getHostString();
+        Log.info("Application started at " + host + ":" + endpoint.getPort(), "acceptors", acceptors,
+                "reusePort", reusePort);
     }
 }
@@ -1,15 +1,20 @@
 package code.core;
 
+import code.entities.CompactReview;
 import code.entities.Hotel;
-import code.entities.Ratings;
+import code.entities.HotelFilter;
 import code.entities.User;
 import code.entities.UserReview;
 import code.exceptions.UsernameConflictException;
 import code.utils.AppConfig;
+import code.utils.Log;
 import code.utils.PasswordUtils;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.File;
 import java.io.FileReader;
@@ -19,34 +24,61 @@ import java.lang.reflect.Type;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DatabaseManager {
     private static final DatabaseManager instance = new DatabaseManager();
 
-    // chiave -> username
-    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+    // utenti salvati in Users.dat, in memoria solo quelli loggati e quelli usati di recente
+    private UserStore users;
 
     // chiave -> id
     private final ConcurrentHashMap<Integer, Hotel> hotels = new ConcurrentHashMap<>();
 
-    // chiave -> <username_hotelId>
-    private final ConcurrentHashMap<String, UserReview> reviews = new ConcurrentHashMap<>();
+    // recensioni, sullo heap o fuori dallo heap a seconda della proprietà database.reviewStore
+    private final ReviewStore reviews = createReviewStore();
+
+    // recensioni vecchie tolte dalla memoria, di cui restano i totali per hotel e i voti per (utente, hotel)
+    private final ReviewArchive archive = openArchive();
+    // rende atomici rispetto alla scrittura di Reviews.json il salvataggio del manifest e la rimozione delle recensioni
+    // archiviate: Reviews.json non perde mai recensioni che il manifest su disco non conta ancora
+    private final Object archiveLock = new Object();
+    // numero indicativo di recensioni scritte in ogni segmento dell'archivio
+    private static final int ARCHIVE_CHUNK = 65536;
 
     // chiave -> città
-    private final ConcurrentHashMap<String, List<Hotel>> localRankings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CityRanking> localRankings = new ConcurrentHashMap<>();
+    // ultima versione assegnata a uno snapshot delle classifiche locali
+    private final AtomicLong rankingVersion = new AtomicLong();
+
+    // ricerca testuale su nome, descrizione, città e servizi degli hotel
+    private final HotelSearchIndex searchIndex = new HotelSearchIndex();
+
+    // classifica di tutte le città insieme, aggiornata ad ogni calcolo dei rank
+    private final GlobalLeaderboard globalLeaderboard = new GlobalLeaderboard(AppConfig.getLeaderboardSize());
+
+    // risposte già serializzate di searchHotel e searchAllHotels
+    private final ResponseCache responseCache = new ResponseCache(AppConfig.getResponseCacheSize());
 
     private final AtomicBoolean isUserListModified = new AtomicBoolean(false);
     private final AtomicBoolean isHotelListModified = new AtomicBoolean(false);
     private final AtomicBoolean isRatingsListModified = new AtomicBoolean(false);
 
+    private final ReviewIngestor reviewIngestor;
+
 
     private DatabaseManager() {
+        reviewIngestor = new ReviewIngestor(this, archive, AppConfig.getReviewShards(), AppConfig.getReviewQueueSize());
+
         initializeUsersMap();
         initializeHotelsMap();
+        loadArchive();
         initializeRatingsMap();
+        archive.getAll().forEach(reviewIngestor::seedArchived);
         initializeRankingMap();
+        hotels.values().forEach(searchIndex::index);
 
+        reviewIngestor.start();
         startBackgroundUpdater();
     }
 
@@ -57,34 +89,109 @@ public class DatabaseManager {
 
 
     /**
-     * Funzione che inizializza le strutture dati contenenti i dati sugli utenti. Popola la mappa leggendo i dati da
-     * Users.json
-     * Se il file non esiste, lo crea nella cartella specificata in application.properties
+     * Crea il motore di memorizzazione delle recensioni indicato dalla proprietà database.reviewStore:<br>
+     * - "heap" (default): oggetti {@link CompactReview} sullo heap<br>
+     * - "offheap": record in buffer diretti fuori dallo heap<br>
+     * - "mapped": record in un file mappato in memoria (reviews.dat nella cartella del database)
+     */
+    private static ReviewStore createReviewStore() {
+        String type = AppConfig.getReviewStore();
+        try {
+            switch (type) {
+                case "offheap":
+                    return new OffHeapReviewStore(null);
+                case "mapped":
+                    return new OffHeapReviewStore(new File(AppConfig.getDatabaseUrl() + "reviews.dat"));
+                case "heap":
+                    return new HeapReviewStore(AppConfig.getReviewShards() * 4);
+                default:
+                    throw new IllegalArgumentException("Valore non valido per database.reviewStore: " + type);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Impossibile creare il file delle recensioni", e);
+        }
+    }
+
+
+    private static ReviewArchive openArchive() {
+        try {
+            return new ReviewArchive(new File(AppConfig.getDatabaseUrl() + "archive"));
+        } catch (IOException e) {
+            throw new IllegalStateException("Impossibile leggere l'archivio delle recensioni", e);
+        }
+    }
+
+
+    /**
+     * Rilegge i segmenti dell'archivio per ricostruire l'indice delle recensioni archiviate. Gli utenti devono essere
+     * già caricati
+     */
+    private void loadArchive() {
+        try {
+            archive.load(username -> {
+                try {
+                    return users.getId(username);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Errore lettura Users.dat", e);
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("Impossibile leggere i segmenti dell'archivio delle recensioni", e);
+        }
+    }
+
+
+    /**
+     * Funzione che inizializza le strutture dati contenenti i dati sugli utenti. Gli utenti sono salvati in Users.dat
+     * (vedi {@link UserStore}), con l'indice degli username in Users.idx, e all'avvio non vengono caricati in memoria.<br>
+     * Se Users.dat non esiste, oppure se Users.json è stato modificato dopo l'ultimo salvataggio del server, gli utenti
+     * vengono importati da Users.json leggendoli uno alla volta.
+     * Se nessuno dei due file esiste, crea Users.json nella cartella specificata in application.properties
      */
     private void initializeUsersMap() {
         File file = new File(AppConfig.getDatabaseUrl()+"Users.json");
+        File datFile = new File(AppConfig.getDatabaseUrl()+"Users.dat");
 
-        if (file.exists()) {
-            try (FileReader reader = new FileReader(file)) {
-                Gson gson = new Gson();
-                Type listType = new TypeToken<ArrayList<User>>() {}.getType();
-                ArrayList<User> users = gson.fromJson(reader, listType);
+        boolean importJson = file.exists() && (!datFile.exists() || file.lastModified() > datFile.lastModified());
+        if (importJson && datFile.exists() && !datFile.delete()) {
+            throw new IllegalStateException("Impossibile ricreare Users.dat");
+        }
 
-                if (users != null) users.forEach(u -> this.users.put(u.getUsername(), u));
+        try {
+            users = new UserStore(datFile, AppConfig.getUserCacheSize());
+        } catch (IOException e) {
+            throw new IllegalStateException("Impossibile aprire Users.dat", e);
+        }
+
+        if (importJson) {
+            try (JsonReader reader = new JsonReader(new FileReader(file))) {
+                Gson gson = new Gson();
+                // il file appena creato è vuoto
+                if (reader.peek() == JsonToken.END_DOCUMENT) return;
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    User u = gson.fromJson(reader, User.class);
+                    try {
+                        users.register(u);
+                    } catch (UsernameConflictException | IllegalArgumentException e) {
+                        Log.warn("Utente duplicato o con username troppo lungo ignorato", "username", u.getUsername());
+                    }
+                }
+                reader.endArray();
+                users.flush();
 
             } catch (IOException e) {
-                System.out.println("--- Errore lettura file Users.json ---");
-                e.printStackTrace();
+                Log.error("Errore lettura file Users.json", e);
             }
-        } else {
+        } else if (!file.exists()) {
             // se il file degli Utenti non esiste ancora, lo creo
             try {
                 if (!file.createNewFile()) {
-                    System.out.println("--- Errore durante la creazione di Users.json ---");
+                    Log.warn("Errore durante la creazione di Users.json");
                 }
             } catch (IOException e) {
-                System.out.println("--- Errore durante la creazione di Users.json ---");
-                e.printStackTrace();
+                Log.error("Errore durante la creazione di Users.json", e);
             }
         }
     }
@@ -94,8 +201,10 @@ public class DatabaseManager {
      * Funzione che inizializza le strutture dati contenenti i dati sugli hotel.
      * Popola la mappa leggendo i dati da Hotels.json
      * Se il file non esiste restituisce un'eccezione. Questo file infatti DEVE essere presente all'avvio
+     * @throws IllegalStateException se gli hotel hanno più servizi diversi di quelli rappresentabili
+     * (vedi {@link code.utils.ServiceDictionary})
      */
-    private void initializeHotelsMap() {
+    private void initializeHotelsMap() throws IllegalStateException {
         try (FileReader reader = new FileReader(AppConfig.getDatabaseUrl()+"Hotels.json")) {
             Gson gson = new Gson();
             Type listType = new TypeToken<ArrayList<Hotel>>(){}.getType();
@@ -104,41 +213,63 @@ public class DatabaseManager {
             if (hotels != null) hotels.forEach(h -> this.hotels.put(h.getId(), h));
 
         } catch (IOException e) {
-            System.out.println("--- Errore lettura file Hotels.json ---");
-            e.printStackTrace();
+            Log.error("Errore lettura file Hotels.json", e);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Hotels.json non valido: " + e.getMessage(), e);
         }
     }
 
 
     /**
-     * Funzione che inizializza le strutture dati contenenti i dati sulle recensioni. Popola la mappa leggendo i dati da
-     * Reviews.json
+     * Funzione che inizializza le strutture dati contenenti i dati sulle recensioni. Popola lo store leggendo i dati da
+     * Reviews.json una recensione alla volta, senza caricare in memoria la lista completa
      * Se il file non esiste, lo crea nella cartella specificata in application.properties
      */
     private void initializeRatingsMap() {
         File file = new File(AppConfig.getDatabaseUrl()+"Reviews.json");
 
         if (file.exists()) {
-            try (FileReader reader = new FileReader(file)) {
+            try (JsonReader reader = new JsonReader(new FileReader(file))) {
                 Gson gson = new Gson();
-                Type listType = new TypeToken<ArrayList<UserReview>>(){}.getType();
-                ArrayList<UserReview> reviews = gson.fromJson(reader, listType);
-
-                if (reviews != null) reviews.forEach(r -> this.reviews.put(getReviewMapKey(r), r));
+                // il file appena creato è vuoto
+                if (reader.peek() == JsonToken.END_DOCUMENT) return;
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    UserReview r = gson.fromJson(reader, UserReview.class);
+                    // già archiviata, ma Reviews.json non era ancora stato riscritto
+                    if (archive.isArchived(r.getHotelID(), r.getTimestamp())) continue;
+
+                    int userId = users.getId(r.getUsername());
+                    if (userId < 0) {
+                        Log.warn("Recensione di un utente inesistente ignorata", "username", r.getUsername());
+                        continue;
+                    }
+                    CompactReview review;
+                    try {
+                        review = new CompactReview(userId, r.getHotelID(), r.getRating(), r.getRatings(), r.getTimestamp());
+                    } catch (IllegalArgumentException e) {
+                        Log.warn("Recensione con voti non validi ignorata", "username", r.getUsername(), "hotel", r.getHotelID());
+                        continue;
+                    }
+                    // l'utente ha recensito di nuovo un hotel di cui aveva una recensione archiviata
+                    archive.supersede(userId, review.getHotelId());
+                    this.reviews.put(review);
+                    reviewIngestor.seed(review);
+                }
+                reader.endArray();
 
             } catch (IOException e) {
-                System.out.println("--- Errore lettura file Ratings.json ---");
-                e.printStackTrace();
+                Log.error("Errore lettura file Ratings.json", e);
             }
         } else {
             // se il file degli Utenti non esiste ancora, lo creo
             try {
                 if (!file.createNewFile()) {
-                    System.out.println("--- Errore durante la creazione di Ratings.json ---");
+                    Log.warn("Errore durante la creazione di Ratings.json");
                 }
             } catch (IOException e) {
-                System.out.println("--- Errore durante la creazione di Ratings.json ---");
-                e.printStackTrace();
+                Log.error("Errore durante la creazione di Ratings.json", e);
             }
         }
     }
@@ -149,18 +280,16 @@ public class DatabaseManager {
      */
     private void initializeRankingMap() {
         // creo la hashMap che a come chiave la città e come valore una lista ordinata sul rank degli hotel
-        hotels.values().forEach(h ->
-                localRankings.compute(h.getCity(), (k, list) -> {
-                    // se non esiste ancora, creo una lista degli hotel in quella città
-                    if (list == null) list = new ArrayList<>();
-                    list.add(h);
-
-                    return list;
-                })
-        );
-
-        // ordino per rank
-        localRankings.values().forEach(list -> list.sort(Comparator.comparingInt(Hotel::getRank)));
+        HashMap<String, List<Hotel>> byCity = new HashMap<>();
+        hotels.values().forEach(h -> byCity.computeIfAbsent(h.getCity(), k -> new ArrayList<>()).add(h));
+
+        // ordino per rank e pubblico le liste come snapshot immutabili
+        byCity.forEach((citta, list) -> {
+            list.sort(Comparator.comparingInt(Hotel::getRank));
+            int[] ranks = new int[list.size()];
+            for (int i = 0; i < ranks.length; i++) ranks[i] = list.get(i).getRank();
+            localRankings.put(citta, new CityRanking(rankingVersion.incrementAndGet(), list, ranks, null));
+        });
     }
 
 
@@ -171,6 +300,96 @@ public class DatabaseManager {
     private void startBackgroundUpdater() {
         ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
         scheduler.scheduleAtFixedRate(() -> persistData(), 0, AppConfig.getDatabaseUpdatePeriod(), TimeUnit.SECONDS);
+
+        if (AppConfig.getArchiveAfterDays() > 0) {
+            if (AppConfig.getArchiveAfterDays() < HotelDailyStats.DAYS) {
+                Log.warn("Le statistiche giornaliere non contano le recensioni archiviate", "archiveAfterDays",
+                        AppConfig.getArchiveAfterDays(), "giorniStatistiche", HotelDailyStats.DAYS);
+            }
+            ScheduledExecutorService archiver = Executors.newSingleThreadScheduledExecutor();
+            archiver.scheduleWithFixedDelay(() -> {
+                try {
+                    archiveOldReviews();
+                } catch (RuntimeException e) {
+                    Log.error("Errore durante l'archiviazione delle recensioni", e);
+                }
+            }, 0, AppConfig.getArchivePeriod(), TimeUnit.MINUTES);
+        }
+    }
+
+
+    /**
+     * Sposta nell'archivio le recensioni più vecchie di "database.archiveAfterDays" giorni, uno shard alla volta e a
+     * blocchi di hotel interi di circa {@value #ARCHIVE_CHUNK} recensioni. Ogni blocco viene scritto in un segmento
+     * senza lock, poi i thread degli shard consegnano le recensioni all'archivio e le tolgono dalla memoria (vedi
+     * {@link #handOffArchived(Runnable)}); questo thread ne attende solo il completamento, senza tenere lock. Il manifest
+     * viene salvato alla fine, e comunque prima di riscrivere Reviews.json
+     */
+    private void archiveOldReviews() {
+        long before = System.currentTimeMillis() - AppConfig.getArchiveAfterDays() * 86400000L;
+
+        int archived = 0;
+        boolean completed = true;
+        List<CompactReview> chunk = new ArrayList<>();
+        for (int shard = 0; shard < reviewIngestor.getShardCount() && completed; shard++) {
+            for (int hotelId : hotels.keySet()) {
+                if (reviewIngestor.shardIndex(hotelId) != shard) continue;
+                reviews.forEachOfHotel(hotelId, (userId, h, scores, timestamp) -> {
+                    if (timestamp < before) chunk.add(new CompactReview(userId, h, scores, timestamp));
+                });
+                if (chunk.size() >= ARCHIVE_CHUNK) {
+                    if (!archiveChunk(chunk, before)) {
+                        completed = false;
+                        break;
+                    }
+                    archived += chunk.size();
+                    chunk.clear();
+                }
+            }
+            if (completed && !chunk.isEmpty()) {
+                completed = archiveChunk(chunk, before);
+                if (completed) archived += chunk.size();
+                chunk.clear();
+            }
+        }
+        if (archived == 0) return;
+
+        synchronized (archiveLock) {
+            try {
+                archive.commit(completed ? before : Long.MIN_VALUE);
+            } catch (IOException e) {
+                Log.error("Errore durante il salvataggio del manifest dell'archivio", e);
+            }
+        }
+        Log.info("Recensioni archiviate", "numero", archived);
+    }
+
+    /**
+     * Scrive un blocco di recensioni nell'archivio e lo toglie dalla memoria
+     * @return false se il blocco non è stato scritto
+     */
+    private boolean archiveChunk(List<CompactReview> chunk, long before) {
+        try {
+            int segment = archive.appendSegment(chunk, this::getUsername);
+            reviewIngestor.removeArchived(chunk, segment, before).join();
+        } catch (IOException | CompletionException e) {
+            Log.error("Errore durante l'archiviazione delle recensioni", e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Esegue la consegna all'archivio di un gruppo di recensioni. Chiamato dal thread proprietario dello shard: con il
+     * lock del database, come {@link #updateLocalRankings()}, il calcolo dei rank non vede mai una recensione sia in
+     * memoria che nell'archivio, e con archiveLock la consegna non avviene durante la scrittura di Reviews.json
+     */
+    void handOffArchived(Runnable handOff) {
+        synchronized (archiveLock) {
+            synchronized (this) {
+                handOff.run();
+            }
+        }
     }
 
 
@@ -179,18 +398,49 @@ public class DatabaseManager {
      * trasforma i valori in json e li salva su disco
      */
     private void persistData() {
-        if (isUserListModified.getAndSet(false)) {
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        long start = System.nanoTime();
+        if (writeModifiedData()) ServerMetrics.getInstance().recordPersistData(System.nanoTime() - start);
+    }
 
-            String json = gson.toJson(users.values());
 
-            try (FileWriter writer = new FileWriter(AppConfig.getDatabaseUrl()+"Users.json")) {
-                writer.write(json);
+    /**
+     * Scrive su disco le strutture dati modificate dall'ultimo salvataggio
+     * @return true se è stato scritto almeno un file
+     */
+    private boolean writeModifiedData() {
+        boolean written = false;
+        if (isUserListModified.getAndSet(false)) {
+            written = true;
+            FlightEvents.PersistFileEvent event = new FlightEvents.PersistFileEvent();
+            event.begin();
+            // riscrivo su Users.dat i contatori degli utenti in memoria, poi esporto Users.json leggendo gli utenti
+            // direttamente dal file, senza caricarli in cache
+            File file = new File(AppConfig.getDatabaseUrl()+"Users.json");
+            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            try (JsonWriter writer = gson.newJsonWriter(new FileWriter(file))) {
+                users.flush();
+                writer.beginArray();
+                users.forEach((username, passwordHash, numRecensioni) -> {
+                    writer.beginObject();
+                    writer.name("username").value(username);
+                    writer.name("password").value(passwordHash == null ? null : PasswordUtils.toHex(passwordHash));
+                    writer.name("numRecensioni").value(numRecensioni);
+                    writer.endObject();
+                });
+                writer.endArray();
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("Errore durante il salvataggio di Users.json", e);
+            }
+            // Users.json non è più recente di Users.dat, quindi al prossimo avvio non verrà reimportato
+            if (!new File(AppConfig.getDatabaseUrl()+"Users.dat").setLastModified(file.lastModified())) {
+                Log.warn("Impossibile aggiornare la data di Users.dat");
             }
+            commitPersistEvent(event, file);
         }
         if (isHotelListModified.getAndSet(false)) {
+            written = true;
+            FlightEvents.PersistFileEvent event = new FlightEvents.PersistFileEvent();
+            event.begin();
             Gson gson = new GsonBuilder().setPrettyPrinting().create();
 
             String json = gson.toJson(hotels.values());
@@ -198,25 +448,135 @@ public class DatabaseManager {
             try (FileWriter writer = new FileWriter(AppConfig.getDatabaseUrl()+"Hotels.json")) {
                 writer.write(json);
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("Errore durante il salvataggio di Hotels.json", e);
             }
+            commitPersistEvent(event, new File(AppConfig.getDatabaseUrl()+"Hotels.json"));
         }
         if (isRatingsListModified.getAndSet(false)) {
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            synchronized (archiveLock) {
+                written |= writeReviews();
+            }
+        }
+        return written;
+    }
 
-            String json = gson.toJson(reviews.values());
 
-            try (FileWriter writer = new FileWriter(AppConfig.getDatabaseUrl()+"Reviews.json")) {
-                writer.write(json);
+    /**
+     * Riscrive Reviews.json. Va chiamato con archiveLock: se ci sono recensioni tolte dalla memoria dopo l'ultimo
+     * salvataggio del manifest, il manifest viene salvato prima, altrimenti dopo un arresto non sarebbero più né in
+     * Reviews.json né nei totali dell'archivio
+     * @return true se il file è stato scritto
+     */
+    private boolean writeReviews() {
+        if (archive.isDirty()) {
+            try {
+                archive.commit(Long.MIN_VALUE);
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("Errore durante il salvataggio del manifest dell'archivio", e);
+                isRatingsListModified.set(true);
+                return false;
             }
         }
+
+        FlightEvents.PersistFileEvent event = new FlightEvents.PersistFileEvent();
+        event.begin();
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+        // le recensioni vengono convertite e scritte una alla volta, senza materializzare la lista completa
+        try (JsonWriter writer = gson.newJsonWriter(new FileWriter(AppConfig.getDatabaseUrl()+"Reviews.json"))) {
+            writer.beginArray();
+            reviews.forEach((userId, hotelId, scores, timestamp) -> gson.toJson(
+                    new CompactReview(userId, hotelId, scores, timestamp).toUserReview(getUsername(userId)),
+                    UserReview.class, writer));
+            writer.endArray();
+        } catch (IOException e) {
+            Log.error("Errore durante il salvataggio di Reviews.json", e);
+        }
+        commitPersistEvent(event, new File(AppConfig.getDatabaseUrl()+"Reviews.json"));
+        return true;
+    }
+
+
+    private static void commitPersistEvent(FlightEvents.PersistFileEvent event, File file) {
+        if (!event.shouldCommit()) return;
+        event.file = file.getName();
+        event.bytesWritten = file.length();
+        event.commit();
     }
 
 
+    /**
+     * @return l'utente, caricato da Users.dat se non è in memoria, oppure null se non esiste
+     */
     public User getUserByUsername(String username) {
-        return users.get(username);
+        try {
+            return users.get(username);
+        } catch (IOException e) {
+            throw new IllegalStateException("Errore lettura Users.dat", e);
+        }
+    }
+
+
+    /**
+     * @param id id numerico dell'utente
+     * @return lo username dell'utente letto da Users.dat, senza caricarlo, oppure null se non esiste
+     */
+    private String getUsername(int id) {
+        try {
+            return users.getUsername(id);
+        } catch (IOException e) {
+            throw new IllegalStateException("Errore lettura Users.dat", e);
+        }
+    }
+
+
+    /**
+     * Sostituisce l'hash della password dell'utente, in memoria e in Users.dat
+     */
+    public void updatePasswordHash(User user, byte[] passwordHash) {
+        try {
+            users.updatePasswordHash(user, passwordHash);
+        } catch (IOException e) {
+            throw new IllegalStateException("Errore scrittura Users.dat", e);
+        }
+    }
+
+
+    /**
+     * @param id id numerico dell'utente
+     * @return l'utente con l'id passato, caricato da Users.dat se non è in memoria, oppure null se non esiste
+     */
+    public User getUserById(int id) {
+        try {
+            return users.get(id);
+        } catch (IOException e) {
+            throw new IllegalStateException("Errore lettura Users.dat", e);
+        }
+    }
+
+
+    /**
+     * Tiene l'utente in memoria finché è loggato (vedi {@link UserStore#pin(User)})
+     * @return l'istanza dell'utente da usare per la sessione
+     */
+    public User pinUser(User user) {
+        try {
+            return users.pin(user);
+        } catch (IOException e) {
+            throw new IllegalStateException("Errore lettura Users.dat", e);
+        }
+    }
+
+
+    /**
+     * L'utente non è più loggato e può essere eliminato dalla memoria
+     */
+    public void unpinUser(User user) {
+        try {
+            users.unpin(user);
+        } catch (IOException e) {
+            throw new IllegalStateException("Errore scrittura Users.dat", e);
+        }
     }
 
 
@@ -228,26 +588,29 @@ public class DatabaseManager {
      * @return l'utente appena creato
      * @throws UsernameConflictException se esiste già un utente con questo username
      * @throws NullPointerException se i parametri passati sono vuoti o null
+     * @throws IllegalArgumentException se lo username è più lungo di {@value UserStore#MAX_USERNAME_BYTES} byte
      */
-    public User registerUser(String username, String password) throws UsernameConflictException, NullPointerException {
+    public User registerUser(String username, String password) throws UsernameConflictException, NullPointerException, IllegalArgumentException {
         if (username == null || password == null || username.trim().isEmpty() || password.trim().isEmpty()) throw new NullPointerException();
+        if (!UserStore.isValidUsername(username)) throw new IllegalArgumentException();
 
         User user = new User();
         user.setUsername(username);
-        user.setPassword(PasswordUtils.hashPassword(password));
+        // l'hashing, che è la parte costosa, resta fuori dalla sezione critica della registrazione
+        user.setPasswordHash(PasswordUtils.hashPasswordBytes(password));
 
-        // putIfAbsent permette atomicamente di controllare se esiste già un utente, e nel caso di aggiungerlo
-        if (users.putIfAbsent(username, user) != null ) {
-            // esiste già un utente con lo stesso username => conflitto
-            throw new UsernameConflictException();
-        } else {
-            this.isUserListModified.set(true);
-            return user;
+        try {
+            // controllo dei duplicati, assegnazione dell'id e scrittura su disco avvengono insieme
+            users.register(user);
+        } catch (IOException e) {
+            throw new IllegalStateException("Errore scrittura Users.dat", e);
         }
+        this.isUserListModified.set(true);
+        return user;
     }
 
 
-    public Hotel getHotelById(Integer id) {
+    public Hotel getHotelById(int id) {
         return hotels.get(id);
     }
 
@@ -260,130 +623,369 @@ public class DatabaseManager {
     }
 
 
+    /**
+     * Cerca più hotel dati nome e città con una sola passata su tutti gli hotel, invece di una ricerca per ogni coppia
+     * @param namesByCity mappa che ha come chiave la città e come valore i nomi degli hotel da cercare in quella città
+     * @return mappa città -> (nome -> hotel) che contiene solo gli hotel trovati
+     */
+    public HashMap<String, HashMap<String, Hotel>> getHotelsByNamesAndCities(Map<String, Set<String>> namesByCity) {
+        HashMap<String, HashMap<String, Hotel>> found = new HashMap<>();
+        for (Hotel h : hotels.values()) {
+            Set<String> names = namesByCity.get(h.getCity());
+            if (names != null && names.contains(h.getName())) {
+                found.computeIfAbsent(h.getCity(), k -> new HashMap<>()).put(h.getName(), h);
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * @param citta città di cui si vogliono gli hotel
+     * @return gli hotel della città ordinati per rank locale (lista immutabile), oppure una lista vuota
+     */
     public List<Hotel> getHotelsByCity(String citta) {
-        return hotels.values()
-                .stream()
-                .filter(h -> h.getCity().equals(citta))
-                .sorted(Comparator.comparingInt(Hotel::getRank))
-                .collect(Collectors.toList());
+        CityRanking ranking = localRankings.get(citta);
+        return ranking == null ? Collections.emptyList() : ranking.getHotels();
     }
 
 
     /**
-     * Permette di inserire un nuovo hotel o, se esiste già, di modificarlo
+     * @param citta città di cui si vuole la classifica
+     * @return lo snapshot corrente della classifica locale della città, oppure null se la città non ha hotel
+     */
+    public CityRanking getCityRanking(String citta) {
+        return localRankings.get(citta);
+    }
+
+
+    /**
+     * Restituisce gli hotel di una città che rispettano il filtro, scorrendo la classifica locale della città
+     * @param citta città di cui si vogliono gli hotel
+     * @param filter servizi richiesti e voti minimi
+     * @return gli hotel che rispettano il filtro ordinati per rank locale, oppure una lista vuota
+     */
+    public List<Hotel> getHotelsByCity(String citta, HotelFilter filter) {
+        return filter(getHotelsByCity(citta), filter);
+    }
+
+
+    /**
+     * @return gli hotel della classifica che rispettano il filtro, nello stesso ordine
+     */
+    public static List<Hotel> filter(List<Hotel> ranking, HotelFilter filter) {
+        if (filter.isEmpty()) return ranking;
+
+        List<Hotel> found = new ArrayList<>();
+        for (Hotel h : ranking) {
+            if (filter.matches(h)) found.add(h);
+        }
+        return found;
+    }
+
+
+    /**
+     * @param k numero massimo di hotel da restituire
+     * @return i primi k hotel della classifica globale, tra tutte le città, al più "application.leaderboardSize"
+     */
+    public List<Hotel> getGlobalTop(int k) {
+        return globalLeaderboard.top(k, hotels);
+    }
+
+
+    /**
+     * Ricerca testuale degli hotel (vedi {@link HotelSearchIndex#search(String)})
+     * @param query parole da cercare, ognuna trattata come prefisso
+     * @param limit numero massimo di hotel da restituire
+     * @return gli hotel che contengono tutte le parole, ordinati per rank locale e poi per id
+     */
+    public List<Hotel> searchHotels(String query, int limit) {
+        List<Hotel> found = new ArrayList<>();
+        for (Integer id : searchIndex.search(query)) {
+            Hotel h = hotels.get(id);
+            if (h != null) found.add(h);
+        }
+
+        found.sort(Comparator.comparingInt(Hotel::getRank).thenComparingInt(Hotel::getId));
+        return found.size() > limit ? found.subList(0, limit) : found;
+    }
+
+
+    /**
+     * Restituisce una porzione degli hotel della classifica che rispettano il filtro. Scorre la classifica solo fino
+     * all'ultimo hotel della porzione, più uno per sapere se ci sono altri hotel dopo
+     * @param ranking classifica ordinata per rank
+     * @param offset numero di hotel (che rispettano il filtro) da saltare
+     * @param limit numero massimo di hotel da restituire
+     * @return al più limit + 1 hotel: se sono limit + 1 esiste una pagina successiva
+     */
+    public static List<Hotel> page(List<Hotel> ranking, HotelFilter filter, int offset, int limit) {
+        boolean noFilter = filter.isEmpty();
+        if (noFilter) {
+            if (offset >= ranking.size()) return Collections.emptyList();
+            return ranking.subList(offset, (int) Math.min(ranking.size(), (long) offset + limit + 1));
+        }
+
+        List<Hotel> found = new ArrayList<>();
+        int skipped = 0;
+        for (Hotel h : ranking) {
+            if (!filter.matches(h)) continue;
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                found.add(h);
+                if (found.size() > limit) break;
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * Permette di inserire un nuovo hotel o, se esiste già, di modificarlo. L'hotel viene inserito anche nella
+     * classifica locale della sua città, in fondo se è nuovo o al posto della versione precedente.<br>
+     * I servizi dell'hotel sono già stati registrati nel {@link code.utils.ServiceDictionary} quando è stato creato,
+     * quindi il limite di servizi diversi non può far fallire l'inserimento a metà
      * @param hotel l'hotel da inserire o aggiornare
      */
-    public void insertOrUpdateHotel(Hotel hotel) {
-        hotels.put(hotel.getId(), hotel);
+    public synchronized void insertOrUpdateHotel(Hotel hotel) {
+        Hotel old = hotels.put(hotel.getId(), hotel);
+        searchIndex.index(hotel);
+        if (old != null) responseCache.invalidateHotel(old);
+        responseCache.invalidateHotel(hotel);
+
+        if (old != null && !old.getCity().equals(hotel.getCity())) {
+            // l'hotel ha cambiato città, lo tolgo dalla classifica della vecchia
+            localRankings.computeIfPresent(old.getCity(), (k, ranking) -> {
+                List<Hotel> copy = new ArrayList<>(ranking.getHotels());
+                int i = 0;
+                while (i < copy.size() && copy.get(i).getId() != old.getId()) i++;
+                if (i == copy.size()) return ranking;
+                if (copy.size() == 1) return null;
+
+                int[] ranks = new int[copy.size() - 1];
+                for (int j = 0, r = 0; j < copy.size(); j++) {
+                    if (j != i) ranks[r++] = ranking.getRank(j);
+                }
+                copy.remove(i);
+                return new CityRanking(rankingVersion.incrementAndGet(), copy, ranks, ranking);
+            });
+        }
+
+        localRankings.compute(hotel.getCity(), (k, ranking) -> {
+            List<Hotel> copy = ranking == null ? new ArrayList<>() : new ArrayList<>(ranking.getHotels());
+            int i = 0;
+            while (i < copy.size() && copy.get(i).getId() != hotel.getId()) i++;
+            int[] ranks = new int[Math.max(copy.size(), i + 1)];
+            for (int j = 0; j < copy.size(); j++) ranks[j] = ranking.getRank(j);
+            if (i < copy.size()) {
+                copy.set(i, hotel);
+            } else {
+                ranks[i] = copy.size() + 1;
+                copy.add(hotel);
+            }
+            hotel.setRank(ranks[i]);
+            return new CityRanking(rankingVersion.incrementAndGet(), copy, ranks, ranking);
+        });
+
+        isHotelListModified.set(true);
     }
 
 
     /**
      * Permette di inserire una recensione riguardante un hotel. Aggiorna inoltre le medie per quell'hotel e aggiorna il numero
      * di recensioni riguardanti questo utente.<br>
+     * La recensione viene applicata in modo asincrono dal thread proprietario dello shard dell'hotel.<br>
      * NB: un utente può inserire solo una recensione per un determinato hotel, se prova a inserirne una nuova, quella vecchia
      * viene sovrascritta
      * @param review recensione da inserire
+     * @return un future completato quando la recensione è stata salvata e le medie dell'hotel aggiornate
+     * @throws NullPointerException se l'utente della recensione non esiste
+     *
+     * @see ReviewIngestor
      */
-    public void insertReview(UserReview review) {
-        // salvo la recensione
-        reviews.put(getReviewMapKey(review), review);
-        isRatingsListModified.set(true);
+    public CompletableFuture<Void> insertReview(CompactReview review) throws NullPointerException {
+        User user = Objects.requireNonNull(getUserById(review.getUserId()));
 
-        // aggiorno il counter delle recensioni per questo utente
-        getUserByUsername(review.getUsername()).addRecensione();
-        isUserListModified.set(true);
-
-        // aggiorno le medie delle recensioni per questo hotel (atomicamente)
-        hotels.computeIfPresent(review.getHotelID(), (k, h) -> {
-            List<UserReview> reviews = getHotelReviews(k);
-            int numReviews = reviews.size();
-            double rate = 0.0;
-
-            double cleaning = 0.0;
-            double position = 0.0;
-            double services = 0.0;
-            double quality = 0.0;
-            for (UserReview ur : reviews) {
-                rate += ur.getRating();
-
-                Ratings ratings = ur.getRatings();
-                cleaning += ratings.getCleaning();
-                position += ratings.getPosition();
-                services += ratings.getServices();
-                quality += ratings.getQuality();
-            }
+        // aggiorno il counter delle recensioni per questo utente solo se la recensione è stata salvata
+        return reviewIngestor.submit(review).thenRun(() -> {
+            user.addRecensione();
+            isUserListModified.set(true);
+        });
+    }
 
-            // calcolo le medie e arrotondo a 2 cifre dopo la virgola
-            rate = Math.round(rate/numReviews * 100.0) / 100.0;
-            cleaning = Math.round(cleaning/numReviews * 100.0) / 100.0;
-            position = Math.round(position/numReviews * 100.0) / 100.0;
-            services = Math.round(services/numReviews * 100.0) / 100.0;
-            quality = Math.round(quality/numReviews * 100.0) / 100.0;
 
-            Ratings ratings = new Ratings(cleaning, position, services, quality);
+    /**
+     * Permette di inserire più recensioni insieme. Le recensioni vengono raggruppate per shard e applicate in un unico
+     * batch per shard: le medie di ogni hotel vengono ricalcolate una sola volta e le strutture segnate come modificate
+     * una sola volta
+     * @param reviews recensioni da inserire
+     * @return un future completato quando tutte le recensioni sono state applicate
+     * @throws NullPointerException se l'utente di una recensione non esiste
+     *
+     * @see #insertReview(CompactReview)
+     */
+    public CompletableFuture<Void> insertReviews(List<CompactReview> reviews) throws NullPointerException {
+        if (reviews.isEmpty()) return CompletableFuture.completedFuture(null);
 
-            h.setRate(rate);
-            h.setRatings(ratings);
-            return h;
+        HashMap<Integer, User> users = new HashMap<>();
+        for (CompactReview r : reviews) {
+            users.computeIfAbsent(r.getUserId(), id -> Objects.requireNonNull(getUserById(id)));
+        }
+
+        // i counter vengono aggiornati per ogni shard che ha salvato le sue recensioni, non prima
+        return reviewIngestor.submitAll(reviews, applied -> {
+            HashMap<Integer, Integer> perUser = new HashMap<>();
+            for (CompactReview r : applied) perUser.merge(r.getUserId(), 1, Integer::sum);
+            perUser.forEach((userId, n) -> users.get(userId).addRecensioni(n));
+            isUserListModified.set(true);
         });
+    }
+
 
+    /**
+     * Salva una recensione nella mappa. Chiamato solo dal thread proprietario dello shard dell'hotel
+     * @return la recensione sostituita, oppure null se l'utente non aveva ancora recensito l'hotel
+     */
+    CompactReview storeReview(CompactReview review) {
+        return reviews.put(review);
+    }
+
+
+    /**
+     * Segnala che le medie di un hotel sono cambiate, quindi le risposte in cache che lo contengono non sono più valide
+     */
+    void hotelAveragesChanged(Hotel hotel) {
+        responseCache.invalidateHotel(hotel);
+    }
+
+
+    /**
+     * @return le statistiche giornaliere delle recensioni dell'hotel, oppure null se non ha recensioni recenti
+     */
+    public HotelDailyStats getHotelDailyStats(int hotelId) {
+        return reviewIngestor.getDailyStats(hotelId);
+    }
+
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+
+    /**
+     * Segnala che recensioni e medie degli hotel sono cambiate e vanno persistite
+     */
+    void markReviewsModified() {
+        isRatingsListModified.set(true);
         isHotelListModified.set(true);
     }
 
 
-    public List<UserReview> getHotelReviews(Integer hotelID) {
-        return reviews.values().stream().filter(r -> r.getHotelID().equals(hotelID)).collect(Collectors.toList());
+    /**
+     * Toglie una recensione archiviata dalla memoria. Chiamato solo dal thread proprietario dello shard dell'hotel
+     */
+    CompactReview removeReview(int userId, int hotelId) {
+        return reviews.remove(userId, hotelId);
+    }
+
+
+    public List<CompactReview> getHotelReviews(int hotelID) {
+        List<CompactReview> hotelReviews = new ArrayList<>();
+        reviews.forEachOfHotel(hotelID, (userId, hotelId, scores, timestamp) ->
+                hotelReviews.add(new CompactReview(userId, hotelId, scores, timestamp)));
+        return hotelReviews;
     }
 
     /**
-     * Crea la chiave per la mappa delle recensioni, in questo modo si può trovare velocemente una recensione dato l'utente e l'hotel
-     * @param review la recensione che contiene i dati per creare la chiave
-     * @return la chiave creata, con la forma {@literal <}username{@literal >}_{@literal <}hotelID{@literal >}
+     * Legge una pagina di recensioni di un utente dall'indice per utente, che le tiene già ordinate: il costo dipende
+     * dalla dimensione della pagina e non dal numero di recensioni dell'utente
+     * @param userId id dell'utente
+     * @param afterTimestamp timestamp dell'ultima recensione della pagina precedente, Long.MAX_VALUE per la prima pagina
+     * @param afterHotel id hotel dell'ultima recensione della pagina precedente
+     * @param limit numero massimo di recensioni restituite
+     * @return le recensioni dell'utente che seguono la posizione indicata, dalla più recente (vedi
+     * {@link ReviewStore#USER_ORDER})
      */
-    private String getReviewMapKey(UserReview review) {
-        return review.getUsername() + "_" + review.getHotelID();
+    public List<CompactReview> getUserReviews(int userId, long afterTimestamp, int afterHotel, int limit) {
+        List<CompactReview> userReviews = new ArrayList<>(Math.min(limit, reviews.countOfUser(userId)));
+        reviews.forEachOfUser(userId, afterTimestamp, afterHotel, limit, (uId, hotelId, scores, timestamp) ->
+                userReviews.add(new CompactReview(uId, hotelId, scores, timestamp)));
+        return userReviews;
     }
 
+    /**
+     * @return il numero di recensioni dell'utente ancora in memoria, cioè non archiviate
+     */
+    public int getUserReviewCount(int userId) {
+        return reviews.countOfUser(userId);
+    }
+
+    /**
+     * @return il numero di recensioni dell'utente spostate nell'archivio, che non compaiono in
+     * {@link #getUserReviews(int, long, int, int)}
+     */
+    public int getArchivedReviewCount(int userId) {
+        return archive.countOfUser(userId);
+    }
 
     /**
-     * Funzione che permette di aggiornare i rank locali ri-eseguendo il sort sulle liste nella map
+     * @param userId id dell'utente
+     * @param hotelID id dell'hotel
+     * @return la recensione dell'utente per l'hotel, oppure null se non esiste
+     */
+    public CompactReview getReview(int userId, int hotelID) {
+        return reviews.get(userId, hotelID);
+    }
+
+
+    /**
+     * Funzione che permette di aggiornare i rank locali ri-eseguendo il sort sulle liste nella map. Ogni lista viene
+     * copiata, ordinata e poi sostituita da un nuovo {@link CityRanking}, così chi sta leggendo una classifica non la
+     * vede mai a metà ordinamento
      * @return map che contiene come chiave le città nelle quali è cambiata la prima posizione e come valore l'hotel
      * che occupa la nuova prima posizione
      */
     public synchronized HashMap<String, Hotel> updateLocalRankings() {
+        long start = System.nanoTime();
+        FlightEvents.RankingUpdateEvent event = new FlightEvents.RankingUpdateEvent();
+        event.begin();
         HashMap<String, Hotel> newFirstPos = new HashMap<>();
 
         // dovendo fare calcoli e possibili modifiche su ogni hotel, sincronizzo la map degli hotel per evitare aggiornamenti esterni non voluti
-        // non sincronizzo localRankings perchè questa struttura viene solo acceduta internamente dalla classe nella funzione sincronizzata updateLocalRankings()
+        // localRankings viene modificata solo nei metodi sincronizzati updateLocalRankings() e insertOrUpdateHotel()
         synchronized (this.hotels) {
             updateRanks();
 
-            localRankings.forEach((citta, list) -> {
+            for (Map.Entry<String, CityRanking> entry : localRankings.entrySet()) {
+                String citta = entry.getKey();
+                CityRanking ranking = entry.getValue();
+                List<Hotel> snapshot = ranking.getHotels();
                 // prima di riordinare prendo il primo hotel (potrebbe cambiare)
-                Hotel oldFirstPos = list.get(0);
+                Hotel oldFirstPos = snapshot.get(0);
 
-                // non serve re-inserire gli hotel nella lista perché puntano agli stessi oggetti nella mappa 'hotel' (quindi sono automaticamente aggiornati)
+                // la copia punta agli stessi oggetti nella mappa 'hotel' (quindi sono automaticamente aggiornati)
                 // ordino in base alle medie calcolate, se sono uguali ordino per recensione più recente e infine in ordine di Id
+                List<Hotel> list = new ArrayList<>(snapshot);
                 list.sort((h1, h2) -> {
-                    Double h1Rank = h1.getRankValue();
-                    Double h2Rank = h2.getRankValue();
-                    // prima ordino per rankValue DECRESCENTE
-                    if ( (h1Rank != null && (h2Rank == null || (h1Rank > h2Rank) )) ) {
+                    boolean h1HasRank = h1.hasRankValue();
+                    boolean h2HasRank = h2.hasRankValue();
+                    // prima ordino per rankValue DECRESCENTE (gli hotel senza recensioni vanno in fondo)
+                    if ( (h1HasRank && (!h2HasRank || (h1.getRankValue() > h2.getRankValue()) )) ) {
                         // h1 > h2
                         return -1;
-                    } else if ( (h2Rank != null && (h1Rank == null || (h1Rank < h2Rank) )) ) {
+                    } else if ( (h2HasRank && (!h1HasRank || (h1.getRankValue() < h2.getRankValue()) )) ) {
                         // h1 < h2
                         return 1;
                     } else {
                         // h1 == h2
-                        // a parità di rankValue, guardo chi ha la recensione più recente
-                        Long d1 = h1.getDistanzaUltimaRecensione();
-                        Long d2 = h2.getDistanzaUltimaRecensione();
-                        if ( (d1 != null && (d2 == null || (d1 < d2) )) ) {
+                        // a parità di rankValue, guardo chi ha la recensione più recente (NO_REVIEWS è il valore massimo)
+                        long d1 = h1.getDistanzaUltimaRecensione();
+                        long d2 = h2.getDistanzaUltimaRecensione();
+                        if (d1 < d2) {
                             // h1 > h2
                             return -1;
-                        } else if ( (d2 != null && (d1 == null || (d1 > d2) )) ) {
+                        } else if (d1 > d2) {
                             // h1 < h2
                             return 1;
                         } else {
@@ -394,60 +996,117 @@ public class DatabaseManager {
                     }
                 });
 
-                // dopo aver ordinato in base alla media pesata, avvaloro il campo rank
+                // dopo aver ordinato in base alla media pesata, avvaloro il campo rank. Gli snapshot precedenti
+                // condividono gli hotel ma hanno i loro rank, quindi le pagine già servite non cambiano
+                int[] ranks = new int[list.size()];
                 for (int i = 0; i < list.size(); i++) {
+                    ranks[i] = i + 1;
                     list.get(i).setRank(i + 1);
                 }
 
+                // creo una nuova versione solo se l'ordine (o un rank) è cambiato, così le pagine già servite restano valide
+                if (!list.equals(snapshot) || !Arrays.equals(ranks, ranking.ranksOf(snapshot))) {
+                    localRankings.put(citta, new CityRanking(rankingVersion.incrementAndGet(), list, ranks, ranking));
+                    responseCache.invalidateCity(citta, list);
+                    event.citiesChanged++;
+                    event.hotelsTouched += list.size();
+                }
+
                 Hotel firstPos = list.get(0);
 
                 if (firstPos.getId() != oldFirstPos.getId()) {
                     // la prima posizione è nuova, la aggiungo alla map ritornata
                     newFirstPos.put(citta, firstPos);
                 }
-            });
+            }
 
             isHotelListModified.set(true);
         }
 
+        ServerMetrics.getInstance().recordRankingUpdate(System.nanoTime() - start);
+        if (event.shouldCommit()) {
+            event.cities = localRankings.size();
+            event.hotels = hotels.size();
+            event.firstPositionsChanged = newFirstPos.size();
+            event.commit();
+        }
         return newFirstPos;
     }
 
 
     /**
-     * Aggiorna i rankvalue di tutti gli hotel
+     * Accumula i valori necessari al calcolo del rank di un hotel visitandone le recensioni, senza creare oggetti.
+     * Viene riutilizzato per tutti gli hotel
+     */
+    private static final class RankAccumulator implements ReviewStore.ReviewVisitor {
+        private final long dateNow;
+        private int count;
+        private double sumValori;
+        private double sumPesi;
+        private long minDiffDays;
+
+        private RankAccumulator(long dateNow) {
+            this.dateNow = dateNow;
+        }
+
+        private void reset() {
+            count = 0;
+            sumValori = 0;
+            sumPesi = 0;
+            minDiffDays = Long.MAX_VALUE;
+        }
+
+        @Override
+        public void visit(int userId, int hotelId, long scores, long timestamp) {
+            // prendo la differenza di giorni (86400000 = 1000ms * 60s * 60m * 24h), +1 per evitare di avere 0 quando una recensione è nello stesso giorno
+            long diffDays = ((dateNow - timestamp) / 86400000) + 1;
+            if (diffDays < minDiffDays) minDiffDays = diffDays;
+            sumValori += CompactReview.scoreHundredths(scores, CompactReview.GLOBAL) / 100.0 / diffDays;
+            sumPesi += 1.0/diffDays;
+            count++;
+        }
+
+        /**
+         * Aggiunge le recensioni archiviate dell'hotel, pesate tutte con la distanza del loro giorno medio
+         */
+        private void addArchived(ReviewArchive.HotelTerms terms) {
+            long diffDays = Math.max(1, terms.meanDiffDays(dateNow));
+            sumValori += terms.getSumHundredths(CompactReview.GLOBAL) / 100.0 / diffDays;
+            sumPesi += (double) terms.getCount() / diffDays;
+            count += terms.getCount();
+            minDiffDays = Math.min(minDiffDays, ((dateNow - terms.getNewestTimestamp()) / 86400000) + 1);
+        }
+    }
+
+
+    /**
+     * Aggiorna i rankvalue di tutti gli hotel e la loro posizione nella classifica globale
      */
     private void updateRanks() {
         // per dare peso alle recensioni in base a quanto sono recenti
-        long dateNow = System.currentTimeMillis();
+        RankAccumulator acc = new RankAccumulator(System.currentTimeMillis());
         for (Hotel hotel : hotels.values()) {
-            List<UserReview> hotelReviews = getHotelReviews(hotel.getId());
-            if (!hotelReviews.isEmpty()) {
-                double sumValori = 0;
-                double sumPesi = 0;
-                long minDiffDays = Long.MAX_VALUE;
-
-                for (UserReview review : hotelReviews) {
-                    // prendo la differenza di giorni (86400000 = 1000ms * 60s * 60m * 24h), +1 per evitare di avere 0 quando una recensione è nello stesso giorno
-                    long diffDays = ((dateNow - review.getTimestamp()) / 86400000) + 1;
-                    if (diffDays < minDiffDays) minDiffDays = diffDays;
-                    sumValori += review.getRating() / diffDays;
-                    sumPesi += 1.0/diffDays;
-                }
-
-                double media = (sumValori/sumPesi);
+            acc.reset();
+            reviews.forEachOfHotel(hotel.getId(), acc);
+            ReviewArchive.HotelTerms archived = archive.get(hotel.getId());
+            if (archived != null) acc.addArchived(archived);
+            if (acc.count > 0) {
+                double media = (acc.sumValori/acc.sumPesi);
                 // per risolvere problemi con la precisione di macchina, se la media contiene riporti in fondo, normalizzo a 5.0
                 if (Double.compare(media, 5.0) > 0) media = 5.0;
 
                 // calcolo la media pesata a cui aggiungo il numero di recensioni (a parità di media preferisco quelle con più recensioni)
-                hotel.setRankValue( media + hotelReviews.size() );
+                hotel.setRankValue( media + acc.count );
 
-                hotel.setDistanzaUltimaRecensione(minDiffDays);
+                hotel.setDistanzaUltimaRecensione(acc.minDiffDays);
             } else {
-                hotel.setRankValue(null);
-                hotel.setDistanzaUltimaRecensione(null);
+                hotel.setRankValue(Hotel.NO_RANK_VALUE);
+                hotel.setDistanzaUltimaRecensione(Hotel.NO_REVIEWS);
             }
+            // sposta l'hotel nella classifica globale solo se i suoi valori sono cambiati
+            globalLeaderboard.update(hotel);
         }
+        globalLeaderboard.publish();
     }
 
 }
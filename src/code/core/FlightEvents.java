@@ -0,0 +1,100 @@
+package code.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Eventi di Java Flight Recorder emessi dal server. Quando JFR non sta registrando un evento costa solo il controllo
+ * in commit(), quindi possono restare attivi anche in produzione; con una registrazione continua si possono correlare
+ * i picchi di latenza delle richieste con i salvataggi su disco e con i ricalcoli delle classifiche.<br>
+ * Per registrarli: java -XX:StartFlightRecording=filename=hotelier.jfr ... (tutti gli eventi sono nella categoria
+ * HOTELIER)
+ */
+public final class FlightEvents {
+
+    private FlightEvents() {}
+
+    @Name("hotelier.Command")
+    @Label("Comando")
+    @Description("Esecuzione di un comando ricevuto da un client, dalla lettura del comando all'invio della risposta")
+    @Category({"HOTELIER", "Richieste"})
+    @StackTrace(false)
+    static final class CommandEvent extends Event {
+        @Label("Comando")
+        String command;
+
+        @Label("Status code")
+        String status;
+
+        @Label("Utente")
+        String user;
+
+        @Label("Dimensione della richiesta")
+        @DataAmount
+        int requestBytes;
+
+        @Label("Dimensione della risposta")
+        @DataAmount
+        int responseBytes;
+    }
+
+    @Name("hotelier.PersistFile")
+    @Label("Salvataggio file")
+    @Description("Scrittura su disco di uno dei file del database da parte di persistData")
+    @Category({"HOTELIER", "Database"})
+    @StackTrace(false)
+    static final class PersistFileEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Byte scritti")
+        @DataAmount
+        long bytesWritten;
+    }
+
+    @Name("hotelier.RankingUpdate")
+    @Label("Aggiornamento classifiche")
+    @Description("Ricalcolo dei rank e delle classifiche locali")
+    @Category({"HOTELIER", "Database"})
+    @StackTrace(false)
+    static final class RankingUpdateEvent extends Event {
+        @Label("Città")
+        int cities;
+
+        @Label("Città con ordine cambiato")
+        int citiesChanged;
+
+        @Label("Hotel")
+        int hotels;
+
+        @Label("Hotel nelle città con ordine cambiato")
+        int hotelsTouched;
+
+        @Label("Prime posizioni cambiate")
+        int firstPositionsChanged;
+    }
+
+    @Name("hotelier.MulticastSend")
+    @Label("Notifica multicast")
+    @Description("Invio sul gruppo multicast delle nuove prime posizioni delle classifiche")
+    @Category({"HOTELIER", "Notifiche"})
+    @StackTrace(false)
+    static final class MulticastSendEvent extends Event {
+        @Label("Città")
+        int cities;
+
+        @Label("Byte inviati")
+        @DataAmount
+        int bytes;
+
+        @Label("Inviato")
+        boolean sent;
+    }
+}
@@ -0,0 +1,153 @@
+package code.core;
+
+import code.entities.Hotel;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Classifica globale degli hotel (di tutte le città), mantenuta ordinata in modo incrementale con gli stessi criteri
+ * delle classifiche locali: rankValue decrescente, poi recensione più recente, poi id. Ogni volta che i valori di un
+ * hotel cambiano viene spostato solo quell'hotel, quindi non serve mai ordinare tutta la classifica. Contiene solo gli
+ * hotel con almeno una recensione.<br>
+ * La classifica viene modificata da un solo thread (durante il calcolo dei rank), che alla fine pubblica una copia
+ * immutabile dei primi K hotel con {@link #publish()}: chi legge la classifica lo fa sull'ultima copia pubblicata,
+ * quindi non vede mai un hotel tolto e non ancora reinserito, né due volte lo stesso hotel. La copia viene rifatta,
+ * in O(K), solo se dall'ultima pubblicazione è cambiato qualcosa tra i primi K: gli spostamenti degli hotel più in
+ * basso non costano nulla ai lettori.
+ */
+public class GlobalLeaderboard {
+
+    /**
+     * Valori di un hotel al momento dell'inserimento in classifica. È immutabile, così la sua posizione nel set
+     * ordinato non può cambiare mentre è inserito
+     */
+    private static final class Entry {
+        private final int hotelId;
+        private final double rankValue;
+        private final long distanzaUltimaRecensione;
+
+        private Entry(int hotelId, double rankValue, long distanzaUltimaRecensione) {
+            this.hotelId = hotelId;
+            this.rankValue = rankValue;
+            this.distanzaUltimaRecensione = distanzaUltimaRecensione;
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = (e1, e2) -> {
+        // rankValue DECRESCENTE
+        int c = Double.compare(e2.rankValue, e1.rankValue);
+        if (c != 0) return c;
+        // a parità di rankValue, chi ha la recensione più recente
+        c = Long.compare(e1.distanzaUltimaRecensione, e2.distanzaUltimaRecensione);
+        if (c != 0) return c;
+        return Integer.compare(e1.hotelId, e2.hotelId);
+    };
+
+    // usati solo dal thread che aggiorna la classifica
+    private final TreeSet<Entry> ranking = new TreeSet<>(ORDER);
+    // chiave -> id hotel, valore -> la sua entry attualmente in classifica
+    private final HashMap<Integer, Entry> entries = new HashMap<>();
+    // numero di hotel pubblicati
+    private final int size;
+    // ultima entry pubblicata se la classifica ha almeno 'size' hotel, altrimenti null (ogni modifica è tra i primi K)
+    private Entry boundary = null;
+    private boolean changed = false;
+
+    // id dei primi 'size' hotel in ordine di classifica, come all'ultima publish()
+    private volatile int[] published = new int[0];
+
+    /**
+     * @param size numero di hotel della classifica visibili ai lettori (K)
+     */
+    public GlobalLeaderboard(int size) {
+        if (size <= 0) throw new IllegalArgumentException("Dimensione della classifica non valida: " + size);
+        this.size = size;
+    }
+
+    /**
+     * @return {@code true} se l'entry è tra i primi K hotel pubblicati, o lo sarebbe se venisse inserita
+     */
+    private boolean reachesTop(Entry e) {
+        return boundary == null || ORDER.compare(e, boundary) <= 0;
+    }
+
+    /**
+     * Aggiorna la posizione dell'hotel in base ai suoi rankValue e distanzaUltimaRecensione attuali. Deve essere
+     * chiamato da un solo thread alla volta (viene chiamato durante il calcolo dei rank); la modifica è visibile ai
+     * lettori solo dopo {@link #publish()}
+     */
+    public void update(Hotel hotel) {
+        int id = hotel.getId();
+        Entry old = entries.get(id);
+
+        if (!hotel.hasRankValue()) {
+            if (old != null) {
+                entries.remove(id);
+                ranking.remove(old);
+                if (reachesTop(old)) changed = true;
+            }
+            return;
+        }
+
+        if (old != null && old.rankValue == hotel.getRankValue()
+                && old.distanzaUltimaRecensione == hotel.getDistanzaUltimaRecensione()) {
+            // nessun cambiamento, la posizione resta la stessa
+            return;
+        }
+
+        Entry e = new Entry(id, hotel.getRankValue(), hotel.getDistanzaUltimaRecensione());
+        if (old != null) ranking.remove(old);
+        ranking.add(e);
+        entries.put(id, e);
+        if ((old != null && reachesTop(old)) || reachesTop(e)) changed = true;
+    }
+
+    /**
+     * Rende visibili ai lettori i primi K hotel, se sono cambiati dall'ultima volta. Va chiamato dallo stesso thread di
+     * {@link #update(Hotel)}, dopo aver aggiornato tutti gli hotel
+     */
+    public void publish() {
+        if (!changed) return;
+
+        int[] ids = new int[Math.min(size, ranking.size())];
+        Entry last = null;
+        int i = 0;
+        for (Entry e : ranking) {
+            if (i == ids.length) break;
+            ids[i++] = e.hotelId;
+            last = e;
+        }
+        boundary = ids.length == size ? last : null;
+        published = ids;
+        changed = false;
+    }
+
+    /**
+     * @return il numero massimo di hotel restituiti da {@link #top(int, Map)}
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @param k numero massimo di hotel da restituire
+     * @param hotels hotel correnti per id, usati per restituire la versione aggiornata di ogni hotel
+     * @return i primi k hotel della classifica globale, al più {@link #getSize()}
+     */
+    public List<Hotel> top(int k, Map<Integer, Hotel> hotels) {
+        int[] ids = published;
+        List<Hotel> top = new ArrayList<>(Math.min(k, ids.length));
+        for (int i = 0; i < ids.length && top.size() < k; i++) {
+            Hotel h = hotels.get(ids[i]);
+            if (h != null) top.add(h);
+        }
+        return top;
+    }
+}
@@ -0,0 +1,186 @@
+package code.core;
+
+import code.entities.CompactReview;
+import code.utils.ConcurrentLongHashMap;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Memorizzazione delle recensioni sullo heap, come oggetti {@link CompactReview}. Oltre alla mappa per chiave
+ * (utente, hotel) mantiene per ogni hotel un array delle sue recensioni e per ogni utente un insieme ordinato
+ * ({@link ReviewStore#USER_ORDER}), così visitare le recensioni di un hotel o una pagina di recensioni di un utente
+ * non richiede di scorrerle tutte.
+ */
+public class HeapReviewStore implements ReviewStore {
+
+    // chiave -> (userId, hotelId) impacchettati in un long, vedi key()
+    private final ConcurrentLongHashMap<CompactReview> byKey;
+
+    // chiave -> id hotel
+    private final ConcurrentHashMap<Integer, ReviewList> byHotel = new ConcurrentHashMap<>();
+    // chiave -> id utente
+    private final ConcurrentHashMap<Integer, UserReviews> byUser = new ConcurrentHashMap<>();
+
+    /**
+     * Recensioni di un hotel. Le scritture sono sincronizzate, anche se il lock non è mai conteso. L'elemento viene scritto prima di incrementare
+     * 'size', e un array più grande viene pubblicato prima di usarlo, quindi un lettore senza lock che legge prima
+     * 'size' e poi 'items' vede sempre elementi validi.<br>
+     * Una rimozione pubblica una copia compattata dell'array (della stessa lunghezza) prima di decrementare 'size': un
+     * lettore che ha letto la 'size' vecchia trova al più un elemento null in fondo, che viene saltato
+     */
+    private static final class ReviewList {
+        private volatile CompactReview[] items = new CompactReview[4];
+        private volatile int size;
+
+        private synchronized void add(CompactReview review) {
+            CompactReview[] a = items;
+            if (size == a.length) {
+                a = Arrays.copyOf(a, a.length * 2);
+                items = a;
+            }
+            a[size] = review;
+            size = size + 1;
+        }
+
+        private synchronized void replace(CompactReview old, CompactReview review) {
+            CompactReview[] a = items;
+            // le sostituzioni sono rare, cerco partendo dalle recensioni più recenti
+            for (int i = size - 1; i >= 0; i--) {
+                if (a[i] == old) {
+                    a[i] = review;
+                    return;
+                }
+            }
+            add(review);
+        }
+
+        private synchronized void remove(CompactReview review) {
+            CompactReview[] a = items;
+            int n = size;
+            for (int i = n - 1; i >= 0; i--) {
+                if (a[i] == review) {
+                    CompactReview[] copy = new CompactReview[a.length];
+                    System.arraycopy(a, 0, copy, 0, i);
+                    System.arraycopy(a, i + 1, copy, i, n - i - 1);
+                    items = copy;
+                    size = n - 1;
+                    return;
+                }
+            }
+        }
+
+        private void forEach(ReviewVisitor visitor) {
+            int n = size;
+            CompactReview[] a = items;
+            for (int i = 0; i < n; i++) {
+                if (a[i] != null) visit(a[i], visitor);
+            }
+        }
+    }
+
+    /**
+     * Recensioni di un utente, che possono arrivare da più shard insieme. Il contatore è separato perché la size() di
+     * {@link ConcurrentSkipListSet} scorre tutti gli elementi. Una sostituzione rimuove la recensione vecchia prima di
+     * inserire quella nuova: un lettore concorrente può non vedere per un istante quella recensione
+     */
+    private static final class UserReviews {
+        private final ConcurrentSkipListSet<CompactReview> set = new ConcurrentSkipListSet<>(USER_ORDER);
+        private final AtomicInteger size = new AtomicInteger();
+    }
+
+    /**
+     * @param concurrencyLevel numero di segmenti della mappa per chiave
+     */
+    public HeapReviewStore(int concurrencyLevel) {
+        byKey = new ConcurrentLongHashMap<>(concurrencyLevel);
+    }
+
+    static long key(int userId, int hotelId) {
+        return ((long) userId << 32) | (hotelId & 0xffffffffL);
+    }
+
+    private static void visit(CompactReview r, ReviewVisitor visitor) {
+        visitor.visit(r.getUserId(), r.getHotelId(), r.getScores(), r.getTimestamp());
+    }
+
+    @Override
+    public CompactReview put(CompactReview review) {
+        CompactReview previous = byKey.put(key(review.getUserId(), review.getHotelId()), review);
+
+        ReviewList hotelReviews = byHotel.computeIfAbsent(review.getHotelId(), k -> new ReviewList());
+        UserReviews userReviews = byUser.computeIfAbsent(review.getUserId(), k -> new UserReviews());
+        if (previous == null) {
+            hotelReviews.add(review);
+            userReviews.size.incrementAndGet();
+        } else {
+            hotelReviews.replace(previous, review);
+            userReviews.set.remove(previous);
+        }
+        userReviews.set.add(review);
+
+        return previous;
+    }
+
+    @Override
+    public CompactReview get(int userId, int hotelId) {
+        return byKey.get(key(userId, hotelId));
+    }
+
+    @Override
+    public CompactReview remove(int userId, int hotelId) {
+        CompactReview removed = byKey.remove(key(userId, hotelId));
+        if (removed == null) return null;
+
+        ReviewList hotelReviews = byHotel.get(hotelId);
+        if (hotelReviews != null) hotelReviews.remove(removed);
+        UserReviews userReviews = byUser.get(userId);
+        if (userReviews != null && userReviews.set.remove(removed)) userReviews.size.decrementAndGet();
+        return removed;
+    }
+
+    @Override
+    public void forEachOfHotel(int hotelId, ReviewVisitor visitor) {
+        ReviewList hotelReviews = byHotel.get(hotelId);
+        if (hotelReviews != null) hotelReviews.forEach(visitor);
+    }
+
+    @Override
+    public void forEachOfUser(int userId, ReviewVisitor visitor) {
+        UserReviews userReviews = byUser.get(userId);
+        if (userReviews != null) userReviews.set.forEach(r -> visit(r, visitor));
+    }
+
+    @Override
+    public void forEachOfUser(int userId, long afterTimestamp, int afterHotel, int limit, ReviewVisitor visitor) {
+        UserReviews userReviews = byUser.get(userId);
+        if (userReviews == null || limit <= 0) return;
+
+        CompactReview after = new CompactReview(userId, afterHotel, 0, afterTimestamp);
+        int visited = 0;
+        for (CompactReview r : userReviews.set.tailSet(after, false)) {
+            visit(r, visitor);
+            if (++visited == limit) break;
+        }
+    }
+
+    @Override
+    public int countOfUser(int userId) {
+        UserReviews userReviews = byUser.get(userId);
+        return userReviews == null ? 0 : userReviews.size.get();
+    }
+
+    @Override
+    public void forEach(ReviewVisitor visitor) {
+        byKey.forEachValue(r -> visit(r, visitor));
+    }
+
+    @Override
+    public int size() {
+        return byKey.size();
+    }
+}
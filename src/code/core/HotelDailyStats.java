@@ -0,0 +1,143 @@
+package code.core;
+
+import code.entities.CompactReview;
+import code.entities.Ratings;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Statistiche giornaliere delle recensioni di un hotel negli ultimi {@value #DAYS} giorni. Per ogni giorno un buffer
+ * circolare contiene il numero di recensioni, la somma dei voti di ogni categoria (in centesimi) e l'istogramma dei
+ * voti di ogni categoria. Una recensione aggiorna solo lo slot del suo giorno, e le statistiche di una finestra di N
+ * giorni si ottengono sommando al più N slot, senza mai leggere le singole recensioni.<br>
+ * Uno slot viene riutilizzato quando arriva una recensione di un giorno più recente con lo stesso indice, quindi i
+ * giorni più vecchi di {@value #DAYS} vengono dimenticati senza bisogno di pulizie periodiche.<br>
+ * Le statistiche contano solo le recensioni in memoria: una recensione archiviata (vedi {@link ReviewArchive}) viene
+ * tolta anche da qui, così le statistiche sono le stesse prima e dopo un riavvio, quando vengono ricostruite da
+ * Reviews.json. Con "database.archiveAfterDays" inferiore a {@value #DAYS} i giorni più vecchi restano quindi vuoti.
+ */
+public class HotelDailyStats {
+    public static final int DAYS = 90;
+    private static final long DAY_MILLIS = 86400000L;
+
+    // categorie nell'ordine degli indici di CompactReview (GLOBAL, CLEANING, POSITION, SERVICES, QUALITY)
+    private static final String[] CATEGORIES = {"rate", "cleaning", "position", "services", "quality"};
+    private static final int NUM_CATEGORIES = CATEGORIES.length;
+    // fasce dell'istogramma: [0,1) [1,2) [2,3) [3,4) [4,5]
+    public static final int BINS = 5;
+
+    private final long[] day = new long[DAYS];
+    private final int[] count = new int[DAYS];
+    private final long[] sums = new long[DAYS * NUM_CATEGORIES];
+    private final int[] histograms = new int[DAYS * NUM_CATEGORIES * BINS];
+
+    public HotelDailyStats() {
+        Arrays.fill(day, Long.MIN_VALUE);
+    }
+
+    /**
+     * Statistiche di una finestra di giorni, nel formato restituito ai client
+     */
+    public static class Window {
+        private final int days;
+        private final int count;
+        private final Double rate;
+        private final Ratings ratings;
+        // chiave -> categoria, valore -> numero di voti in ogni fascia
+        private final LinkedHashMap<String, int[]> histograms = new LinkedHashMap<>();
+
+        private Window(int days, int count, long[] sums, int[] bins) {
+            this.days = days;
+            this.count = count;
+            this.rate = count == 0 ? null : average(sums[CompactReview.GLOBAL], count);
+            this.ratings = count == 0 ? null : new Ratings(average(sums[CompactReview.CLEANING], count),
+                    average(sums[CompactReview.POSITION], count), average(sums[CompactReview.SERVICES], count),
+                    average(sums[CompactReview.QUALITY], count));
+            for (int c = 0; c < NUM_CATEGORIES; c++) {
+                histograms.put(CATEGORIES[c], Arrays.copyOfRange(bins, c * BINS, (c + 1) * BINS));
+            }
+        }
+
+        public int getDays() {
+            return days;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public Double getRate() {
+            return rate;
+        }
+
+        public Ratings getRatings() {
+            return ratings;
+        }
+    }
+
+    private static double average(long sumHundredths, int count) {
+        return Math.round((double) sumHundredths / count) / 100.0;
+    }
+
+    static long dayOf(long timestamp) {
+        return Math.floorDiv(timestamp, DAY_MILLIS);
+    }
+
+    private static int bin(int hundredths) {
+        return Math.min(BINS - 1, hundredths / 100);
+    }
+
+    /**
+     * Aggiunge (sign = 1) o toglie (sign = -1) una recensione dalle statistiche del suo giorno. Le recensioni più
+     * vecchie di {@value #DAYS} giorni vengono ignorate
+     */
+    public synchronized void add(CompactReview review, int sign, long now) {
+        long d = dayOf(review.getTimestamp());
+        if (d <= dayOf(now) - DAYS) return;
+
+        int slot = (int) Math.floorMod(d, (long) DAYS);
+        if (day[slot] != d) {
+            // nello slot c'è un giorno più recente: questa recensione è già fuori dal buffer
+            if (sign < 0 || day[slot] > d) return;
+            // nello slot c'è un giorno più vecchio di DAYS giorni: lo riutilizzo
+            day[slot] = d;
+            count[slot] = 0;
+            Arrays.fill(sums, slot * NUM_CATEGORIES, (slot + 1) * NUM_CATEGORIES, 0L);
+            Arrays.fill(histograms, slot * NUM_CATEGORIES * BINS, (slot + 1) * NUM_CATEGORIES * BINS, 0);
+        }
+
+        count[slot] += sign;
+        for (int c = 0; c < NUM_CATEGORIES; c++) {
+            int h = review.getHundredths(c);
+            sums[slot * NUM_CATEGORIES + c] += sign * h;
+            histograms[(slot * NUM_CATEGORIES + c) * BINS + bin(h)] += sign;
+        }
+    }
+
+    /**
+     * @param days numero di giorni della finestra (oggi compreso), al massimo {@value #DAYS}
+     * @return le statistiche delle recensioni degli ultimi 'days' giorni
+     */
+    public synchronized Window window(int days, long now) {
+        long today = dayOf(now);
+        int n = 0;
+        long[] windowSums = new long[NUM_CATEGORIES];
+        int[] windowBins = new int[NUM_CATEGORIES * BINS];
+
+        for (long d = today - Math.min(days, DAYS) + 1; d <= today; d++) {
+            int slot = (int) Math.floorMod(d, (long) DAYS);
+            if (day[slot] != d) continue;
+            n += count[slot];
+            for (int c = 0; c < NUM_CATEGORIES; c++) {
+                windowSums[c] += sums[slot * NUM_CATEGORIES + c];
+                for (int b = 0; b < BINS; b++) {
+                    windowBins[c * BINS + b] += histograms[(slot * NUM_CATEGORIES + c) * BINS + b];
+                }
+            }
+        }
+        return new Window(days, n, windowSums, windowBins);
+    }
+}
@@ -0,0 +1,110 @@
+package code.core;
+
+import code.entities.Hotel;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Indice invertito per la ricerca testuale degli hotel. Nome, descrizione, città e servizi di ogni hotel vengono
+ * divisi in parole (minuscole e senza accenti), e per ogni parola l'indice contiene gli id degli hotel in cui compare.
+ * Le parole sono ordinate, quindi tutte le parole che iniziano con un prefisso sono un intervallo contiguo della mappa.
+ */
+public class HotelSearchIndex {
+    // chiave -> parola, valore -> id degli hotel che la contengono
+    private final ConcurrentSkipListMap<String, Set<Integer>> postings = new ConcurrentSkipListMap<>();
+    // chiave -> id hotel, valore -> parole indicizzate per l'hotel (servono per rimuoverle quando l'hotel cambia)
+    private final ConcurrentHashMap<Integer, Set<String>> tokensByHotel = new ConcurrentHashMap<>();
+
+    /**
+     * Divide un testo in parole: minuscole, senza accenti, separate da qualunque carattere che non sia una lettera o
+     * una cifra
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) return tokens;
+
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue;
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            } else if (sb.length() > 0) {
+                tokens.add(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        if (sb.length() > 0) tokens.add(sb.toString());
+        return tokens;
+    }
+
+    private static Set<String> tokensOf(Hotel hotel) {
+        Set<String> tokens = new HashSet<>();
+        tokens.addAll(tokenize(hotel.getName()));
+        tokens.addAll(tokenize(hotel.getDescription()));
+        tokens.addAll(tokenize(hotel.getCity()));
+        for (String service : hotel.getServices()) tokens.addAll(tokenize(service));
+        return tokens;
+    }
+
+    /**
+     * Indicizza un hotel, sostituendo le parole indicizzate per una sua versione precedente. Le chiamate per lo stesso
+     * hotel non devono essere concorrenti (vengono fatte da {@link DatabaseManager#insertOrUpdateHotel(Hotel)}, che è
+     * sincronizzato)
+     */
+    public void index(Hotel hotel) {
+        int id = hotel.getId();
+        Set<String> tokens = tokensOf(hotel);
+        Set<String> old = tokensByHotel.put(id, tokens);
+
+        // prima aggiungo le parole nuove e poi tolgo quelle vecchie, così una ricerca concorrente trova sempre l'hotel
+        for (String t : tokens) {
+            postings.computeIfAbsent(t, k -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+        if (old != null) {
+            for (String t : old) {
+                if (tokens.contains(t)) continue;
+                postings.computeIfPresent(t, (k, ids) -> {
+                    ids.remove(id);
+                    return ids.isEmpty() ? null : ids;
+                });
+            }
+        }
+    }
+
+    /**
+     * Cerca gli hotel che contengono tutte le parole della query. Ogni parola della query è trattata come prefisso:
+     * "pisc" trova gli hotel con "Piscina"
+     * @return gli id degli hotel trovati, vuoto se la query non contiene parole
+     */
+    public Set<Integer> search(String query) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty()) return Collections.emptySet();
+
+        // parto dai prefissi più lunghi, che di solito hanno meno risultati
+        terms.sort(Comparator.comparingInt(String::length).reversed());
+
+        Set<Integer> result = null;
+        for (String term : terms) {
+            Set<Integer> matches = new HashSet<>();
+            for (Set<Integer> ids : postings.subMap(term, true, term + Character.MAX_VALUE, false).values()) {
+                if (result == null) {
+                    matches.addAll(ids);
+                } else {
+                    for (Integer id : ids) {
+                        if (result.contains(id)) matches.add(id);
+                    }
+                }
+            }
+            result = matches;
+            if (result.isEmpty()) break;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,366 @@
+package code.core;
+
+import code.entities.CompactReview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Memorizzazione delle recensioni fuori dallo heap. Ogni recensione è un record a lunghezza fissa di
+ * {@value #RECORD_SIZE} byte dentro segmenti {@link ByteBuffer} diretti oppure mappati su file:<br>
+ * - userId (int), hotelId (int), voti impacchettati (long), timestamp (long)<br>
+ * - prossimo record dello stesso hotel (int), 4 byte non usati che tengono i record allineati<br><br>
+ * L'indice per hotel è quindi una lista concatenata dentro i record stessi, e sullo heap restano solo le teste delle
+ * liste e i contatori. L'indice per utente è invece un array di numeri di record ordinato secondo
+ * {@link ReviewStore#USER_ORDER} (4 byte sullo heap per recensione), così una pagina di recensioni di un utente si
+ * trova con una ricerca binaria. L'array viene sostituito con una copia ad ogni modifica: le recensioni di un utente
+ * sono poche e cambiano raramente, mentre i lettori non prendono lock.<br>
+ * I record non vengono mai spostati né riutilizzati: una recensione rimossa (archiviata) viene solo scollegata dagli
+ * indici, e lo spazio torna libero al riavvio successivo, quando le recensioni archiviate non vengono più caricate.
+ * Una nuova recensione dello stesso utente per lo stesso hotel sovrascrive voti e timestamp del record esistente: un
+ * lettore concorrente può vedere per un istante i voti nuovi con il timestamp vecchio, o la recensione fuori posto in
+ * una pagina, cosa accettabile per medie, ranking e cronologia.<br>
+ * I file mappati sono solo un'area di appoggio (il file viene ricreato ad ogni avvio): i dati persistenti restano in
+ * Reviews.json.
+ */
+public class OffHeapReviewStore implements ReviewStore {
+    static final int RECORD_SIZE = 32;
+    private static final int USER_ID = 0;
+    private static final int HOTEL_ID = 4;
+    private static final int SCORES = 8;
+    private static final int TIMESTAMP = 16;
+    private static final int NEXT_IN_HOTEL = 24;
+
+    // 2^20 record per segmento (32 MB)
+    private static final int SEGMENT_BITS = 20;
+    private static final int SEGMENT_RECORDS = 1 << SEGMENT_BITS;
+    private static final int MAX_SEGMENTS = Integer.MAX_VALUE / SEGMENT_RECORDS + 1;
+
+    // valore delle teste e dei puntatori per "nessun record"
+    private static final int NONE = -1;
+
+    private final AtomicReferenceArray<ByteBuffer> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+    private final AtomicInteger nextRecord = new AtomicInteger();
+    private final FileChannel channel;
+
+    private final IntChunks hotelHeads = new IntChunks(NONE);
+    private final IntChunks hotelCounts = new IntChunks(0);
+    // id utente -> record delle sue recensioni in ordine USER_ORDER, aggiornati con compute() (una copia ad ogni modifica)
+    private final ConcurrentHashMap<Integer, int[]> byUser = new ConcurrentHashMap<>();
+
+    // id hotel più alto con almeno una recensione e numero di recensioni già collegate alle liste
+    private final AtomicInteger maxHotelId = new AtomicInteger(-1);
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Array di int atomici che cresce a blocchi, indicizzato per id di hotel o utente (ids non negativi). Le posizioni
+     * mai scritte valgono 'emptyValue'
+     */
+    private static final class IntChunks {
+        private static final int CHUNK_BITS = 12;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+        private final int emptyValue;
+        private volatile AtomicIntegerArray[] chunks = new AtomicIntegerArray[16];
+
+        private IntChunks(int emptyValue) {
+            this.emptyValue = emptyValue;
+        }
+
+        private int get(int index) {
+            AtomicIntegerArray[] cs = chunks;
+            int c = index >>> CHUNK_BITS;
+            AtomicIntegerArray chunk = c < cs.length ? cs[c] : null;
+            // i valori sono salvati come differenza da emptyValue, così un blocco appena creato vale emptyValue
+            return chunk == null ? emptyValue : chunk.get(index & (CHUNK_SIZE - 1)) + emptyValue;
+        }
+
+        private AtomicIntegerArray chunkFor(int index) {
+            int c = index >>> CHUNK_BITS;
+            AtomicIntegerArray[] cs = chunks;
+            if (c < cs.length && cs[c] != null) return cs[c];
+
+            synchronized (this) {
+                cs = chunks;
+                if (c >= cs.length) cs = Arrays.copyOf(cs, Math.max(cs.length * 2, c + 1));
+                if (cs[c] == null) cs[c] = new AtomicIntegerArray(CHUNK_SIZE);
+                chunks = cs;
+                return cs[c];
+            }
+        }
+
+        private void set(int index, int value) {
+            chunkFor(index).set(index & (CHUNK_SIZE - 1), value - emptyValue);
+        }
+
+        private void increment(int index) {
+            chunkFor(index).incrementAndGet(index & (CHUNK_SIZE - 1));
+        }
+
+        private void decrement(int index) {
+            chunkFor(index).decrementAndGet(index & (CHUNK_SIZE - 1));
+        }
+    }
+
+    /**
+     * @param mappedFile se non null, i segmenti vengono mappati in memoria su questo file invece di essere allocati
+     *                   come buffer diretti
+     * @throws IOException se non è possibile creare il file
+     */
+    public OffHeapReviewStore(File mappedFile) throws IOException {
+        if (mappedFile != null) {
+            RandomAccessFile raf = new RandomAccessFile(mappedFile, "rw");
+            raf.setLength(0);
+            channel = raf.getChannel();
+        } else {
+            channel = null;
+        }
+    }
+
+    private ByteBuffer segment(int record) {
+        return segments.get(record >>> SEGMENT_BITS);
+    }
+
+    private static int offset(int record, int field) {
+        return (record & (SEGMENT_RECORDS - 1)) * RECORD_SIZE + field;
+    }
+
+    /**
+     * Restituisce il segmento che contiene il record, allocandolo se è il primo record del segmento
+     */
+    private ByteBuffer segmentForWrite(int record) {
+        int s = record >>> SEGMENT_BITS;
+        ByteBuffer segment = segments.get(s);
+        if (segment != null) return segment;
+
+        synchronized (segments) {
+            segment = segments.get(s);
+            if (segment == null) {
+                try {
+                    segment = channel != null
+                            ? channel.map(FileChannel.MapMode.READ_WRITE, (long) s * SEGMENT_RECORDS * RECORD_SIZE, (long) SEGMENT_RECORDS * RECORD_SIZE)
+                            : ByteBuffer.allocateDirect(SEGMENT_RECORDS * RECORD_SIZE);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Impossibile mappare un nuovo segmento di recensioni", e);
+                }
+                segment.order(ByteOrder.nativeOrder());
+                segments.set(s, segment);
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Cerca il record di una coppia (utente, hotel) scorrendo il più corto tra l'indice dell'utente e quello dell'hotel
+     */
+    private int find(int userId, int hotelId) {
+        int[] userRecords = byUser.get(userId);
+        if (userRecords == null) return NONE;
+        if (userRecords.length <= hotelCounts.get(hotelId)) {
+            for (int r : userRecords) {
+                if (segment(r).getInt(offset(r, HOTEL_ID)) == hotelId) return r;
+            }
+            return NONE;
+        }
+        for (int r = hotelHeads.get(hotelId); r != NONE; r = segment(r).getInt(offset(r, NEXT_IN_HOTEL))) {
+            if (segment(r).getInt(offset(r, USER_ID)) == userId) return r;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return {@code true} se il record viene dopo la posizione (timestamp, hotelId) nell'ordine USER_ORDER
+     */
+    private boolean isAfter(int r, long timestamp, int hotelId) {
+        ByteBuffer b = segment(r);
+        long t = b.getLong(offset(r, TIMESTAMP));
+        return t < timestamp || (t == timestamp && b.getInt(offset(r, HOTEL_ID)) > hotelId);
+    }
+
+    /**
+     * Ricerca binaria nell'indice di un utente
+     * @return la posizione del primo record che viene dopo (timestamp, hotelId)
+     */
+    private int firstAfter(int[] records, long timestamp, int hotelId) {
+        int low = 0;
+        int high = records.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (isAfter(records[mid], timestamp, hotelId)) high = mid;
+            else low = mid + 1;
+        }
+        return low;
+    }
+
+    /**
+     * @return una copia dell'indice con il record inserito al suo posto
+     */
+    private int[] withRecord(int[] records, int r) {
+        if (records == null) return new int[]{r};
+        ByteBuffer b = segment(r);
+        int i = firstAfter(records, b.getLong(offset(r, TIMESTAMP)), b.getInt(offset(r, HOTEL_ID)));
+        int[] copy = new int[records.length + 1];
+        System.arraycopy(records, 0, copy, 0, i);
+        copy[i] = r;
+        System.arraycopy(records, i, copy, i + 1, records.length - i);
+        return copy;
+    }
+
+    /**
+     * @return una copia dell'indice senza il record, oppure null se non resta nessun record
+     */
+    private static int[] withoutRecord(int[] records, int r) {
+        if (records == null) return null;
+        for (int i = 0; i < records.length; i++) {
+            if (records[i] == r) {
+                if (records.length == 1) return null;
+                int[] copy = new int[records.length - 1];
+                System.arraycopy(records, 0, copy, 0, i);
+                System.arraycopy(records, i + 1, copy, i, records.length - i - 1);
+                return copy;
+            }
+        }
+        return records;
+    }
+
+    private CompactReview read(int r) {
+        ByteBuffer b = segment(r);
+        return new CompactReview(b.getInt(offset(r, USER_ID)), b.getInt(offset(r, HOTEL_ID)),
+                b.getLong(offset(r, SCORES)), b.getLong(offset(r, TIMESTAMP)));
+    }
+
+    private void visit(int r, ReviewVisitor visitor) {
+        ByteBuffer b = segment(r);
+        visitor.visit(b.getInt(offset(r, USER_ID)), b.getInt(offset(r, HOTEL_ID)),
+                b.getLong(offset(r, SCORES)), b.getLong(offset(r, TIMESTAMP)));
+    }
+
+    @Override
+    public CompactReview put(CompactReview review) {
+        int userId = review.getUserId();
+        int hotelId = review.getHotelId();
+
+        int existing = find(userId, hotelId);
+        if (existing != NONE) {
+            CompactReview previous = read(existing);
+            ByteBuffer b = segment(existing);
+            // il nuovo timestamp sposta il record nell'indice dell'utente
+            byUser.compute(userId, (k, records) -> {
+                b.putLong(offset(existing, SCORES), review.getScores());
+                b.putLong(offset(existing, TIMESTAMP), review.getTimestamp());
+                return withRecord(withoutRecord(records, existing), existing);
+            });
+            return previous;
+        }
+
+        int r = nextRecord.getAndIncrement();
+        if (r < 0) throw new IllegalStateException("Numero massimo di recensioni raggiunto");
+        ByteBuffer b = segmentForWrite(r);
+        b.putInt(offset(r, USER_ID), userId);
+        b.putInt(offset(r, HOTEL_ID), hotelId);
+        b.putLong(offset(r, SCORES), review.getScores());
+        b.putLong(offset(r, TIMESTAMP), review.getTimestamp());
+
+        // la lista dell'hotel ha un solo scrittore, il record viene pubblicato dalla scrittura (volatile) della testa
+        b.putInt(offset(r, NEXT_IN_HOTEL), hotelHeads.get(hotelId));
+        hotelHeads.set(hotelId, r);
+        hotelCounts.increment(hotelId);
+        maxHotelId.accumulateAndGet(hotelId, Math::max);
+
+        // l'indice dell'utente può essere aggiornato da più shard insieme, compute() li serializza
+        byUser.compute(userId, (k, records) -> withRecord(records, r));
+        size.incrementAndGet();
+
+        return null;
+    }
+
+    @Override
+    public CompactReview get(int userId, int hotelId) {
+        int r = find(userId, hotelId);
+        return r == NONE ? null : read(r);
+    }
+
+    /**
+     * Scollega il record dalla lista dell'hotel e dall'indice dell'utente. Un lettore fermo sul record rimosso può
+     * continuare a scorrere la lista dell'hotel, perché il puntatore al record successivo non viene modificato
+     */
+    @Override
+    public CompactReview remove(int userId, int hotelId) {
+        int r = find(userId, hotelId);
+        if (r == NONE) return null;
+        CompactReview removed = read(r);
+
+        // la lista dell'hotel ha un solo scrittore
+        int nextInHotel = segment(r).getInt(offset(r, NEXT_IN_HOTEL));
+        if (hotelHeads.get(hotelId) == r) {
+            hotelHeads.set(hotelId, nextInHotel);
+        } else {
+            int prev = hotelHeads.get(hotelId);
+            while (segment(prev).getInt(offset(prev, NEXT_IN_HOTEL)) != r) {
+                prev = segment(prev).getInt(offset(prev, NEXT_IN_HOTEL));
+            }
+            segment(prev).putInt(offset(prev, NEXT_IN_HOTEL), nextInHotel);
+        }
+        hotelCounts.decrement(hotelId);
+
+        byUser.compute(userId, (k, records) -> withoutRecord(records, r));
+        size.decrementAndGet();
+
+        return removed;
+    }
+
+    @Override
+    public void forEachOfHotel(int hotelId, ReviewVisitor visitor) {
+        for (int r = hotelHeads.get(hotelId); r != NONE; r = segment(r).getInt(offset(r, NEXT_IN_HOTEL))) {
+            visit(r, visitor);
+        }
+    }
+
+    @Override
+    public void forEachOfUser(int userId, ReviewVisitor visitor) {
+        int[] records = byUser.get(userId);
+        if (records == null) return;
+        for (int r : records) visit(r, visitor);
+    }
+
+    @Override
+    public void forEachOfUser(int userId, long afterTimestamp, int afterHotel, int limit, ReviewVisitor visitor) {
+        int[] records = byUser.get(userId);
+        if (records == null || limit <= 0) return;
+
+        int start = firstAfter(records, afterTimestamp, afterHotel);
+        int end = (int) Math.min(records.length, (long) start + limit);
+        for (int i = start; i < end; i++) visit(records[i], visitor);
+    }
+
+    @Override
+    public int countOfUser(int userId) {
+        int[] records = byUser.get(userId);
+        return records == null ? 0 : records.length;
+    }
+
+    /**
+     * Visita le recensioni hotel per hotel, così vengono visitati solo i record già collegati (e non quelli che un
+     * altro thread sta ancora scrivendo)
+     */
+    @Override
+    public void forEach(ReviewVisitor visitor) {
+        int max = maxHotelId.get();
+        for (int hotelId = 0; hotelId <= max; hotelId++) forEachOfHotel(hotelId, visitor);
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+}
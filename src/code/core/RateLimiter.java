@@ -0,0 +1,110 @@
+package code.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Limitatore di richieste a token bucket, con un secchio per ogni chiave (indirizzo del client oppure username). Ogni
+ * secchio si riempie di "rate" token al secondo fino a un massimo di "burst", e ogni richiesta ne consuma uno: un client
+ * può quindi fare brevi raffiche di "burst" richieste, ma in media non più di "rate" al secondo.<br>
+ * I secchi sono divisi in {@value #SEGMENTS} segmenti, ognuno con il suo lock, e ogni segmento è una mappa LRU di
+ * dimensione limitata: quando è piena viene eliminato il secchio usato meno di recente. Un secchio inutilizzato da più
+ * di burst / rate secondi è di nuovo pieno, quindi eliminarlo non cambia nulla; si può perdere lo stato di un client
+ * attivo solo se le chiavi attive sono più di "maxEntries", e in quel caso il client viene trattato con più indulgenza,
+ * non con meno. La memoria occupata non cresce mai oltre "maxEntries" secchi.
+ */
+public class RateLimiter {
+    private static final int SEGMENTS = 16;
+
+    private final String name;
+    private final double tokensPerNano;
+    private final double burst;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private static final class Bucket {
+        private double tokens;
+        private long last;
+
+        private Bucket(double tokens, long last) {
+            this.tokens = tokens;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Secchi di un segmento in ordine di accesso: quando sono troppi viene eliminato il primo, usato meno di recente.
+     * Va usato con il lock sul segmento
+     */
+    private static final class Segment {
+        private final LinkedHashMap<String, Bucket> buckets = new LinkedHashMap<>(64, 0.75f, true);
+        private final int maxEntries;
+
+        private Segment(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        private void put(String key, Bucket bucket) {
+            buckets.put(key, bucket);
+            Iterator<Bucket> it = buckets.values().iterator();
+            while (buckets.size() > maxEntries && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @param name nome del limitatore, usato nelle metriche
+     * @param rate token aggiunti ad ogni secchio al secondo
+     * @param burst capacità di ogni secchio (almeno 1)
+     * @param maxEntries numero massimo di secchi in memoria
+     */
+    public RateLimiter(String name, double rate, double burst, int maxEntries) {
+        this.name = name;
+        this.tokensPerNano = rate / 1e9;
+        this.burst = Math.max(1, burst);
+        int perSegment = Math.max(1, maxEntries / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(perSegment);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Consuma un token dal secchio della chiave, creandolo pieno se non esiste
+     * @return true se la richiesta può essere eseguita, false se il client ha superato il limite
+     */
+    public boolean tryAcquire(String key) {
+        long now = System.nanoTime();
+        Segment segment = segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+        synchronized (segment) {
+            Bucket b = segment.buckets.get(key);
+            if (b == null) {
+                segment.put(key, new Bucket(burst - 1, now));
+                return true;
+            }
+
+            b.tokens = Math.min(burst, b.tokens + (now - b.last) * tokensPerNano);
+            b.last = now;
+            if (b.tokens < 1) return false;
+            b.tokens -= 1;
+            return true;
+        }
+    }
+
+    /**
+     * @return il numero di secchi in memoria
+     */
+    public int size() {
+        int n = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                n += s.buckets.size();
+            }
+        }
+        return n;
+    }
+}
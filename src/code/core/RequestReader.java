@@ -0,0 +1,71 @@
+package code.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Legge le righe delle richieste dallo stream di un socket come faceva {@link java.util.Scanner} (charset di default,
+ * righe terminate da "\n" o "\r\n", un errore di lettura equivale alla fine dello stream), ma conta i byte letti, così
+ * la dimensione di una richiesta è quella effettivamente ricevuta dal client, comandi e terminatori compresi.
+ */
+class RequestReader {
+    private final InputStream in;
+    private final Charset charset = Charset.defaultCharset();
+    private final byte[] buffer = new byte[8192];
+    private int pos = 0;
+    private int limit = 0;
+    private byte[] line = new byte[256];
+    private long bytesRead = 0;
+    private boolean eof = false;
+
+    RequestReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * @return la riga successiva senza terminatore, oppure null se lo stream è finito
+     */
+    String readLine() {
+        int n = 0;
+        while (true) {
+            if (pos == limit && !fill()) {
+                if (n == 0) return null;
+                break;
+            }
+            byte b = buffer[pos++];
+            bytesRead++;
+            if (b == '\n') break;
+            if (n == line.length) line = Arrays.copyOf(line, n * 2);
+            line[n++] = b;
+        }
+        if (n > 0 && line[n - 1] == '\r') n--;
+        return new String(line, 0, n, charset);
+    }
+
+    private boolean fill() {
+        if (eof) return false;
+        try {
+            int read = in.read(buffer);
+            if (read > 0) {
+                pos = 0;
+                limit = read;
+                return true;
+            }
+        } catch (IOException e) {
+            // come Scanner: la connessione interrotta chiude semplicemente la lettura delle richieste
+        }
+        eof = true;
+        return false;
+    }
+
+    /**
+     * @return il numero di byte letti dall'inizio dello stream fino alla fine dell'ultima riga restituita
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+}
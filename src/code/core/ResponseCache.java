@@ -0,0 +1,167 @@
+package code.core;
+
+import code.entities.Hotel;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Cache delle risposte già codificate (status, corpo json e terminatore, in byte) di searchHotel e searchAllHotels,
+ * per hotel e per città. Una risposta in cache viene inviata così com'è senza rifare la serializzazione con Gson.<br>
+ * Le risposte sono in una {@link ConcurrentHashMap}, quindi una lettura non prende lock e non modifica la mappa: segna
+ * solo la voce come usata. La memoria occupata è limitata: quando si supera il limite un solo thread alla volta elimina
+ * voci con l'algoritmo CLOCK, una approssimazione di LRU. Scorre le voci riprendendo da dove si era fermato: una voce
+ * usata dall'ultimo passaggio viene risparmiata (e segnata come non usata), le altre vengono eliminate.<br>
+ * Le risposte vengono invalidate da {@link DatabaseManager} quando cambiano le medie di un hotel (inserimento di
+ * recensioni), quando cambia l'ordine della classifica di una città e quando un hotel viene inserito o modificato.
+ */
+public class ResponseCache {
+    // stima dello spazio occupato da una voce oltre ai byte della risposta (oggetti della mappa, array, chiave)
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final long maxBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // posizione della "lancetta" di CLOCK, usata solo con il lock su 'evictionLock'
+    private final Object evictionLock = new Object();
+    private Iterator<Map.Entry<String, Entry>> hand;
+
+    /*
+    Contatori delle invalidazioni per città (vedi put()): ogni città usa il contatore in posizione hash % EPOCHS, quindi
+    un'invalidazione scarta solo le risposte in calcolo della stessa città, o di quelle con lo stesso contatore
+     */
+    private static final int EPOCHS = 1024;
+    private final AtomicLongArray epochs = new AtomicLongArray(EPOCHS);
+
+    private static final class Entry {
+        private final byte[] value;
+        private final long size;
+        // true se la voce è stata letta dall'ultimo passaggio della lancetta
+        private volatile boolean referenced;
+
+        private Entry(byte[] value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * @param maxBytes memoria massima occupata dalle risposte, 0 per disattivare la cache
+     */
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static String hotelKey(String nomeHotel, String citta) {
+        return "h\0" + citta + "\0" + nomeHotel;
+    }
+
+    public static String cityKey(String citta) {
+        return "c\0" + citta;
+    }
+
+    /**
+     * @return la città di una chiave creata da {@link #hotelKey(String, String)} o {@link #cityKey(String)}
+     */
+    private static String cityOf(String key) {
+        int end = key.indexOf('\0', 2);
+        return end < 0 ? key.substring(2) : key.substring(2, end);
+    }
+
+    private static int epochIndex(String key) {
+        return (cityOf(key).hashCode() & 0x7fffffff) % EPOCHS;
+    }
+
+    private static long sizeOf(String key, byte[] value) {
+        return value.length + 2L * key.length() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * @return la risposta in cache, oppure null
+     */
+    public byte[] get(String key) {
+        Entry e = entries.get(key);
+        if (e == null) return null;
+        // scrivo solo se serve, per non sporcare la linea di cache a ogni lettura
+        if (!e.referenced) e.referenced = true;
+        return e.value;
+    }
+
+    /**
+     * Da leggere prima di calcolare la risposta da inserire con {@link #put(String, byte[], long)}
+     * @param key la chiave della risposta
+     */
+    public long stamp(String key) {
+        return epochs.get(epochIndex(key));
+    }
+
+    /**
+     * Inserisce una risposta calcolata dopo aver letto 'stamp'. Se nel frattempo c'è stata un'invalidazione nella
+     * città della risposta, questa potrebbe essere già vecchia e viene scartata
+     */
+    public void put(String key, byte[] value, long stamp) {
+        long size = sizeOf(key, value);
+        if (size > maxBytes) return;
+
+        Entry entry = new Entry(value, size);
+        Entry old = entries.put(key, entry);
+        usedBytes.addAndGet(old == null ? size : size - old.size);
+
+        // un'invalidazione avvenuta durante il calcolo ha già rimosso la chiave prima di questo inserimento
+        if (epochs.get(epochIndex(key)) != stamp) remove(key, entry);
+
+        if (usedBytes.get() > maxBytes) evict();
+    }
+
+    private void remove(String key, Entry entry) {
+        if (entries.remove(key, entry)) usedBytes.addAndGet(-entry.size);
+    }
+
+    /**
+     * Elimina voci con l'algoritmo CLOCK finché la memoria occupata torna sotto il limite
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            // al più due giri completi: nel primo tutte le voci possono essere state usate di recente
+            int budget = 2 * entries.size() + 1;
+            while (usedBytes.get() > maxBytes && budget-- > 0) {
+                if (hand == null || !hand.hasNext()) hand = entries.entrySet().iterator();
+                if (!hand.hasNext()) return;
+
+                Map.Entry<String, Entry> e = hand.next();
+                Entry entry = e.getValue();
+                if (entry.referenced) entry.referenced = false;
+                else remove(e.getKey(), entry);
+            }
+        }
+    }
+
+    public void invalidate(String key) {
+        epochs.incrementAndGet(epochIndex(key));
+        Entry old = entries.remove(key);
+        if (old != null) usedBytes.addAndGet(-old.size);
+    }
+
+    /**
+     * Invalida la risposta dell'hotel e quella della sua città (che contiene l'hotel)
+     */
+    public void invalidateHotel(Hotel hotel) {
+        invalidate(hotelKey(hotel.getName(), hotel.getCity()));
+        invalidate(cityKey(hotel.getCity()));
+    }
+
+    /**
+     * Invalida la risposta della città e quelle dei suoi hotel (quando cambia l'ordine cambiano i loro rank)
+     */
+    public void invalidateCity(String citta, List<Hotel> hotels) {
+        invalidate(cityKey(citta));
+        for (Hotel h : hotels) invalidate(hotelKey(h.getName(), h.getCity()));
+    }
+}
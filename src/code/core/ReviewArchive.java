@@ -0,0 +1,412 @@
+package code.core;
+
+import code.entities.CompactReview;
+import code.utils.ConcurrentLongHashMap;
+import code.utils.Log;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Archivio delle recensioni vecchie. Le recensioni più vecchie di "database.archiveAfterDays" giorni vengono tolte
+ * dalla memoria e da Reviews.json e scritte in segmenti compressi immutabili (archive/reviews-N.seg.gz). Il loro
+ * contributo resta nei totali di ogni hotel ({@link HotelTerms}), salvati in archive/manifest.json insieme all'elenco
+ * dei segmenti, quindi le medie di tutte le recensioni restano esatte.<br>
+ * Per ogni coppia (utente, hotel) archiviata l'archivio tiene in memoria voti e giorno della recensione, ricostruiti
+ * all'avvio rileggendo i segmenti: se l'utente recensisce di nuovo l'hotel, la recensione archiviata viene sostituita
+ * ({@link #supersede(int, int)}) e tolta dai totali, come succede per quelle in memoria. Una recensione sostituita resta
+ * nel suo segmento; all'avvio viene riconosciuta perché la coppia compare anche in Reviews.json. Le recensioni
+ * archiviate non compaiono tra quelle dell'utente (myReviews), che ne riporta solo il numero.<br>
+ * Un'archiviazione procede a blocchi di hotel: per ogni blocco viene scritto un nuovo segmento con
+ * {@link #appendSegment}, poi il thread proprietario dello shard di ogni hotel toglie le recensioni dalla memoria e le
+ * consegna all'archivio con {@link #handOff}, e infine il manifest viene salvato con {@link #commit(long)}. Ogni hotel
+ * ricorda il limite dell'ultima archiviazione che lo ha riguardato, quindi il manifest è coerente anche se viene salvato
+ * a metà di un'archiviazione. Un segmento esistente non viene mai sovrascritto: quelli che non compaiono nel manifest
+ * (scritti prima di un arresto) vengono ignorati.<br>
+ * Formato di un segmento (GZIP): magic (int), numero di recensioni (int), poi per ogni recensione username (UTF),
+ * id hotel (int), voti impacchettati (long), timestamp (long).
+ */
+public class ReviewArchive {
+    private static final int SEGMENT_MAGIC = 0x48524131;
+    private static final long DAY_MILLIS = 86400000L;
+
+    // valori dell'indice: voti impacchettati nei bit bassi, giorno della recensione sopra, e un bit che indica che la
+    // recensione è stata sostituita da una nuova recensione in memoria
+    private static final int DAY_SHIFT = 5 * CompactReview.SCORE_BITS;
+    private static final long DAY_MASK = (1L << (63 - DAY_SHIFT)) - 1;
+    private static final long SCORES_MASK = (1L << DAY_SHIFT) - 1;
+    private static final long SUPERSEDED = 1L << 63;
+
+    private final File directory;
+    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    // chiave -> id hotel; totali di tutte le recensioni dei segmenti consegnati, salvati nel manifest
+    private final ConcurrentHashMap<Integer, HotelTerms> terms = new ConcurrentHashMap<>();
+    // chiave -> id hotel; totali delle sole recensioni archiviate non sostituite, usati per medie e rank
+    private final ConcurrentHashMap<Integer, HotelTerms> live = new ConcurrentHashMap<>();
+    // chiave -> (userId, hotelId) impacchettati come in HeapReviewStore; scritta solo dal thread dello shard dell'hotel
+    private final ConcurrentLongHashMap<Long> index = new ConcurrentLongHashMap<>();
+    // chiave -> id utente; numero di recensioni archiviate non sostituite
+    private final ConcurrentHashMap<Integer, Integer> byUser = new ConcurrentHashMap<>();
+    // tutte le recensioni con timestamp precedente sono già state archiviate
+    private volatile long archivedBefore = Long.MIN_VALUE;
+    private int nextSegment = 0;
+    // segmenti con almeno una recensione consegnata, in ordine: sono quelli elencati nel manifest
+    private final TreeSet<Integer> segments = new TreeSet<>();
+    // true se ci sono recensioni consegnate ma non ancora salvate nel manifest
+    private boolean dirty = false;
+
+    /**
+     * Contributo delle recensioni archiviate di un hotel: numero, somme dei voti in centesimi (nell'ordine degli
+     * indici di {@link CompactReview}), somma dei giorni delle recensioni (per il loro giorno medio), timestamp della
+     * più recente e limite dell'ultima archiviazione dell'hotel. Quando una recensione viene tolta il timestamp della
+     * più recente non cambia, ed è quindi un limite superiore
+     */
+    public static final class HotelTerms {
+        private final int hotelId;
+        private final int count;
+        private final long[] sums;
+        private final long sumDays;
+        private final long newestTimestamp;
+        private final long archivedBefore;
+
+        private HotelTerms(int hotelId, int count, long[] sums, long sumDays, long newestTimestamp, long archivedBefore) {
+            this.hotelId = hotelId;
+            this.count = count;
+            this.sums = sums;
+            this.sumDays = sumDays;
+            this.newestTimestamp = newestTimestamp;
+            this.archivedBefore = archivedBefore;
+        }
+
+        private static HotelTerms empty(int hotelId) {
+            return new HotelTerms(hotelId, 0, new long[5], 0, Long.MIN_VALUE, Long.MIN_VALUE);
+        }
+
+        /**
+         * @param value valore dell'indice della recensione da aggiungere (sign = 1) o togliere (sign = -1)
+         * @param timestamp timestamp della recensione, usato solo se viene aggiunta
+         */
+        private HotelTerms add(long value, int sign, long timestamp, long before) {
+            long[] s = sums.clone();
+            for (int c = 0; c < s.length; c++) s[c] += sign * CompactReview.scoreHundredths(value, c);
+            return new HotelTerms(hotelId, count + sign, s, sumDays + sign * dayOf(value),
+                    sign > 0 ? Math.max(newestTimestamp, timestamp) : newestTimestamp, Math.max(archivedBefore, before));
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @param which indice della categoria (vedi {@link CompactReview#GLOBAL} e seguenti)
+         */
+        public long getSumHundredths(int which) {
+            return sums[which];
+        }
+
+        /**
+         * Per il calcolo del rank le recensioni archiviate vengono pesate tutte con la distanza del loro giorno medio:
+         * sono vecchie, quindi il loro peso è comunque piccolo e l'approssimazione non cambia la classifica
+         * @return la distanza in giorni (almeno 1) tra 'now' e il giorno medio delle recensioni archiviate
+         */
+        public long meanDiffDays(long now) {
+            return Math.floorDiv(now, DAY_MILLIS) - Math.floorDiv(sumDays, count) + 1;
+        }
+
+        public long getNewestTimestamp() {
+            return newestTimestamp;
+        }
+
+        private boolean sameTotals(HotelTerms other) {
+            return count == other.count && sumDays == other.sumDays && Arrays.equals(sums, other.sums);
+        }
+    }
+
+    /**
+     * Contenuto di manifest.json. Nei manifest scritti prima dell'elenco dei segmenti 'segments' manca, e i segmenti
+     * sono tutti quelli da 0 a nextSegment escluso
+     */
+    private static final class Manifest {
+        private long archivedBefore;
+        private int nextSegment;
+        private List<Integer> segments;
+        private List<HotelTerms> hotels;
+    }
+
+    /**
+     * Apre l'archivio nella cartella indicata, caricando i totali delle archiviazioni precedenti. L'indice delle
+     * recensioni viene caricato da {@link #load(ToIntFunction)}
+     * @throws IOException se il manifest esiste ma non può essere letto
+     */
+    public ReviewArchive(File directory) throws IOException {
+        this.directory = directory;
+
+        File manifestFile = new File(directory, "manifest.json");
+        if (!manifestFile.exists()) return;
+
+        try (Reader reader = new FileReader(manifestFile)) {
+            Manifest manifest = gson.fromJson(reader, Manifest.class);
+            if (manifest == null) return;
+            archivedBefore = manifest.archivedBefore;
+            nextSegment = manifest.nextSegment;
+            if (manifest.segments != null) {
+                segments.addAll(manifest.segments);
+            } else {
+                for (int n = 0; n < nextSegment; n++) segments.add(n);
+            }
+            if (manifest.hotels != null) {
+                for (HotelTerms t : manifest.hotels) terms.put(t.hotelId, t);
+            }
+        }
+    }
+
+    /**
+     * Rilegge i segmenti elencati nel manifest e ricostruisce l'indice delle recensioni archiviate. I totali dei
+     * segmenti vengono confrontati con quelli del manifest: se sono diversi vengono usati quelli dei segmenti. Va
+     * chiamato all'avvio, dopo il caricamento degli utenti e prima di {@link #supersede(int, int)}
+     * @param userIds restituisce l'id di uno username, oppure -1 se non esiste
+     * @throws IOException se un segmento manca o non è valido
+     */
+    public void load(ToIntFunction<String> userIds) throws IOException {
+        for (int n : segments) {
+            File segment = segmentFile(n);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(segment))))) {
+                if (in.readInt() != SEGMENT_MAGIC) throw new IOException("Segmento non valido: " + segment);
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    String username = in.readUTF();
+                    int hotelId = in.readInt();
+                    long scores = in.readLong();
+                    long timestamp = in.readLong();
+                    int userId = userIds.applyAsInt(username);
+                    if (userId < 0) {
+                        Log.warn("Recensione archiviata di un utente inesistente ignorata", "username", username);
+                        continue;
+                    }
+                    // una coppia archiviata di nuovo compare in un segmento successivo, che prevale
+                    index.put(HeapReviewStore.key(userId, hotelId), pack(scores, timestamp));
+                }
+            } catch (EOFException e) {
+                throw new IOException("Segmento troncato: " + segment, e);
+            }
+        }
+
+        HashMap<Integer, HotelTerms> computed = new HashMap<>();
+        index.forEach((key, value) -> {
+            int hotelId = (int) key;
+            HotelTerms t = computed.get(hotelId);
+            if (t == null) t = HotelTerms.empty(hotelId);
+            computed.put(hotelId, t.add(value, 1, dayOf(value) * DAY_MILLIS, Long.MIN_VALUE));
+            byUser.merge((int) (key >>> 32), 1, Integer::sum);
+        });
+        for (Integer hotelId : terms.keySet()) {
+            if (computed.containsKey(hotelId)) continue;
+            Log.warn("Totali archiviati senza recensioni nei segmenti ignorati", "hotel", hotelId);
+            terms.remove(hotelId);
+        }
+        computed.forEach((hotelId, c) -> {
+            HotelTerms t = terms.get(hotelId);
+            if (t == null || !t.sameTotals(c)) {
+                Log.warn("Totali archiviati diversi dai segmenti, uso quelli dei segmenti", "hotel", hotelId);
+                terms.put(hotelId, new HotelTerms(hotelId, c.count, c.sums, c.sumDays, c.newestTimestamp,
+                        t == null ? Long.MIN_VALUE : t.archivedBefore));
+            }
+        });
+        live.putAll(terms);
+    }
+
+    private File segmentFile(int n) {
+        return new File(directory, String.format("reviews-%06d.seg.gz", n));
+    }
+
+    private static long pack(long scores, long timestamp) {
+        return scores & SCORES_MASK | (Math.floorDiv(timestamp, DAY_MILLIS) & DAY_MASK) << DAY_SHIFT;
+    }
+
+    private static long dayOf(long value) {
+        return (value >>> DAY_SHIFT) & DAY_MASK;
+    }
+
+    /**
+     * @return il contributo delle recensioni archiviate (e non sostituite) dell'hotel, oppure null se non ne ha
+     */
+    public HotelTerms get(int hotelId) {
+        return live.get(hotelId);
+    }
+
+    public Map<Integer, HotelTerms> getAll() {
+        return live;
+    }
+
+    /**
+     * @return il numero di recensioni archiviate dell'utente che non ha poi sostituito
+     */
+    public int countOfUser(int userId) {
+        return byUser.getOrDefault(userId, 0);
+    }
+
+    /**
+     * @return true se la recensione di un hotel con questo timestamp è già nell'archivio (vale per le recensioni lette
+     * da Reviews.json, che potrebbe non essere ancora stato riscritto dopo l'archiviazione)
+     */
+    public boolean isArchived(int hotelId, long timestamp) {
+        if (timestamp < archivedBefore) return true;
+        HotelTerms t = terms.get(hotelId);
+        return t != null && timestamp < t.archivedBefore;
+    }
+
+    /**
+     * Scrive un nuovo segmento con le recensioni passate. Le recensioni entrano nell'archivio solo quando vengono
+     * consegnate con {@link #handOff}
+     * @param reviews tutte le recensioni da archiviare di un gruppo di hotel
+     * @param usernames restituisce lo username di un id utente
+     * @return il numero del segmento
+     */
+    public int appendSegment(List<CompactReview> reviews, IntFunction<String> usernames) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) throw new IOException("Impossibile creare " + directory);
+
+        int number;
+        synchronized (this) {
+            // salto i segmenti rimasti da un arresto prima del salvataggio del manifest
+            while (segmentFile(nextSegment).exists()) nextSegment++;
+            number = nextSegment++;
+        }
+        File segment = segmentFile(number);
+        File tmp = new File(directory, segment.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(reviews.size());
+            for (CompactReview r : reviews) {
+                String username = usernames.apply(r.getUserId());
+                out.writeUTF(username == null ? "" : username);
+                out.writeInt(r.getHotelId());
+                out.writeLong(r.getScores());
+                out.writeLong(r.getTimestamp());
+            }
+        }
+        // senza REPLACE_EXISTING: un segmento esistente non viene mai sovrascritto
+        Files.move(tmp.toPath(), segment.toPath());
+        return number;
+    }
+
+    /**
+     * Consegna all'archivio una recensione scritta nel segmento indicato. Va chiamato dal thread proprietario dello
+     * shard dell'hotel, con il lock che esclude la scrittura di Reviews.json
+     * @param segment numero del segmento restituito da {@link #appendSegment}
+     * @param before limite dell'archiviazione
+     * @param review la recensione archiviata
+     * @param replaced true se nel frattempo l'utente ha sostituito la recensione, che quindi resta in memoria
+     */
+    void handOff(int segment, long before, CompactReview review, boolean replaced) {
+        int hotelId = review.getHotelId();
+        long value = pack(review.getScores(), review.getTimestamp());
+        Long old = index.put(HeapReviewStore.key(review.getUserId(), hotelId), replaced ? value | SUPERSEDED : value);
+
+        HotelTerms t = terms.getOrDefault(hotelId, HotelTerms.empty(hotelId));
+        if (old != null) t = t.add(old, -1, 0, before);
+        terms.put(hotelId, t.add(value, 1, review.getTimestamp(), before));
+
+        HotelTerms l = live.getOrDefault(hotelId, HotelTerms.empty(hotelId));
+        if (old != null && (old & SUPERSEDED) == 0) {
+            l = l.add(old, -1, 0, before);
+            byUser.merge(review.getUserId(), -1, Integer::sum);
+        }
+        if (!replaced) {
+            l = l.add(value, 1, review.getTimestamp(), before);
+            byUser.merge(review.getUserId(), 1, Integer::sum);
+        }
+        setLive(l);
+
+        synchronized (this) {
+            segments.add(segment);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Segna come sostituita la recensione archiviata dell'utente per l'hotel, che non viene più contata nei totali.
+     * Va chiamato dal thread proprietario dello shard dell'hotel (o durante il caricamento) prima di salvare la nuova
+     * recensione. Non cambia il manifest: all'avvio la sostituzione viene ricostruita da Reviews.json
+     * @return la recensione archiviata, con il timestamp troncato al giorno, oppure null se non c'era o era già stata
+     * sostituita
+     */
+    CompactReview supersede(int userId, int hotelId) {
+        long key = HeapReviewStore.key(userId, hotelId);
+        Long value = index.get(key);
+        if (value == null || (value & SUPERSEDED) != 0) return null;
+
+        index.put(key, value | SUPERSEDED);
+        setLive(live.get(hotelId).add(value, -1, 0, Long.MIN_VALUE));
+        byUser.merge(userId, -1, Integer::sum);
+        return new CompactReview(userId, hotelId, value & SCORES_MASK, dayOf(value) * DAY_MILLIS);
+    }
+
+    /**
+     * Annulla {@link #supersede(int, int)}, quando la nuova recensione non è stata salvata. Va chiamato dal thread
+     * proprietario dello shard dell'hotel
+     */
+    void restore(int userId, int hotelId) {
+        long key = HeapReviewStore.key(userId, hotelId);
+        Long value = index.get(key);
+        if (value == null || (value & SUPERSEDED) == 0) return;
+
+        long v = value & ~SUPERSEDED;
+        index.put(key, v);
+        setLive(live.getOrDefault(hotelId, HotelTerms.empty(hotelId)).add(v, 1, dayOf(v) * DAY_MILLIS, Long.MIN_VALUE));
+        byUser.merge(userId, 1, Integer::sum);
+    }
+
+    private void setLive(HotelTerms t) {
+        if (t.count == 0) live.remove(t.hotelId);
+        else live.put(t.hotelId, t);
+    }
+
+    /**
+     * @return true se ci sono recensioni consegnate ma non ancora salvate nel manifest
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Salva nel manifest i totali e l'elenco dei segmenti consegnati. Il manifest viene sostituito solo dopo essere
+     * stato scritto completamente. Va chiamato con lo stesso lock di {@link #handOff}
+     * @param before nuovo limite globale, se tutte le recensioni precedenti sono state archiviate; altrimenti
+     * Long.MIN_VALUE, e valgono solo i limiti dei singoli hotel
+     */
+    public synchronized void commit(long before) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) throw new IOException("Impossibile creare " + directory);
+
+        Manifest manifest = new Manifest();
+        manifest.archivedBefore = Math.max(archivedBefore, before);
+        manifest.nextSegment = nextSegment;
+        manifest.segments = new ArrayList<>(segments);
+        manifest.hotels = new ArrayList<>(terms.values());
+        File manifestFile = new File(directory, "manifest.json");
+        File manifestTmp = new File(directory, "manifest.json.tmp");
+        try (Writer writer = new FileWriter(manifestTmp)) {
+            gson.toJson(manifest, writer);
+        }
+        Files.move(manifestTmp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        archivedBefore = manifest.archivedBefore;
+        dirty = false;
+    }
+}
@@ -0,0 +1,377 @@
+package code.core;
+
+import code.entities.CompactReview;
+import code.entities.Hotel;
+import code.entities.Ratings;
+import code.utils.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Stadio di ingestione delle recensioni. Gli hotel sono partizionati in shard in base al loro id e ogni shard ha un
+ * unico thread proprietario che applica le recensioni in batch: è l'unico a scrivere le recensioni dei suoi hotel
+ * e i relativi totali, quindi non serve nessun lock e gli hotel molto recensiti non bloccano gli altri shard.<br>
+ * I thread delle richieste si limitano ad accodare la recensione nella coda (limitata) dello shard e ad attendere,
+ * se vogliono, il completamento tramite il {@link CompletableFuture} restituito.
+ *
+ * @see DatabaseManager#insertReview(CompactReview)
+ */
+public class ReviewIngestor {
+    private static final int MAX_BATCH = 256;
+
+    private final DatabaseManager databaseManager;
+    private final ReviewArchive archive;
+    private final Shard[] shards;
+
+    // chiave -> id hotel; scritte solo dal thread dello shard dell'hotel, lette dai thread delle richieste
+    private final ConcurrentHashMap<Integer, HotelDailyStats> dailyStats = new ConcurrentHashMap<>();
+
+    /**
+     * Somme dei voti di un hotel (in centesimi, quindi senza errori di arrotondamento), mantenute dal thread proprietario
+     * dello shard per aggiornare le medie in O(1) senza riscorrere tutte le recensioni
+     */
+    private static final class HotelTotals {
+        private int count;
+        private long rate;
+        private long cleaning;
+        private long position;
+        private long services;
+        private long quality;
+
+        private void add(CompactReview r, int sign) {
+            count += sign;
+            rate += sign * r.getHundredths(CompactReview.GLOBAL);
+            cleaning += sign * r.getHundredths(CompactReview.CLEANING);
+            position += sign * r.getHundredths(CompactReview.POSITION);
+            services += sign * r.getHundredths(CompactReview.SERVICES);
+            quality += sign * r.getHundredths(CompactReview.QUALITY);
+        }
+
+        private void add(ReviewArchive.HotelTerms t) {
+            count += t.getCount();
+            rate += t.getSumHundredths(CompactReview.GLOBAL);
+            cleaning += t.getSumHundredths(CompactReview.CLEANING);
+            position += t.getSumHundredths(CompactReview.POSITION);
+            services += t.getSumHundredths(CompactReview.SERVICES);
+            quality += t.getSumHundredths(CompactReview.QUALITY);
+        }
+    }
+
+    /**
+     * Gruppo di recensioni accodate insieme (una sola per {@link #submit(CompactReview)}, più di una per
+     * {@link #submitAll(List, Consumer)}): vengono applicate nello stesso batch. Se 'segment' non è negativo le recensioni
+     * sono state scritte in quel segmento dell'archivio e vanno invece consegnate all'archivio e tolte dalla memoria
+     * (vedi {@link #removeArchived(List, int, long)})
+     */
+    private static final class PendingReviews {
+        private final List<CompactReview> reviews;
+        private final int segment;
+        private final long before;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private PendingReviews(List<CompactReview> reviews) {
+            this(reviews, -1, 0);
+        }
+
+        private PendingReviews(List<CompactReview> reviews, int segment, long before) {
+            this.reviews = reviews;
+            this.segment = segment;
+            this.before = before;
+        }
+    }
+
+    private final class Shard implements Runnable {
+        private final BlockingQueue<PendingReviews> queue;
+        // chiave -> id hotel, acceduta solo dal thread dello shard (e durante il caricamento, prima del suo avvio)
+        private final HashMap<Integer, HotelTotals> totals = new HashMap<>();
+
+        private Shard(int queueSize) {
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        @Override
+        public void run() {
+            List<PendingReviews> batch = new ArrayList<>(MAX_BATCH);
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                try {
+                    applyBatch(batch);
+                } catch (Throwable e) {
+                    // il thread non deve terminare: chi accoda resterebbe bloccato sulla coda piena o sul future
+                    Log.error("Errore nello shard delle recensioni", e);
+                    for (PendingReviews p : batch) p.done.completeExceptionally(e);
+                }
+                batch.clear();
+            }
+        }
+
+        private void applyBatch(List<PendingReviews> batch) {
+            // hotel toccati dal batch: le medie vengono ricalcolate una volta sola per hotel
+            HashMap<Integer, HotelTotals> touched = new HashMap<>();
+            long now = System.currentTimeMillis();
+            for (PendingReviews p : batch) {
+                try {
+                    if (p.segment >= 0) applyArchived(p, now);
+                    else applyReviews(p.reviews, touched, now);
+                } catch (RuntimeException | Error e) {
+                    if (e instanceof Error) Log.error("Errore nello shard delle recensioni", e);
+                    p.done.completeExceptionally(e);
+                }
+            }
+
+            // le recensioni sono già salvate: un errore nella pubblicazione delle medie di un hotel non le annulla
+            touched.forEach((hotelId, t) -> {
+                try {
+                    publishAverages(hotelId, t);
+                } catch (RuntimeException e) {
+                    Log.error("Errore durante l'aggiornamento delle medie dell'hotel " + hotelId, e);
+                }
+            });
+            databaseManager.markReviewsModified();
+
+            for (PendingReviews p : batch) p.done.complete(null);
+        }
+
+        /**
+         * Applica un gruppo di recensioni: se una fallisce, quelle già applicate del gruppo vengono annullate, così il
+         * gruppo è salvato tutto o niente
+         */
+        private void applyReviews(List<CompactReview> reviews, HashMap<Integer, HotelTotals> touched, long now) {
+            // per ogni recensione applicata: la recensione, quella sostituita in memoria e quella archiviata sostituita
+            List<CompactReview[]> applied = new ArrayList<>(reviews.size());
+            try {
+                for (CompactReview review : reviews) {
+                    HotelTotals t = totals.computeIfAbsent(review.getHotelId(), k -> new HotelTotals());
+                    HotelDailyStats s = dailyStats.computeIfAbsent(review.getHotelId(), k -> new HotelDailyStats());
+
+                    // la recensione sostituisce anche quella archiviata, se l'utente ne aveva una per l'hotel
+                    CompactReview archived = archive.supersede(review.getUserId(), review.getHotelId());
+                    CompactReview previous;
+                    try {
+                        previous = databaseManager.storeReview(review);
+                    } catch (RuntimeException | Error e) {
+                        if (archived != null) archive.restore(review.getUserId(), review.getHotelId());
+                        throw e;
+                    }
+                    applied.add(new CompactReview[]{review, previous, archived});
+
+                    if (archived != null) t.add(archived, -1);
+                    // una recensione dello stesso utente per lo stesso hotel sostituisce quella vecchia
+                    if (previous != null) {
+                        t.add(previous, -1);
+                        s.add(previous, -1, now);
+                    }
+                    t.add(review, 1);
+                    s.add(review, 1, now);
+                    touched.put(review.getHotelId(), t);
+                }
+            } catch (RuntimeException | Error e) {
+                for (int i = applied.size() - 1; i >= 0; i--) undo(applied.get(i), now);
+                throw e;
+            }
+        }
+
+        /**
+         * Annulla una recensione applicata da {@link #applyReviews}, rimettendo quella che aveva sostituito
+         */
+        private void undo(CompactReview[] entry, long now) {
+            CompactReview review = entry[0];
+            CompactReview previous = entry[1];
+            CompactReview archived = entry[2];
+            HotelTotals t = totals.get(review.getHotelId());
+            HotelDailyStats s = dailyStats.get(review.getHotelId());
+
+            if (previous != null) databaseManager.storeReview(previous);
+            else databaseManager.removeReview(review.getUserId(), review.getHotelId());
+            t.add(review, -1);
+            s.add(review, -1, now);
+            if (previous != null) {
+                t.add(previous, 1);
+                s.add(previous, 1, now);
+            }
+            if (archived != null) {
+                archive.restore(review.getUserId(), review.getHotelId());
+                t.add(archived, 1);
+            }
+        }
+
+        /**
+         * Consegna all'archivio le recensioni di un segmento e le toglie dalla memoria. I totali non cambiano, perché
+         * le recensioni archiviate restano nelle medie; se però una recensione è stata sostituita dopo essere stata
+         * scelta per l'archivio, la sostituzione l'ha già tolta dai totali e l'archivio la segna come sostituita.<br>
+         * Le statistiche giornaliere invece non contano le recensioni archiviate, come dopo un riavvio
+         */
+        private void applyArchived(PendingReviews p, long now) {
+            databaseManager.handOffArchived(() -> {
+                for (CompactReview r : p.reviews) {
+                    CompactReview current = databaseManager.getReview(r.getUserId(), r.getHotelId());
+                    boolean replaced = current == null || current.getTimestamp() != r.getTimestamp()
+                            || current.getScores() != r.getScores();
+                    if (!replaced) {
+                        databaseManager.removeReview(r.getUserId(), r.getHotelId());
+                        HotelDailyStats s = dailyStats.get(r.getHotelId());
+                        if (s != null) s.add(r, -1, now);
+                    }
+                    archive.handOff(p.segment, p.before, r, replaced);
+                }
+            });
+        }
+
+        private void publishAverages(Integer hotelId, HotelTotals t) {
+            Hotel h = databaseManager.getHotelById(hotelId);
+            if (h == null || t.count == 0) return;
+
+            // calcolo le medie e arrotondo a 2 cifre dopo la virgola
+            h.setRatings(new Ratings(average(t.cleaning, t.count), average(t.position, t.count),
+                    average(t.services, t.count), average(t.quality, t.count)));
+            h.setRate(average(t.rate, t.count));
+            databaseManager.hotelAveragesChanged(h);
+        }
+    }
+
+    /**
+     * @param databaseManager il database su cui applicare le recensioni
+     * @param archive l'archivio delle recensioni vecchie
+     * @param numShards numero di shard (e quindi di thread proprietari)
+     * @param queueSize capacità della coda di ogni shard; quando è piena chi inserisce attende
+     */
+    ReviewIngestor(DatabaseManager databaseManager, ReviewArchive archive, int numShards, int queueSize) {
+        this.databaseManager = databaseManager;
+        this.archive = archive;
+        this.shards = new Shard[Math.max(1, numShards)];
+        for (int i = 0; i < shards.length; i++) shards[i] = new Shard(queueSize);
+    }
+
+    /**
+     * Registra nei totali e nelle statistiche giornaliere una recensione già presente nel database. Deve essere chiamato solo durante il caricamento,
+     * prima di {@link #start()}
+     */
+    void seed(CompactReview review) {
+        shardOf(review.getHotelId()).totals.computeIfAbsent(review.getHotelId(), k -> new HotelTotals()).add(review, 1);
+        dailyStats.computeIfAbsent(review.getHotelId(), k -> new HotelDailyStats())
+                .add(review, 1, System.currentTimeMillis());
+    }
+
+    /**
+     * Registra nei totali il contributo delle recensioni archiviate di un hotel. Deve essere chiamato solo durante il
+     * caricamento, prima di {@link #start()}
+     */
+    void seedArchived(int hotelId, ReviewArchive.HotelTerms terms) {
+        shardOf(hotelId).totals.computeIfAbsent(hotelId, k -> new HotelTotals()).add(terms);
+    }
+
+    /**
+     * @return le statistiche giornaliere dell'hotel, oppure null se non ha recensioni recenti
+     */
+    HotelDailyStats getDailyStats(int hotelId) {
+        return dailyStats.get(hotelId);
+    }
+
+    /**
+     * Avvia un thread proprietario per ogni shard
+     */
+    void start() {
+        for (int i = 0; i < shards.length; i++) {
+            Thread t = new Thread(shards[i], "review-ingest-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Accoda una recensione nello shard del suo hotel
+     * @param review la recensione da inserire
+     * @return un future completato quando la recensione è stata applicata al database
+     */
+    public CompletableFuture<Void> submit(CompactReview review) {
+        return enqueue(shardOf(review.getHotelId()), new PendingReviews(Collections.singletonList(review)));
+    }
+
+    /**
+     * Accoda un insieme di recensioni: vengono raggruppate per shard e ogni gruppo viene applicato in un unico batch,
+     * ricalcolando le medie una sola volta per hotel. Ogni gruppo viene salvato tutto o niente
+     * @param reviews le recensioni da inserire
+     * @param onApplied chiamato con le recensioni di ogni shard dopo che sono state applicate senza errori
+     * @return un future completato quando tutte le recensioni sono state applicate al database
+     */
+    public CompletableFuture<Void> submitAll(List<CompactReview> reviews, Consumer<List<CompactReview>> onApplied) {
+        return enqueueByShard(reviews, -1, 0, onApplied);
+    }
+
+    /**
+     * Accoda la consegna all'archivio di recensioni già scritte in un segmento. Ogni recensione viene consegnata e tolta
+     * dalla memoria dal thread proprietario del suo shard, come tutte le altre scritture
+     * @param segment numero del segmento restituito da {@link ReviewArchive#appendSegment}
+     * @param before limite dell'archiviazione
+     * @return un future completato quando tutte le recensioni sono state consegnate
+     */
+    CompletableFuture<Void> removeArchived(List<CompactReview> reviews, int segment, long before) {
+        return enqueueByShard(reviews, segment, before, null);
+    }
+
+    private CompletableFuture<Void> enqueueByShard(List<CompactReview> reviews, int segment, long before,
+                                                   Consumer<List<CompactReview>> onApplied) {
+        HashMap<Shard, List<CompactReview>> byShard = new HashMap<>();
+        for (CompactReview r : reviews) {
+            byShard.computeIfAbsent(shardOf(r.getHotelId()), k -> new ArrayList<>()).add(r);
+        }
+
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[byShard.size()];
+        int i = 0;
+        for (Map.Entry<Shard, List<CompactReview>> entry : byShard.entrySet()) {
+            CompletableFuture<Void> done = enqueue(entry.getKey(), new PendingReviews(entry.getValue(), segment, before));
+            List<CompactReview> group = entry.getValue();
+            futures[i++] = onApplied == null ? done : done.thenRun(() -> onApplied.accept(group));
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    private CompletableFuture<Void> enqueue(Shard shard, PendingReviews pending) {
+        try {
+            shard.queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.done.completeExceptionally(e);
+        }
+        return pending.done;
+    }
+
+    private Shard shardOf(int hotelId) {
+        return shards[shardIndex(hotelId)];
+    }
+
+    /**
+     * @return l'indice dello shard proprietario dell'hotel, tra 0 e {@link #getShardCount()} escluso
+     */
+    int shardIndex(int hotelId) {
+        return Math.floorMod(hotelId, shards.length);
+    }
+
+    int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return la media di una somma espressa in centesimi, arrotondata a 2 cifre dopo la virgola
+     */
+    private static double average(long sumHundredths, int count) {
+        return Math.round((double) sumHundredths / count) / 100.0;
+    }
+}
@@ -0,0 +1,79 @@
+package code.core;
+
+import code.entities.CompactReview;
+
+import java.util.Comparator;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Motore di memorizzazione delle recensioni usato da {@link DatabaseManager}. Le implementazioni possono tenere le
+ * recensioni sullo heap ({@link HeapReviewStore}) o fuori dallo heap ({@link OffHeapReviewStore}); la scelta avviene
+ * con la proprietà database.reviewStore.<br>
+ * Le scritture sulle recensioni di uno stesso hotel arrivano sempre dallo stesso thread (quello proprietario dello
+ * shard, vedi {@link ReviewIngestor}), mentre le letture possono essere concorrenti con qualunque scrittura.
+ */
+public interface ReviewStore {
+
+    /**
+     * Ordine delle recensioni di un utente: dalla più recente, a parità di timestamp per id hotel crescente
+     */
+    Comparator<CompactReview> USER_ORDER = Comparator.comparingLong(CompactReview::getTimestamp).reversed()
+            .thenComparingInt(CompactReview::getHotelId);
+
+    /**
+     * Riceve i campi di una recensione senza che venga creato un oggetto per ognuna
+     */
+    @FunctionalInterface
+    interface ReviewVisitor {
+        void visit(int userId, int hotelId, long scores, long timestamp);
+    }
+
+    /**
+     * Inserisce una recensione o sostituisce quella dello stesso utente per lo stesso hotel
+     * @return la recensione sostituita, oppure null se non esisteva
+     */
+    CompactReview put(CompactReview review);
+
+    /**
+     * @return la recensione dell'utente per l'hotel, oppure null se non esiste
+     */
+    CompactReview get(int userId, int hotelId);
+
+    /**
+     * Rimuove la recensione dell'utente per l'hotel. Viene chiamato dal thread proprietario dello shard dell'hotel
+     * quando la recensione viene archiviata (vedi {@link ReviewArchive})
+     * @return la recensione rimossa, oppure null se non esisteva
+     */
+    CompactReview remove(int userId, int hotelId);
+
+    /**
+     * Visita tutte le recensioni di un hotel
+     */
+    void forEachOfHotel(int hotelId, ReviewVisitor visitor);
+
+    /**
+     * Visita tutte le recensioni di un utente
+     */
+    void forEachOfUser(int userId, ReviewVisitor visitor);
+
+    /**
+     * Visita al più 'limit' recensioni di un utente nell'ordine {@link #USER_ORDER}, partendo dalla prima che segue la
+     * posizione (afterTimestamp, afterHotel): con afterTimestamp uguale a Long.MAX_VALUE parte dalla più recente. Le
+     * implementazioni tengono le recensioni di ogni utente già ordinate, quindi il costo dipende da 'limit' e non dal
+     * numero di recensioni dell'utente
+     */
+    void forEachOfUser(int userId, long afterTimestamp, int afterHotel, int limit, ReviewVisitor visitor);
+
+    /**
+     * @return il numero di recensioni dell'utente (una per ogni hotel recensito)
+     */
+    int countOfUser(int userId);
+
+    /**
+     * Visita tutte le recensioni
+     */
+    void forEach(ReviewVisitor visitor);
+
+    int size();
+}
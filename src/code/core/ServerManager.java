@@ -1,13 +1,15 @@
 package code.core;
 
+import code.entities.CompactReview;
 import code.entities.Hotel;
 import code.entities.Ratings;
+import code.entities.ReviewRequest;
 import code.entities.User;
-import code.entities.UserReview;
 import code.exceptions.IncorrectPasswordException;
 import code.exceptions.UserAlreadyLoggedException;
 import code.exceptions.UserNotFoundException;
 import code.utils.AppConfig;
+import code.utils.Log;
 import code.utils.PasswordUtils;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -18,8 +20,14 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -32,15 +40,27 @@ public class ServerManager {
     private MulticastSocket ms;
     private InetAddress group;
     private ConcurrentHashMap<String, User> loggedUsers = new ConcurrentHashMap<>();
+    // limitatori delle richieste per indirizzo e per utente, null se disattivati
+    private final RateLimiter ipLimiter;
+    private final RateLimiter userLimiter;
 
     private Gson gson;
 
     private ServerManager() {
         databaseManager = DatabaseManager.getInstance();
         gson = new GsonBuilder().setPrettyPrinting().create();
+        ipLimiter = createLimiter("ip", AppConfig.getIpRequestRate(), AppConfig.getIpRequestBurst());
+        userLimiter = createLimiter("user", AppConfig.getUserRequestRate(), AppConfig.getUserRequestBurst());
         initBackgroundUpdater();
     }
 
+    private static RateLimiter createLimiter(String name, double rate, double burst) {
+        if (rate <= 0) return null;
+        RateLimiter limiter = new RateLimiter(name, rate, burst, AppConfig.getRateLimitEntries());
+        ServerMetrics.getInstance().addRateLimiter(limiter);
+        return limiter;
+    }
+
     public static ServerManager getInstance() {
         return instance;
     }
@@ -53,7 +73,7 @@ public class ServerManager {
             ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
             scheduler.scheduleAtFixedRate(() -> updateRatings(), 0, AppConfig.getRatingsUpdatePeriod(), TimeUnit.SECONDS);
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Impossibile aprire il socket multicast", e);
         }
     }
 
@@ -79,16 +99,36 @@ public class ServerManager {
 
             String message = gson.toJson(jsonArray);
 
+            FlightEvents.MulticastSendEvent event = new FlightEvents.MulticastSendEvent();
+            event.begin();
+            byte[] data = message.getBytes();
             try {
-                DatagramPacket packet = new DatagramPacket(message.getBytes(), message.getBytes().length, group, AppConfig.getMulticastPort());
+                DatagramPacket packet = new DatagramPacket(data, data.length, group, AppConfig.getMulticastPort());
                 ms.send(packet);
-                System.out.println("Classifica aggiornata, inviata correttamente notifica ai client connessi. Messaggio:\n" + message);
+                event.sent = true;
+                Log.info("Classifica aggiornata, inviata notifica ai client connessi", "citta", newFirstPositions.size());
+                Log.debug("Notifica multicast", "messaggio", message);
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("Errore durante l'invio della notifica multicast", e);
             }
+            event.cities = newFirstPositions.size();
+            event.bytes = data.length;
+            event.commit();
         }
     }
 
+    /**
+     * Controlla i limiti di richieste dell'indirizzo del client e, se c'è, dell'utente loggato. Se l'indirizzo ha
+     * superato il suo limite il token dell'utente non viene consumato
+     * @param address indirizzo IP del client
+     * @param username utente loggato sulla connessione, oppure null
+     * @return true se la richiesta può essere eseguita, false se va rifiutata
+     */
+    public boolean allowRequest(String address, String username) {
+        if (ipLimiter != null && !ipLimiter.tryAcquire(address)) return false;
+        return userLimiter == null || username == null || userLimiter.tryAcquire(username);
+    }
+
     public boolean isUserLogged(String username) {
         return loggedUsers.containsKey(username);
     }
@@ -115,15 +155,25 @@ public class ServerManager {
 
         if(user == null) throw new UserNotFoundException();
 
-        if (!PasswordUtils.checkPassword(password, user.getPassword())) throw new IncorrectPasswordException();
+        if (!PasswordUtils.checkPassword(password, user.getPasswordHash())) {
+            // hash salvato prima del passaggio a UTF-8 con la codifica di default della piattaforma: lo aggiorno
+            if (!PasswordUtils.checkLegacyPassword(password, user.getPasswordHash())) throw new IncorrectPasswordException();
+            databaseManager.updatePasswordHash(user, PasswordUtils.hashPasswordBytes(password));
+        }
 
-        if (loggedUsers.putIfAbsent(username, user) != null) throw new UserAlreadyLoggedException();
+        // finché è loggato l'utente resta in memoria, e tutte le richieste della sessione usano la stessa istanza
+        user = databaseManager.pinUser(user);
+        if (loggedUsers.putIfAbsent(username, user) != null) {
+            databaseManager.unpinUser(user);
+            throw new UserAlreadyLoggedException();
+        }
 
         return user;
     }
 
     public void logout(String username) {
-        loggedUsers.remove(username);
+        User user = loggedUsers.remove(username);
+        if (user != null) databaseManager.unpinUser(user);
     }
 
     /**
@@ -133,13 +183,65 @@ public class ServerManager {
      * @param citta
      * @param globalScore
      * @param ratings
+     * @throws IllegalArgumentException se uno dei voti non è nell'intervallo ammesso
+     * @throws CompletionException se lo shard dell'hotel non è riuscito a salvare la recensione
      */
-    public void insertReview(User user, String nomeHotel, String citta, Double globalScore, Ratings ratings) {
+    public void insertReview(User user, String nomeHotel, String citta, double globalScore, Ratings ratings) throws IllegalArgumentException {
         Hotel hotel = databaseManager.getHotelByNameAndCity(nomeHotel, citta);
         if (hotel == null) throw new NullPointerException();
-        UserReview review = new UserReview(user.getUsername(), hotel.getId(), globalScore, ratings, System.currentTimeMillis());
+        CompactReview review = new CompactReview(user.getId(), hotel.getId(), globalScore, ratings, System.currentTimeMillis());
+
+        // attendo che lo shard dell'hotel abbia applicato la recensione, così il client la vede già nelle medie
+        databaseManager.insertReview(review).join();
+    }
+
+    /**
+     * Permette di inserire più recensioni per conto dello stesso utente. Gli hotel vengono risolti con una sola ricerca
+     * per tutto il batch e le recensioni valide vengono inserite insieme.
+     * @param user l'utente che inserisce le recensioni
+     * @param requests le recensioni richieste dal client; un elemento null indica una richiesta malformata
+     * @return per ogni richiesta, nello stesso ordine, lo status code: 200 se inserita, 400 se la richiesta è incompleta
+     * o ha voti non validi, 404 se l'hotel non esiste, 409 se nel batch c'è una recensione successiva per lo stesso
+     * hotel (viene inserita solo l'ultima, come se fossero state inviate una dopo l'altra)
+     * @throws CompletionException se uno shard non è riuscito a salvare le sue recensioni (nessuna delle recensioni di
+     * quello shard è stata salvata)
+     */
+    public int[] insertReviews(User user, List<ReviewRequest> requests) {
+        int[] status = new int[requests.size()];
+
+        Map<String, Set<String>> namesByCity = new HashMap<>();
+        for (ReviewRequest r : requests) {
+            if (r != null && r.isValid()) namesByCity.computeIfAbsent(r.getCitta(), k -> new HashSet<>()).add(r.getNomeHotel());
+        }
+        HashMap<String, HashMap<String, Hotel>> found = databaseManager.getHotelsByNamesAndCities(namesByCity);
+
+        long now = System.currentTimeMillis();
+        // id hotel -> posizione nel batch dell'ultima recensione per quell'hotel
+        LinkedHashMap<Integer, Integer> lastByHotel = new LinkedHashMap<>();
+        CompactReview[] reviews = new CompactReview[status.length];
+        for (int i = 0; i < status.length; i++) {
+            ReviewRequest r = requests.get(i);
+            if (r == null || !r.isValid()) {
+                status[i] = 400;
+                continue;
+            }
+            HashMap<String, Hotel> cityHotels = found.get(r.getCitta());
+            Hotel hotel = cityHotels == null ? null : cityHotels.get(r.getNomeHotel());
+            if (hotel == null) {
+                status[i] = 404;
+                continue;
+            }
+            reviews[i] = new CompactReview(user.getId(), hotel.getId(), r.getGlobalScore(), r.getSingleScores(), now);
+            status[i] = 200;
+            // la recensione dello stesso utente per lo stesso hotel sostituisce quella precedente nel batch
+            Integer previous = lastByHotel.put(hotel.getId(), i);
+            if (previous != null) status[previous] = 409;
+        }
 
-        databaseManager.insertReview(review);
+        List<CompactReview> toInsert = new ArrayList<>(lastByHotel.size());
+        for (int i : lastByHotel.values()) toInsert.add(reviews[i]);
+        databaseManager.insertReviews(toInsert).join();
+        return status;
     }
 
 }
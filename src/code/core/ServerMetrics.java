@@ -0,0 +1,269 @@
+package code.core;
+
+import code.utils.LatencyHistogram;
+import code.utils.Log;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Metriche del server: istogramma delle latenze e contatori degli status code per ogni comando, connessioni attive,
+ * stato del pool delle connessioni, code degli stadi di elaborazione ({@link Stage}) e durate di persistData e
+ * updateLocalRankings.<br>
+ * Gli aggiornamenti sono contatori atomici senza lock, quindi possono essere fatti ad ogni richiesta. Le metriche sono
+ * lette con il comando stats (vedi {@link ConnectionHandler}) e via JMX ({@link ServerMetricsMBean}).
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final ServerMetrics instance = new ServerMetrics();
+
+    private final long startTime = System.currentTimeMillis();
+
+    // chiave -> comando
+    private final ConcurrentHashMap<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+    // chiave -> comando, valore -> (status code -> numero di risposte)
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> statusCodes = new ConcurrentHashMap<>();
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder totalConnections = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    // risposte compresse e byte dei loro corpi prima e dopo la compressione
+    private final LongAdder compressedResponses = new LongAdder();
+    private final LongAdder compressionInputBytes = new LongAdder();
+    private final LongAdder compressionOutputBytes = new LongAdder();
+    private volatile ThreadPoolExecutor connectionPool;
+    private final List<Stage> stages = new CopyOnWriteArrayList<>();
+    private final List<RateLimiter> rateLimiters = new CopyOnWriteArrayList<>();
+
+    private final LatencyHistogram persistData = new LatencyHistogram();
+    private final LatencyHistogram rankingUpdates = new LatencyHistogram();
+    private final AtomicLong lastPersistData = new AtomicLong();
+    private final AtomicLong lastRankingUpdate = new AtomicLong();
+
+    private ServerMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("code.core:type=ServerMetrics"));
+        } catch (JMException e) {
+            Log.warn("Impossibile registrare le metriche su JMX", "errore", e.getMessage());
+        }
+    }
+
+    public static ServerMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Registra una richiesta completata
+     * @param command il comando, oppure "unknown" per i comandi non riconosciuti
+     * @param status lo status code della risposta (ad esempio "200")
+     * @param nanos durata dalla lettura del comando all'invio della risposta
+     */
+    public void recordRequest(String command, String status, long nanos) {
+        commands.computeIfAbsent(command, k -> new LatencyHistogram()).record(nanos / 1000);
+        statusCodes.computeIfAbsent(command, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(status, k -> new LongAdder()).increment();
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+        totalConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    public void setConnectionPool(ThreadPoolExecutor pool) {
+        this.connectionPool = pool;
+    }
+
+    public void addStage(Stage stage) {
+        stages.add(stage);
+    }
+
+    public void addRateLimiter(RateLimiter limiter) {
+        rateLimiters.add(limiter);
+    }
+
+    public void recordCompression(int inputBytes, int outputBytes) {
+        compressedResponses.increment();
+        compressionInputBytes.add(inputBytes);
+        compressionOutputBytes.add(outputBytes);
+    }
+
+    public void recordPersistData(long nanos) {
+        persistData.record(nanos / 1000);
+        lastPersistData.set(nanos);
+    }
+
+    public void recordRankingUpdate(long nanos) {
+        rankingUpdates.record(nanos / 1000);
+        lastRankingUpdate.set(nanos);
+    }
+
+    /**
+     * @return tutte le metriche, nel formato restituito dal comando stats
+     */
+    public Map<String, Object> snapshot() {
+        LinkedHashMap<String, Object> s = new LinkedHashMap<>();
+        s.put("uptimeSeconds", (System.currentTimeMillis() - startTime) / 1000);
+
+        LinkedHashMap<String, Object> connections = new LinkedHashMap<>();
+        connections.put("active", getActiveConnections());
+        connections.put("total", getTotalConnections());
+        connections.put("rejected", getRejectedConnections());
+        s.put("connections", connections);
+
+        ThreadPoolExecutor pool = connectionPool;
+        if (pool != null) {
+            LinkedHashMap<String, Object> p = new LinkedHashMap<>();
+            p.put("active", pool.getActiveCount());
+            p.put("size", pool.getPoolSize());
+            p.put("largest", pool.getLargestPoolSize());
+            p.put("max", pool.getMaximumPoolSize());
+            s.put("pool", p);
+        }
+
+        if (!stages.isEmpty()) {
+            LinkedHashMap<String, Object> st = new LinkedHashMap<>();
+            for (Stage stage : stages) st.put(stage.getName(), stage.snapshot());
+            s.put("stages", st);
+        }
+
+        if (!rateLimiters.isEmpty()) {
+            // numero di chiavi (indirizzi o utenti) ricordate da ogni limitatore
+            LinkedHashMap<String, Object> rl = new LinkedHashMap<>();
+            for (RateLimiter limiter : rateLimiters) rl.put(limiter.getName(), limiter.size());
+            s.put("rateLimiterKeys", rl);
+        }
+
+        LinkedHashMap<String, Object> compression = new LinkedHashMap<>();
+        compression.put("responses", compressedResponses.sum());
+        compression.put("bytesIn", compressionInputBytes.sum());
+        compression.put("bytesOut", compressionOutputBytes.sum());
+        s.put("compression", compression);
+
+        TreeMap<String, Object> cmds = new TreeMap<>();
+        commands.forEach((command, h) -> {
+            LinkedHashMap<String, Object> c = h.summary();
+            TreeMap<String, Long> codes = new TreeMap<>();
+            ConcurrentHashMap<String, LongAdder> counters = statusCodes.get(command);
+            if (counters != null) counters.forEach((code, n) -> codes.put(code, n.sum()));
+            c.put("status", codes);
+            cmds.put(command, c);
+        });
+        s.put("commands", cmds);
+
+        s.put("persistData", persistData.summary());
+        s.put("updateLocalRankings", rankingUpdates.summary());
+        return s;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    @Override
+    public int getPoolActiveThreads() {
+        ThreadPoolExecutor pool = connectionPool;
+        return pool == null ? 0 : pool.getActiveCount();
+    }
+
+    @Override
+    public int getPoolSize() {
+        ThreadPoolExecutor pool = connectionPool;
+        return pool == null ? 0 : pool.getPoolSize();
+    }
+
+    @Override
+    public String[] getStageQueueDepths() {
+        List<String> lines = new ArrayList<>();
+        for (Stage stage : stages) lines.add(stage.getName() + " " + stage.getQueueDepth());
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public long getTotalRequests() {
+        long n = 0;
+        for (LatencyHistogram h : commands.values()) n += h.getCount();
+        return n;
+    }
+
+    @Override
+    public String[] getCommandSummaries() {
+        List<String> lines = new ArrayList<>();
+        new TreeMap<>(commands).forEach((command, h) -> {
+            Map<String, Object> c = h.summary();
+            lines.add(command + " count=" + c.get("count") + " mean=" + c.get("meanMs") + "ms p50=" + c.get("p50Ms")
+                    + "ms p99=" + c.get("p99Ms") + "ms p999=" + c.get("p999Ms") + "ms max=" + c.get("maxMs") + "ms");
+        });
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getStatusCounts() {
+        List<String> lines = new ArrayList<>();
+        new TreeMap<>(statusCodes).forEach((command, codes) ->
+                new TreeMap<>(codes).forEach((code, n) -> lines.add(command + " " + code + " " + n.sum())));
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public double getLastPersistDataMillis() {
+        return lastPersistData.get() / 1e6;
+    }
+
+    @Override
+    public double getLastRankingUpdateMillis() {
+        return lastRankingUpdate.get() / 1e6;
+    }
+
+    @Override
+    public String getSnapshotJson() {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        return gson.toJson(snapshot());
+    }
+
+    @Override
+    public void reset() {
+        commands.values().forEach(LatencyHistogram::reset);
+        statusCodes.values().forEach(codes -> codes.values().forEach(LongAdder::reset));
+        rejectedConnections.reset();
+        compressedResponses.reset();
+        compressionInputBytes.reset();
+        compressionOutputBytes.reset();
+        persistData.reset();
+        rankingUpdates.reset();
+        stages.forEach(Stage::reset);
+    }
+}
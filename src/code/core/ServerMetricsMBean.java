@@ -0,0 +1,49 @@
+package code.core;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Interfaccia JMX di {@link ServerMetrics}, registrata come code.core:type=ServerMetrics
+ */
+public interface ServerMetricsMBean {
+    int getActiveConnections();
+
+    long getTotalConnections();
+
+    long getRejectedConnections();
+
+    int getPoolActiveThreads();
+
+    int getPoolSize();
+
+    /**
+     * @return una riga per stadio di elaborazione con il numero di task in coda
+     */
+    String[] getStageQueueDepths();
+
+    long getTotalRequests();
+
+    /**
+     * @return una riga per comando: numero di richieste, media, p50, p99, p99.9 e massimo in millisecondi
+     */
+    String[] getCommandSummaries();
+
+    /**
+     * @return una riga per coppia comando/status code con il numero di risposte
+     */
+    String[] getStatusCounts();
+
+    double getLastPersistDataMillis();
+
+    double getLastRankingUpdateMillis();
+
+    /**
+     * @return tutte le metriche nello stesso formato json del comando stats
+     */
+    String getSnapshotJson();
+
+    /**
+     * Azzera istogrammi e contatori (non le connessioni attive né le code degli stadi)
+     */
+    void reset();
+}
@@ -0,0 +1,143 @@
+package code.core;
+
+import code.utils.LatencyHistogram;
+import code.utils.Log;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Uno stadio dell'elaborazione delle richieste (vedi {@link ConnectionHandler}): un pool di thread di dimensione fissa
+ * con una coda limitata.<br>
+ * I task di una connessione passano sempre per il suo {@link Serial}, che li esegue uno alla volta e nell'ordine di
+ * arrivo. Nella coda dello stadio c'è quindi al più un task per connessione, e con una coda grande quanto il numero
+ * massimo di connessioni l'inserimento non si blocca mai. Se la coda fosse comunque piena chi inserisce aspetta, senza
+ * scartare nulla.<br>
+ * Per ogni stadio vengono misurati la profondità della coda (attuale e massima) e il tempo di attesa in coda.
+ */
+public class Stage {
+    private final String name;
+    private final ThreadPoolExecutor pool;
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    /**
+     * @param name nome dello stadio, usato anche per i thread
+     * @param threads numero di thread del pool
+     * @param queueSize dimensione massima della coda, almeno il numero massimo di connessioni
+     */
+    public Stage(String name, int threads, int queueSize) {
+        this.name = name;
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> new Thread(r, name + "-" + count.incrementAndGet()),
+                (r, executor) -> {
+                    // coda piena: aspetto che si liberi un posto invece di rifiutare il task
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+        this.pool.prestartAllCoreThreads();
+        ServerMetrics.getInstance().addStage(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return un nuovo esecutore seriale su questo stadio, da usare per i task di una sola connessione
+     */
+    public Serial serial() {
+        return new Serial();
+    }
+
+    private void submit(Runnable task) {
+        long enqueued = System.nanoTime();
+        pool.execute(() -> {
+            queueWait.record((System.nanoTime() - enqueued) / 1000);
+            task.run();
+        });
+        maxQueueDepth.accumulateAndGet(pool.getQueue().size(), Math::max);
+    }
+
+    /**
+     * Esegue i task di una connessione uno alla volta, nell'ordine in cui sono stati inseriti. Dopo ogni task, se ce ne
+     * sono altri, si rimette in fondo alla coda dello stadio, così una connessione con molti task non fa aspettare le
+     * altre
+     */
+    public final class Serial implements Executor {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled = false;
+
+        private Serial() {
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (scheduled) return;
+                scheduled = true;
+            }
+            submit(this::runNext);
+        }
+
+        private void runNext() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("Errore nello stadio " + name, e);
+            }
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            submit(this::runNext);
+        }
+    }
+
+    /**
+     * @return le metriche dello stadio, nel formato restituito dal comando stats
+     */
+    public LinkedHashMap<String, Object> snapshot() {
+        LinkedHashMap<String, Object> s = new LinkedHashMap<>();
+        s.put("threads", pool.getPoolSize());
+        s.put("active", pool.getActiveCount());
+        s.put("queued", getQueueDepth());
+        s.put("maxQueued", maxQueueDepth.get());
+        s.put("completed", pool.getCompletedTaskCount());
+        s.put("queueWait", queueWait.summary());
+        return s;
+    }
+
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Azzera il massimo della coda e l'istogramma delle attese
+     */
+    public void reset() {
+        maxQueueDepth.set(0);
+        queueWait.reset();
+    }
+}
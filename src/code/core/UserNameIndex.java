@@ -0,0 +1,188 @@
+package code.core;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Indice su disco (Users.idx) da username a id utente, usato da {@link UserStore} per non tenere gli username nello
+ * heap. È una tabella hash a indirizzamento aperto mappata in memoria: ogni slot contiene l'hash dello username e
+ * l'id + 1 (0 se lo slot è vuoto). Gli username non sono nell'indice: una ricerca confronta quello del record in
+ * Users.dat, e l'hash evita quasi sempre di leggere record che non corrispondono.<br>
+ * L'intestazione contiene la capacità, il numero di utenti indicizzati e un flag che indica se l'indice non è stato
+ * più modificato dopo l'ultimo {@link #force()}. All'apertura, se il flag manca o il numero di utenti non corrisponde ai
+ * record di Users.dat (ad esempio dopo un arresto tra la scrittura del record e quella dell'indice), l'indice viene
+ * ricostruito leggendo Users.dat. Quando è pieno per metà viene riscritto con capacità doppia in un nuovo file.
+ */
+class UserNameIndex {
+    private static final int MAGIC = 0x55494458;
+    private static final int HEADER = 16;
+    private static final int SLOT = 8;
+    private static final int MIN_CAPACITY = 1024;
+    // 2^27 slot da 8 byte: 1GB, il massimo per un singolo MappedByteBuffer è 2GB
+    private static final int MAX_CAPACITY = 1 << 27;
+
+    private static final int CAPACITY = 4;
+    private static final int COUNT = 8;
+    private static final int CLEAN = 12;
+
+    private final Path path;
+    // sostituita quando l'indice cresce; le scritture sono fatte da UserStore con il suo lock
+    private volatile MappedByteBuffer table;
+    private int capacity;
+    private int count;
+    private boolean clean;
+
+    /**
+     * Restituisce lo username salvato in Users.dat per un id
+     */
+    @FunctionalInterface
+    interface Names {
+        String nameOf(int id) throws IOException;
+    }
+
+    /**
+     * Apre l'indice, ricostruendolo se non corrisponde a Users.dat
+     * @param path il file Users.idx
+     * @param users numero di record in Users.dat
+     * @param names username di ogni id, letti da Users.dat
+     */
+    UserNameIndex(Path path, int users, Names names) throws IOException {
+        this.path = path;
+        if (!open(users)) rebuild(users, names);
+    }
+
+    private boolean open(int users) throws IOException {
+        if (!Files.exists(path) || Files.size(path) < HEADER) return false;
+
+        MappedByteBuffer t;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            t = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        int c = t.getInt(CAPACITY);
+        if (t.getInt(0) != MAGIC || t.getInt(CLEAN) != 1 || t.getInt(COUNT) != users
+                || Integer.bitCount(c) != 1 || c > MAX_CAPACITY || t.capacity() != HEADER + (long) c * SLOT) {
+            return false;
+        }
+
+        table = t;
+        capacity = c;
+        count = users;
+        clean = true;
+        return true;
+    }
+
+    private void rebuild(int users, Names names) throws IOException {
+        MappedByteBuffer t = create(capacityFor(users));
+        int c = t.getInt(CAPACITY);
+        for (int id = 0; id < users; id++) insert(t, c, hash(names.nameOf(id)), id);
+        t.putInt(COUNT, users);
+        replace(t, c, users);
+    }
+
+    private static int capacityFor(int users) {
+        int c = MIN_CAPACITY;
+        while (c < MAX_CAPACITY && c / 2 <= users) c *= 2;
+        return c;
+    }
+
+    /**
+     * Crea un indice vuoto in un file temporaneo, che diventa l'indice con {@link #replace(MappedByteBuffer, int, int)}
+     */
+    private MappedByteBuffer create(int c) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        MappedByteBuffer t;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            t = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) c * SLOT);
+        }
+        t.putInt(0, MAGIC);
+        t.putInt(CAPACITY, c);
+        return t;
+    }
+
+    private void replace(MappedByteBuffer t, int c, int n) throws IOException {
+        t.putInt(CLEAN, 1);
+        t.force();
+        Files.move(path.resolveSibling(path.getFileName() + ".tmp"), path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        table = t;
+        capacity = c;
+        count = n;
+        clean = true;
+    }
+
+    private static int hash(String username) {
+        int h = username.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static void insert(MappedByteBuffer t, int c, int hash, int id) {
+        int slot = hash & (c - 1);
+        while (t.getInt(HEADER + slot * SLOT + 4) != 0) slot = (slot + 1) & (c - 1);
+        // prima l'hash e poi l'id: chi legge considera lo slot occupato solo quando vede l'id
+        t.putInt(HEADER + slot * SLOT, hash);
+        t.putInt(HEADER + slot * SLOT + 4, id + 1);
+    }
+
+    /**
+     * @return l'id dello username, oppure -1 se non è nell'indice
+     */
+    int find(String username, Names names) throws IOException {
+        MappedByteBuffer t = table;
+        int c = t.getInt(CAPACITY);
+        int hash = hash(username);
+        for (int slot = hash & (c - 1); ; slot = (slot + 1) & (c - 1)) {
+            int id = t.getInt(HEADER + slot * SLOT + 4) - 1;
+            if (id < 0) return -1;
+            if (t.getInt(HEADER + slot * SLOT) == hash && username.equals(names.nameOf(id))) return id;
+        }
+    }
+
+    /**
+     * Aggiunge uno username appena registrato. Va chiamato con il lock di {@link UserStore}
+     * @throws IOException se l'indice non può crescere oltre {@value #MAX_CAPACITY} slot
+     */
+    void add(String username, int id) throws IOException {
+        if (count + 1 > capacity / 2) grow();
+        if (clean) setClean(false);
+        insert(table, capacity, hash(username), id);
+        table.putInt(COUNT, ++count);
+    }
+
+    private void grow() throws IOException {
+        if (capacity == MAX_CAPACITY) throw new IOException("Indice degli utenti pieno");
+
+        MappedByteBuffer old = table;
+        MappedByteBuffer t = create(capacity * 2);
+        for (int slot = 0; slot < capacity; slot++) {
+            int id = old.getInt(HEADER + slot * SLOT + 4) - 1;
+            if (id >= 0) insert(t, capacity * 2, old.getInt(HEADER + slot * SLOT), id);
+        }
+        t.putInt(COUNT, count);
+        replace(t, capacity * 2, count);
+    }
+
+    private void setClean(boolean clean) {
+        table.putInt(CLEAN, clean ? 1 : 0);
+        this.clean = clean;
+    }
+
+    /**
+     * Forza la scrittura dell'indice su disco e lo segna come completo fino alla prossima modifica. Va chiamato con il
+     * lock di {@link UserStore}
+     */
+    void force() {
+        if (clean) return;
+        table.force();
+        setClean(true);
+        table.force();
+    }
+}
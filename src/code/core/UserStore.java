@@ -0,0 +1,347 @@
+package code.core;
+
+import code.entities.User;
+import code.exceptions.UsernameConflictException;
+import code.utils.PasswordUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Tabella degli utenti salvata su disco (Users.dat) con in memoria solo gli utenti usati di recente.<br>
+ * Il file contiene un record di {@value #RECORD_SIZE} byte per utente, in posizione id * {@value #RECORD_SIZE}:
+ * lunghezza dello username (short), flag (byte), username in UTF-8 (al massimo {@value #MAX_USERNAME_BYTES} byte),
+ * hash della password e numero di recensioni (int). Leggere o aggiornare un utente è quindi una sola lettura o
+ * scrittura posizionale.<br>
+ * Gli username non restano nello heap: la ricerca per username usa l'indice su disco Users.idx (vedi
+ * {@link UserNameIndex}) e lo username di un id viene letto dal suo record. Gli oggetti {@link User} stanno in una cache
+ * LRU limitata in byte; gli utenti loggati sono "fissati" e non vengono mai eliminati dalla cache, così esiste un solo
+ * oggetto per ogni utente che può inserire recensioni. Quando un utente esce dalla cache il suo numero di recensioni
+ * viene riscritto su disco. In memoria restano quindi solo la cache, gli utenti loggati e il numero di utenti.
+ */
+public class UserStore {
+    static final int RECORD_SIZE = 128;
+    public static final int MAX_USERNAME_BYTES = 89;
+
+    private static final int NAME_LENGTH = 0;
+    private static final int FLAGS = 2;
+    private static final int NAME = 3;
+    private static final int HASH = NAME + MAX_USERNAME_BYTES;
+    private static final int NUM_RECENSIONI = HASH + PasswordUtils.HASH_LENGTH;
+
+    private static final byte FLAG_HAS_HASH = 1;
+
+    // stima dello spazio occupato da un User in cache oltre allo username (oggetto, hash, contatore, voce della mappa)
+    private static final int USER_OVERHEAD = 240;
+
+    private final FileChannel channel;
+    // vista in sola lettura dei record presenti all'ultima mappatura, per leggere gli username senza una chiamata di
+    // sistema; i record aggiunti dopo vengono letti dal canale fino alla prossima flush()
+    private volatile MappedByteBuffer records;
+    // username -> id, modificato solo con il lock su 'this'
+    private final UserNameIndex index;
+    private volatile int numUsers;
+
+    // utenti caricati; 'cache' e 'pinned' sono protetti dal lock su 'this'
+    private final long maxCacheBytes;
+    private long cacheBytes = 0;
+    private final LinkedHashMap<Integer, User> cache = new LinkedHashMap<>(64, 0.75f, true);
+    // chiave -> id, valore -> utente e numero di sessioni che lo tengono fissato
+    private final HashMap<Integer, Pinned> pinned = new HashMap<>();
+
+    private static final class Pinned {
+        private final User user;
+        private int count;
+
+        private Pinned(User user) {
+            this.user = user;
+        }
+    }
+
+    /**
+     * Apre (o crea) il file degli utenti e il suo indice Users.idx, nella stessa cartella
+     * @param file il file Users.dat
+     * @param maxCacheBytes memoria massima stimata occupata dagli utenti in cache (esclusi quelli loggati)
+     * @throws IOException se il file non può essere aperto o letto
+     */
+    public UserStore(File file, long maxCacheBytes) throws IOException {
+        this.maxCacheBytes = maxCacheBytes;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        this.numUsers = (int) (channel.size() / RECORD_SIZE);
+        mapRecords();
+        this.index = new UserNameIndex(file.toPath().resolveSibling("Users.idx"), numUsers, this::readUsername);
+    }
+
+    /**
+     * @return true se lo username è abbastanza corto da essere salvato
+     */
+    public static boolean isValidUsername(String username) {
+        return username.getBytes(StandardCharsets.UTF_8).length <= MAX_USERNAME_BYTES;
+    }
+
+    /*
+    Le chiamate a clear(), flip(), position(int) e duplicate() passano da Buffer (o da ByteBuffer): da Java 9
+    ByteBuffer e MappedByteBuffer ridefiniscono questi metodi con un tipo di ritorno più specifico, e un jar compilato
+    con -source/-target 1.8 da un JDK più recente fallirebbe su Java 8 con NoSuchMethodError
+     */
+    private void readRecord(int id, ByteBuffer record) throws IOException {
+        ((Buffer) record).clear();
+        long position = (long) id * RECORD_SIZE;
+        while (record.hasRemaining()) {
+            if (channel.read(record, position + record.position()) < 0) throw new IOException("Users.dat troncato");
+        }
+        ((Buffer) record).flip();
+    }
+
+    private static String username(ByteBuffer record) {
+        return new String(record.array(), NAME, record.getShort(NAME_LENGTH), StandardCharsets.UTF_8);
+    }
+
+    private void mapRecords() throws IOException {
+        // un MappedByteBuffer non può superare i 2GB: gli utenti oltre vengono sempre letti dal canale
+        long size = Math.min((long) numUsers * RECORD_SIZE, Integer.MAX_VALUE / RECORD_SIZE * (long) RECORD_SIZE);
+        if (records == null || size > records.capacity()) records = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /**
+     * Legge dal record solo lo username
+     */
+    private String readUsername(int id) throws IOException {
+        MappedByteBuffer mapped = records;
+        long offset = (long) id * RECORD_SIZE;
+        if (offset + RECORD_SIZE <= mapped.capacity()) {
+            ByteBuffer r = ((ByteBuffer) mapped).duplicate();
+            ((Buffer) r).position((int) offset);
+            byte[] name = new byte[r.getShort()];
+            ((Buffer) r).position((int) offset + NAME);
+            r.get(name);
+            return new String(name, StandardCharsets.UTF_8);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(NAME + MAX_USERNAME_BYTES);
+        long position = (long) id * RECORD_SIZE;
+        while (record.hasRemaining()) {
+            if (channel.read(record, position + record.position()) < 0) throw new IOException("Users.dat troncato");
+        }
+        return username(record);
+    }
+
+    private void writeRecord(User user) throws IOException {
+        byte[] name = user.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] hash = user.getPasswordHash();
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putShort(NAME_LENGTH, (short) name.length);
+        record.put(FLAGS, hash != null ? FLAG_HAS_HASH : 0);
+        ((Buffer) record).position(NAME);
+        record.put(name);
+        if (hash != null) {
+            ((Buffer) record).position(HASH);
+            record.put(hash);
+        }
+        record.putInt(NUM_RECENSIONI, user.getNumRecensioni());
+        ((Buffer) record).clear();
+
+        long position = (long) user.getId() * RECORD_SIZE;
+        while (record.hasRemaining()) channel.write(record, position + record.position());
+    }
+
+    private void writeNumRecensioni(User user) throws IOException {
+        ByteBuffer count = ByteBuffer.allocate(Integer.BYTES);
+        count.putInt(0, user.getNumRecensioni());
+        long position = (long) user.getId() * RECORD_SIZE + NUM_RECENSIONI;
+        while (count.hasRemaining()) channel.write(count, position + count.position());
+    }
+
+    private User load(int id) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        readRecord(id, record);
+
+        User user = new User();
+        user.setId(id);
+        user.setUsername(username(record));
+        if (record.get(FLAGS) == FLAG_HAS_HASH) {
+            user.setPasswordHash(Arrays.copyOfRange(record.array(), HASH, HASH + PasswordUtils.HASH_LENGTH));
+        }
+        user.setNumRecensioni(record.getInt(NUM_RECENSIONI));
+        return user;
+    }
+
+    private static long sizeOf(User user) {
+        return 2L * user.getUsername().length() + USER_OVERHEAD;
+    }
+
+    /**
+     * Inserisce l'utente in cache ed elimina quelli usati meno di recente se si supera il limite. Chiamato con il lock
+     */
+    private void cache(User user) throws IOException {
+        if (cache.put(user.getId(), user) == null) cacheBytes += sizeOf(user);
+
+        Iterator<User> it = cache.values().iterator();
+        while (cacheBytes > maxCacheBytes && it.hasNext()) {
+            User evicted = it.next();
+            it.remove();
+            cacheBytes -= sizeOf(evicted);
+            writeNumRecensioni(evicted);
+        }
+    }
+
+    /**
+     * Registra un nuovo utente, assegnandogli il primo id libero, e lo scrive subito su disco
+     * @throws UsernameConflictException se esiste già un utente con lo stesso username
+     * @throws IllegalArgumentException se lo username è più lungo di {@value #MAX_USERNAME_BYTES} byte
+     */
+    public synchronized User register(User user) throws UsernameConflictException, IllegalArgumentException, IOException {
+        if (!isValidUsername(user.getUsername())) throw new IllegalArgumentException("Username troppo lungo");
+        if (getId(user.getUsername()) >= 0) throw new UsernameConflictException();
+
+        user.setId(numUsers);
+        writeRecord(user);
+        index.add(user.getUsername(), user.getId());
+        numUsers = user.getId() + 1;
+        cache(user);
+        return user;
+    }
+
+    /**
+     * Sostituisce l'hash della password dell'utente e riscrive il suo record su disco
+     */
+    public synchronized void updatePasswordHash(User user, byte[] passwordHash) throws IOException {
+        user.setPasswordHash(passwordHash);
+        writeRecord(user);
+    }
+
+    /**
+     * @return l'id dell'utente, oppure -1 se non esiste. Non carica l'utente
+     */
+    public int getId(String username) throws IOException {
+        int id = index.find(username, this::readUsername);
+        return id < numUsers ? id : -1;
+    }
+
+    /**
+     * @return lo username dell'utente letto da Users.dat, oppure null se non esiste. Non carica l'utente
+     */
+    public String getUsername(int id) throws IOException {
+        return id >= 0 && id < numUsers ? readUsername(id) : null;
+    }
+
+    public int size() {
+        return numUsers;
+    }
+
+    /**
+     * Restituisce l'utente, caricandolo da disco se non è in memoria
+     * @return l'utente, oppure null se non esiste
+     */
+    public synchronized User get(int id) throws IOException {
+        if (id < 0 || id >= numUsers) return null;
+
+        Pinned p = pinned.get(id);
+        if (p != null) return p.user;
+
+        User user = cache.get(id);
+        if (user == null) {
+            user = load(id);
+            cache(user);
+        }
+        return user;
+    }
+
+    public User get(String username) throws IOException {
+        return get(getId(username));
+    }
+
+    /**
+     * Fissa l'utente in memoria finché non viene chiamato {@link #unpin(User)} lo stesso numero di volte
+     * @return l'unica istanza in memoria dell'utente, da usare al posto di quella passata
+     */
+    public synchronized User pin(User user) throws IOException {
+        int id = user.getId();
+        Pinned p = pinned.get(id);
+        if (p == null) {
+            User cached = cache.remove(id);
+            if (cached != null) cacheBytes -= sizeOf(cached);
+            else cached = load(id);
+            p = new Pinned(cached);
+            pinned.put(id, p);
+        }
+        p.count++;
+        return p.user;
+    }
+
+    /**
+     * Toglie un fissaggio: quando non ne restano, l'utente torna nella cache e può esserne eliminato
+     */
+    public synchronized void unpin(User user) throws IOException {
+        Pinned p = pinned.get(user.getId());
+        if (p == null) return;
+        if (--p.count == 0) {
+            pinned.remove(user.getId());
+            cache(p.user);
+        }
+    }
+
+    /**
+     * Riscrive su disco il numero di recensioni degli utenti in memoria e forza la scrittura del file e dell'indice
+     */
+    public void flush() throws IOException {
+        User[] loaded;
+        synchronized (this) {
+            loaded = new User[cache.size() + pinned.size()];
+            int i = 0;
+            for (User u : cache.values()) loaded[i++] = u;
+            for (Pinned p : pinned.values()) loaded[i++] = p.user;
+        }
+        for (User u : loaded) writeNumRecensioni(u);
+        channel.force(false);
+        synchronized (this) {
+            index.force();
+        }
+        mapRecords();
+    }
+
+    /**
+     * Riceve i dati di un utente salvato senza che venga caricato in cache
+     */
+    @FunctionalInterface
+    public interface UserVisitor {
+        void visit(String username, byte[] passwordHash, int numRecensioni) throws IOException;
+    }
+
+    /**
+     * Legge tutti gli utenti dal file in ordine di id, senza caricarli in cache. Va chiamato dopo {@link #flush()}
+     * perché i contatori su disco siano aggiornati
+     */
+    public void forEach(UserVisitor visitor) throws IOException {
+        int n = numUsers;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        for (int id = 0; id < n; id++) {
+            readRecord(id, record);
+            byte[] hash = record.get(FLAGS) == FLAG_HAS_HASH
+                    ? Arrays.copyOfRange(record.array(), HASH, HASH + PasswordUtils.HASH_LENGTH) : null;
+            visitor.visit(username(record), hash, record.getInt(NUM_RECENSIONI));
+        }
+    }
+
+    /**
+     * Stima della memoria occupata dagli utenti in cache (esclusi quelli loggati)
+     */
+    public synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+}
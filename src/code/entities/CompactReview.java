@@ -0,0 +1,109 @@
+package code.entities;
+
+/**
+ * Rappresentazione in memoria di una recensione. Al posto dello username contiene l'id numerico dell'utente e i cinque
+ * voti (globale, pulizia, posizione, servizi, qualità) sono impacchettati in un unico long: ogni voto è salvato in
+ * centesimi (da 0 a 500) su {@value #SCORE_BITS} bit. Le recensioni sono immutabili: una nuova recensione dello stesso
+ * utente per lo stesso hotel sostituisce l'oggetto.<br>
+ * La conversione da/verso {@link UserReview} avviene solo in lettura/scrittura su disco e verso i client
+ */
+public final class CompactReview {
+    public static final int SCORE_BITS = 9;
+    private static final int SCORE_MASK = (1 << SCORE_BITS) - 1;
+
+    public static final double MIN_SCORE = 0.0;
+    public static final double MAX_SCORE = 5.0;
+
+    // posizione dei voti all'interno di 'scores'
+    public static final int GLOBAL = 0;
+    public static final int CLEANING = 1;
+    public static final int POSITION = 2;
+    public static final int SERVICES = 3;
+    public static final int QUALITY = 4;
+
+    private final int userId;
+    private final int hotelId;
+    private final long scores;
+    private final long timestamp;
+
+    public CompactReview(int userId, int hotelId, long scores, long timestamp) {
+        this.userId = userId;
+        this.hotelId = hotelId;
+        this.scores = scores;
+        this.timestamp = timestamp;
+    }
+
+    public CompactReview(int userId, int hotelId, double rating, Ratings ratings, long timestamp) {
+        this(userId, hotelId, packScores(rating, ratings), timestamp);
+    }
+
+    /**
+     * Impacchetta i cinque voti in un long, arrotondandoli al centesimo
+     * @throws IllegalArgumentException se un voto non è compreso tra {@link #MIN_SCORE} e {@link #MAX_SCORE}
+     */
+    public static long packScores(double rating, Ratings ratings) throws IllegalArgumentException {
+        return toHundredths(rating) << (GLOBAL * SCORE_BITS)
+                | toHundredths(ratings.getCleaning()) << (CLEANING * SCORE_BITS)
+                | toHundredths(ratings.getPosition()) << (POSITION * SCORE_BITS)
+                | toHundredths(ratings.getServices()) << (SERVICES * SCORE_BITS)
+                | toHundredths(ratings.getQuality()) << (QUALITY * SCORE_BITS);
+    }
+
+    /**
+     * @return {@code true} se il voto può essere salvato in una recensione
+     */
+    public static boolean isValidScore(double score) {
+        return score >= MIN_SCORE && score <= MAX_SCORE;
+    }
+
+    private static long toHundredths(double score) {
+        if (!isValidScore(score)) throw new IllegalArgumentException("Voto non valido: " + score);
+        return Math.round(score * 100);
+    }
+
+    /**
+     * @param scores voti impacchettati
+     * @param which uno tra {@link #GLOBAL}, {@link #CLEANING}, {@link #POSITION}, {@link #SERVICES}, {@link #QUALITY}
+     * @return il voto richiesto espresso in centesimi
+     */
+    public static int scoreHundredths(long scores, int which) {
+        return (int) (scores >>> (which * SCORE_BITS)) & SCORE_MASK;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public int getHotelId() {
+        return hotelId;
+    }
+
+    public long getScores() {
+        return scores;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getHundredths(int which) {
+        return scoreHundredths(scores, which);
+    }
+
+    public double getRating() {
+        return getHundredths(GLOBAL) / 100.0;
+    }
+
+    public Ratings getRatings() {
+        return new Ratings(getHundredths(CLEANING) / 100.0, getHundredths(POSITION) / 100.0,
+                getHundredths(SERVICES) / 100.0, getHundredths(QUALITY) / 100.0);
+    }
+
+    /**
+     * Crea la rappresentazione esterna della recensione
+     * @param username lo username corrispondente a {@link #getUserId()}
+     */
+    public UserReview toUserReview(String username) {
+        return new UserReview(username, hotelId, getRating(), getRatings(), timestamp);
+    }
+}
@@ -1,47 +1,62 @@
 package code.entities;
 
+import code.utils.ServiceDictionary;
+import com.google.gson.annotations.JsonAdapter;
+
 import java.io.Serializable;
 import java.util.List;
 
 public class Hotel implements Serializable {
     private static final long serialVersionUID = 1;
 
-    private Integer id;
+    private int id;
     private String name;
     private String description;
     private String city;
     private String phone;
-    private List<String> services;
-    private Double rate;
+    // maschera dei servizi, vedi ServiceDictionary. In json resta un array di nomi
+    @JsonAdapter(ServiceDictionary.MaskAdapter.class)
+    private long services;
+    private double rate;
     private Ratings ratings;
-    private Integer rank = 0;
+    private int rank = 0;
 
-    // serve solo per il calcolo dei rank, non deve essere salvato e nemmeno visibile quando trasmesso al client
-    private transient Double rankValue = null;
-    private transient Long distanzaUltimaRecensione = null;
+    // servono solo per il calcolo dei rank, non devono essere salvati e nemmeno visibili quando trasmessi al client
+    // NO_RANK_VALUE / NO_REVIEWS indicano che l'hotel non ha ancora recensioni
+    public static final double NO_RANK_VALUE = Double.NaN;
+    public static final long NO_REVIEWS = Long.MAX_VALUE;
+    private transient double rankValue = NO_RANK_VALUE;
+    private transient long distanzaUltimaRecensione = NO_REVIEWS;
 
 
-    public void setDistanzaUltimaRecensione(Long distanzaUltimaRecensione) {
+    public void setDistanzaUltimaRecensione(long distanzaUltimaRecensione) {
         this.distanzaUltimaRecensione = distanzaUltimaRecensione;
     }
 
-    public Long getDistanzaUltimaRecensione() {
+    public long getDistanzaUltimaRecensione() {
         return distanzaUltimaRecensione;
     }
 
-    public Double getRankValue() {
+    public double getRankValue() {
         return rankValue;
     }
 
-    public void setRankValue(Double rankValue) {
+    public void setRankValue(double rankValue) {
         this.rankValue = rankValue;
     }
 
-    public Integer getId() {
+    /**
+     * @return {@code true} se l'hotel ha almeno una recensione e quindi un rankValue calcolato
+     */
+    public boolean hasRankValue() {
+        return !Double.isNaN(rankValue);
+    }
+
+    public int getId() {
         return id;
     }
 
-    public void setId(Integer id) {
+    public void setId(int id) {
         this.id = id;
     }
 
@@ -77,19 +92,35 @@ public class Hotel implements Serializable {
         this.phone = phone;
     }
 
+    /**
+     * @return i servizi dell'hotel, nell'ordine del {@link ServiceDictionary} e non in quello con cui sono stati
+     * impostati
+     */
     public List<String> getServices() {
+        return ServiceDictionary.toList(services);
+    }
+
+    /**
+     * @throws IllegalArgumentException se un servizio nuovo supera il massimo di servizi diversi
+     * (vedi {@link ServiceDictionary#MAX_SERVICES})
+     */
+    public void setServices(List<String> services) throws IllegalArgumentException {
+        this.services = ServiceDictionary.internMask(services);
+    }
+
+    public long getServicesMask() {
         return services;
     }
 
-    public void setServices(List<String> services) {
+    public void setServicesMask(long services) {
         this.services = services;
     }
 
-    public Double getRate() {
+    public double getRate() {
         return rate;
     }
 
-    public void setRate(Double rate) {
+    public void setRate(double rate) {
         this.rate = rate;
     }
 
@@ -101,11 +132,11 @@ public class Hotel implements Serializable {
         this.ratings = ratings;
     }
 
-    public Integer getRank() {
+    public int getRank() {
         return rank;
     }
 
-    public void setRank(Integer rank) {
+    public void setRank(int rank) {
         this.rank = rank;
     }
 
@@ -117,7 +148,7 @@ public class Hotel implements Serializable {
                 ", description='" + description + '\'' +
                 ", city='" + city + '\'' +
                 ", phone='" + phone + '\'' +
-                ", services=" + services +
+                ", services=" + getServices() +
                 ", rate=" + rate +
                 ", raitings=" + ratings +
                 '}';
@@ -0,0 +1,52 @@
+package code.entities;
+
+/**
+ * Filtro opzionale per la ricerca degli hotel di una città: servizi richiesti (come maschera, vedi
+ * {@link code.utils.ServiceDictionary}), voto minimo e voti minimi per categoria. I valori di default (nessun servizio
+ * e minimi a 0) accettano tutti gli hotel
+ */
+public class HotelFilter {
+    public static final HotelFilter NONE = new HotelFilter(0L, 0.0, new Ratings(0.0, 0.0, 0.0, 0.0));
+
+    private final long requiredServices;
+    private final double minRate;
+    private final Ratings minRatings;
+
+    public HotelFilter(long requiredServices, double minRate, Ratings minRatings) {
+        this.requiredServices = requiredServices;
+        this.minRate = minRate;
+        this.minRatings = minRatings;
+    }
+
+    public long getRequiredServices() {
+        return requiredServices;
+    }
+
+    public double getMinRate() {
+        return minRate;
+    }
+
+    public Ratings getMinRatings() {
+        return minRatings;
+    }
+
+    /**
+     * @return {@code true} se il filtro accetta tutti gli hotel
+     */
+    public boolean isEmpty() {
+        return requiredServices == 0 && minRate <= 0 && minRatings.getCleaning() <= 0 && minRatings.getPosition() <= 0
+                && minRatings.getServices() <= 0 && minRatings.getQuality() <= 0;
+    }
+
+    /**
+     * @return {@code true} se l'hotel offre tutti i servizi richiesti e rispetta i voti minimi
+     */
+    public boolean matches(Hotel h) {
+        if ((h.getServicesMask() & requiredServices) != requiredServices) return false;
+        if (h.getRate() < minRate) return false;
+
+        Ratings r = h.getRatings();
+        return r.getCleaning() >= minRatings.getCleaning() && r.getPosition() >= minRatings.getPosition()
+                && r.getServices() >= minRatings.getServices() && r.getQuality() >= minRatings.getQuality();
+    }
+}
@@ -0,0 +1,31 @@
+package code.entities;
+
+import java.util.List;
+
+/**
+ * Pagina della classifica locale di una città restituita da searchAllHotels quando il client usa "limit" o "cursor".
+ * 'nextCursor' è null (e quindi non compare nel json) sull'ultima pagina
+ */
+public class HotelPage {
+    private final long version;
+    private final List<Hotel> hotels;
+    private final String nextCursor;
+
+    public HotelPage(long version, List<Hotel> hotels, String nextCursor) {
+        this.version = version;
+        this.hotels = hotels;
+        this.nextCursor = nextCursor;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Hotel> getHotels() {
+        return hotels;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
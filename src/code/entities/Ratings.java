@@ -5,47 +5,47 @@ import java.io.Serializable;
 public class Ratings implements Serializable {
     private static final long serialVersionUID = 1;
 
-    private Double cleaning;
-    private Double position;
-    private Double services;
-    private Double quality;
+    private double cleaning;
+    private double position;
+    private double services;
+    private double quality;
 
-    public Ratings(Double cleaning, Double position, Double services, Double quality) {
+    public Ratings(double cleaning, double position, double services, double quality) {
         this.cleaning = cleaning;
         this.position = position;
         this.services = services;
         this.quality = quality;
     }
 
-    public Double getCleaning() {
+    public double getCleaning() {
         return cleaning;
     }
 
-    public void setCleaning(Double cleaning) {
+    public void setCleaning(double cleaning) {
         this.cleaning = cleaning;
     }
 
-    public Double getPosition() {
+    public double getPosition() {
         return position;
     }
 
-    public void setPosition(Double position) {
+    public void setPosition(double position) {
         this.position = position;
     }
 
-    public Double getServices() {
+    public double getServices() {
         return services;
     }
 
-    public void setServices(Double services) {
+    public void setServices(double services) {
         this.services = services;
     }
 
-    public Double getQuality() {
+    public double getQuality() {
         return quality;
     }
 
-    public void setQuality(Double quality) {
+    public void setQuality(double quality) {
         this.quality = quality;
     }
 
@@ -0,0 +1,50 @@
+package code.entities;
+
+/**
+ * Recensione così come viene inviata dal client (corpo di insertReview o elemento di insertReviews). Viene convertita
+ * in {@link CompactReview} una volta risolto l'hotel a partire da nome e città
+ */
+public class ReviewRequest {
+    private String nomeHotel;
+    private String citta;
+    private double globalScore;
+    private Ratings singleScores;
+
+    public ReviewRequest(String nomeHotel, String citta, double globalScore, Ratings singleScores) {
+        this.nomeHotel = nomeHotel;
+        this.citta = citta;
+        this.globalScore = globalScore;
+        this.singleScores = singleScores;
+    }
+
+    public String getNomeHotel() {
+        return nomeHotel;
+    }
+
+    public String getCitta() {
+        return citta;
+    }
+
+    public double getGlobalScore() {
+        return globalScore;
+    }
+
+    public Ratings getSingleScores() {
+        return singleScores;
+    }
+
+    /**
+     * @return {@code true} se la richiesta contiene tutti i campi necessari per creare una recensione e i voti sono
+     * nell'intervallo ammesso
+     *
+     * @see CompactReview#isValidScore(double)
+     */
+    public boolean isValid() {
+        return nomeHotel != null && citta != null && singleScores != null
+                && CompactReview.isValidScore(globalScore)
+                && CompactReview.isValidScore(singleScores.getCleaning())
+                && CompactReview.isValidScore(singleScores.getPosition())
+                && CompactReview.isValidScore(singleScores.getServices())
+                && CompactReview.isValidScore(singleScores.getQuality());
+    }
+}
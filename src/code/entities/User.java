@@ -1,16 +1,36 @@
 package code.entities;
 
 import code.enums.Badges;
+import code.utils.PasswordUtils;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.LongAdder;
 
 public class User implements Serializable {
     private static final long serialVersionUID = 1;
 
     private String username;
     private String password;
+    // numero di recensioni letto da disco; quelle aggiunte durante l'esecuzione sono contate in 'nuoveRecensioni'
     private Integer numRecensioni = 0;
 
+    // contatore senza contesa, incrementato dai thread delle richieste
+    private transient LongAdder nuoveRecensioni = new LongAdder();
+
+    // id numerico denso assegnato al caricamento/registrazione, usato dalle recensioni al posto dello username
+    private transient int id = -1;
+
+    // forma binaria dell'hash, usata per il confronto al login; su disco resta la stringa esadecimale in 'password'
+    private transient byte[] passwordHash;
+
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
 
     public String getUsername() {
         return username;
@@ -26,21 +46,55 @@ public class User implements Serializable {
 
     public void setPassword(String password) {
         this.password = password;
+        this.passwordHash = null;
+    }
+
+    /**
+     * Restituisce l'hash della password in forma binaria. Se l'utente è stato caricato da disco, l'hash viene decodificato
+     * dalla stringa esadecimale al primo accesso e poi mantenuto
+     * @return l'hash binario, oppure {@code null} se l'utente non ha una password valida
+     */
+    public byte[] getPasswordHash() {
+        byte[] hash = passwordHash;
+        if (hash == null && password != null) {
+            try {
+                hash = PasswordUtils.fromHex(password);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            passwordHash = hash;
+        }
+        return hash;
+    }
+
+    public void setPasswordHash(byte[] passwordHash) {
+        this.passwordHash = passwordHash;
+        this.password = passwordHash == null ? null : PasswordUtils.toHex(passwordHash);
     }
 
     public Integer getNumRecensioni() {
-        return numRecensioni;
+        return numRecensioni + (int) nuoveRecensioni.sum();
     }
 
+    /**
+     * Imposta il numero di recensioni, azzerando quelle contate durante l'esecuzione. Non va usato in concorrenza con
+     * {@link #addRecensione()}
+     */
     public void setNumRecensioni(Integer numRecensioni) {
+        this.nuoveRecensioni.reset();
         this.numRecensioni = numRecensioni;
     }
 
     public void addRecensione() {
-        this.numRecensioni++;
+        this.nuoveRecensioni.increment();
+    }
+
+    public void addRecensioni(int n) {
+        this.nuoveRecensioni.add(n);
     }
 
     public Badges getBadge() {
+        int numRecensioni = getNumRecensioni();
         if (numRecensioni >= 0 && numRecensioni < 10) return Badges.RECENSORE;
         if (numRecensioni < 20) return Badges.REC_ESPERTO;
         if (numRecensioni < 50) return Badges.CONTRIBUTORE;
@@ -1,13 +1,18 @@
 package code.entities;
 
+/**
+ * Rappresentazione di una recensione usata per lo scambio con l'esterno (Reviews.json e risposte ai client).
+ * In memoria le recensioni sono mantenute in forma compatta come {@link CompactReview}: gli oggetti di questa classe
+ * vengono creati solo quando servono
+ */
 public class UserReview {
     private String username;
-    private Integer hotelID;
-    private Double rating;
+    private int hotelID;
+    private double rating;
     private Ratings ratings;
-    private Long timestamp;
+    private long timestamp;
 
-    public UserReview(String username, Integer hotelID, Double rating, Ratings ratings, long timestamp) {
+    public UserReview(String username, int hotelID, double rating, Ratings ratings, long timestamp) {
         this.username = username;
         this.hotelID = hotelID;
         this.rating = rating;
@@ -23,19 +28,19 @@ public class UserReview {
         this.username = username;
     }
 
-    public Integer getHotelID() {
+    public int getHotelID() {
         return hotelID;
     }
 
-    public void setHotelID(Integer hotelID) {
+    public void setHotelID(int hotelID) {
         this.hotelID = hotelID;
     }
 
-    public Double getRating() {
+    public double getRating() {
         return rating;
     }
 
-    public void setRating(Double rating) {
+    public void setRating(double rating) {
         this.rating = rating;
     }
 
@@ -47,11 +52,11 @@ public class UserReview {
         this.ratings = ratings;
     }
 
-    public Long getTimestamp() {
+    public long getTimestamp() {
         return timestamp;
     }
 
-    public void setTimestamp(Long timestamp) {
+    public void setTimestamp(long timestamp) {
         this.timestamp = timestamp;
     }
 }
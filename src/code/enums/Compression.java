@@ -0,0 +1,32 @@
+package code.enums;
+
+public enum Compression {
+    NONE("none"),
+    DEFLATE("deflate"),
+    GZIP("gzip");
+
+    private final String nome;
+
+    Compression(String nome) {
+        this.nome = nome;
+    }
+
+    public String getNome() {
+        return nome;
+    }
+
+    /**
+     * @return la compressione con il nome passato (senza distinzione tra maiuscole e minuscole), oppure null se non esiste
+     */
+    public static Compression fromNome(String nome) {
+        for (Compression c : values()) {
+            if (c.nome.equalsIgnoreCase(nome)) return c;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return nome;
+    }
+}
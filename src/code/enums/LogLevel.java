@@ -0,0 +1,8 @@
+package code.enums;
+
+public enum LogLevel {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR
+}
@@ -2,7 +2,11 @@ package code.utils;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 public class AppConfig {
     private static final Properties properties = initialize();
@@ -24,6 +28,42 @@ public class AppConfig {
         return Integer.parseInt(properties.getProperty("port", "800"));
     }
 
+    /**
+     * @return gli indirizzi su cui ascoltare, dalla proprietà server.addresses (separati da virgola, nella forma
+     * host:porta oppure :porta per tutte le interfacce). Se la proprietà manca si ascolta su tutte le interfacce sulla
+     * porta "port"
+     */
+    public static List<String> getListenAddresses() throws NumberFormatException {
+        List<String> addresses = new ArrayList<>();
+        for (String a : properties.getProperty("server.addresses", "").split(",")) {
+            if (!a.trim().isEmpty()) addresses.add(a.trim());
+        }
+        if (addresses.isEmpty()) addresses.add(":" + getPort());
+        return addresses;
+    }
+
+    /**
+     * @return numero di thread che accettano le connessioni su ogni indirizzo
+     */
+    public static Integer getAcceptors() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("server.acceptors", "1"));
+    }
+
+    /**
+     * @return lunghezza massima della coda delle connessioni in attesa di essere accettate
+     */
+    public static Integer getBacklog() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("server.backlog", "50"));
+    }
+
+    /**
+     * @return true (default) se ogni thread che accetta connessioni deve aprire il suo socket con SO_REUSEPORT, quando
+     * il sistema lo supporta
+     */
+    public static Boolean getReusePort() {
+        return Boolean.parseBoolean(properties.getProperty("server.reusePort", "true").trim());
+    }
+
     public static String getDatabaseUrl() {
         return properties.getProperty("database.url", "./");
     }
@@ -36,6 +76,190 @@ public class AppConfig {
         return Integer.parseInt(properties.getProperty("database.updatePeriod", "10"));
     }
 
+    /**
+     * @return il numero di shard (e di thread) usati per l'ingestione delle recensioni. Di default uno per core
+     */
+    public static Integer getReviewShards() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("database.reviewShards",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+    }
+
+    public static Integer getReviewQueueSize() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("database.reviewQueueSize", "4096"));
+    }
+
+    /**
+     * @return il tipo di memorizzazione delle recensioni: "heap" (default), "offheap" oppure "mapped"
+     */
+    public static String getReviewStore() {
+        return properties.getProperty("database.reviewStore", "heap").trim();
+    }
+
+    /**
+     * @return il numero di hotel della classifica globale pubblicati ad ogni calcolo dei rank, cioè il massimo
+     * restituito da showLeaderboard
+     */
+    public static Integer getLeaderboardSize() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("application.leaderboardSize", "100").trim());
+    }
+
+    /**
+     * @return memoria massima (in byte) della cache delle risposte di searchHotel e searchAllHotels, 0 per disattivarla
+     */
+    public static Long getResponseCacheSize() throws NumberFormatException {
+        return Long.parseLong(properties.getProperty("cache.responseBytes", "8388608"));
+    }
+
+    /**
+     * @return memoria massima (in byte, stimata) degli utenti non loggati tenuti in memoria
+     */
+    public static Long getUserCacheSize() throws NumberFormatException {
+        return Long.parseLong(properties.getProperty("users.cacheBytes", "16777216"));
+    }
+
+    /**
+     * @return età (in giorni) oltre la quale le recensioni vengono archiviate, 0 (default) per non archiviarle mai
+     */
+    public static Integer getArchiveAfterDays() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("database.archiveAfterDays", "0"));
+    }
+
+    /**
+     * @return ogni quanti minuti cercare le recensioni da archiviare
+     */
+    public static Integer getArchivePeriod() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("database.archivePeriod", "60"));
+    }
+
+    /**
+     * @return gli username (separati da virgola nella proprietà admin.users) che possono usare i comandi di
+     * amministrazione anche da una connessione non locale
+     */
+    public static Set<String> getAdminUsers() {
+        Set<String> admins = new HashSet<>();
+        for (String u : properties.getProperty("admin.users", "").split(",")) {
+            if (!u.trim().isEmpty()) admins.add(u.trim());
+        }
+        return admins;
+    }
+
+    /**
+     * @return livello minimo dei messaggi di log: DEBUG, INFO (default), WARN o ERROR
+     */
+    public static String getLogLevel() {
+        return properties.getProperty("log.level", "INFO");
+    }
+
+    /**
+     * @return probabilità (tra 0 e 1) di scrivere i messaggi di log emessi ad ogni richiesta
+     */
+    public static Double getLogSampleRate() throws NumberFormatException {
+        return Double.parseDouble(properties.getProperty("log.sampleRate", "1.0"));
+    }
+
+    /**
+     * @return numero di messaggi di log in attesa di essere scritti oltre il quale i nuovi vengono scartati
+     */
+    public static Integer getLogBufferSize() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("log.bufferSize", "8192"));
+    }
+
+    /**
+     * @return file su cui scrivere il log, vuoto (default) per stdout
+     */
+    public static String getLogFile() {
+        return properties.getProperty("log.file", "").trim();
+    }
+
+    /**
+     * @return true (default) se le richieste vengono eseguite e le risposte scritte da stadi separati, false per fare
+     * tutto sul thread della connessione
+     */
+    public static Boolean getPipelineEnabled() {
+        return Boolean.parseBoolean(properties.getProperty("pipeline.enabled", "true").trim());
+    }
+
+    /**
+     * @return numero di thread che eseguono i comandi. Di default uno per core
+     */
+    public static Integer getExecuteThreads() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("pipeline.executeThreads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+    }
+
+    /**
+     * @return numero di thread che scrivono le risposte sui socket. Di default due per core, perché un client lento
+     * blocca il thread che gli sta scrivendo
+     */
+    public static Integer getWriteThreads() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("pipeline.writeThreads",
+                String.valueOf(2 * Runtime.getRuntime().availableProcessors())));
+    }
+
+    /**
+     * @return numero massimo di richieste di una connessione lette ma non ancora risposte
+     */
+    public static Integer getMaxInFlight() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("pipeline.maxInFlight", "8"));
+    }
+
+    /**
+     * @return richieste al secondo consentite a ogni indirizzo IP, 0 (default) per non limitarle
+     */
+    public static Double getIpRequestRate() throws NumberFormatException {
+        return Double.parseDouble(properties.getProperty("ratelimit.ip.rate", "0"));
+    }
+
+    /**
+     * @return richieste consecutive consentite a ogni indirizzo IP oltre la media (default: uguale a ratelimit.ip.rate)
+     */
+    public static Double getIpRequestBurst() throws NumberFormatException {
+        return Double.parseDouble(properties.getProperty("ratelimit.ip.burst", String.valueOf(getIpRequestRate())));
+    }
+
+    /**
+     * @return richieste al secondo consentite a ogni utente loggato, 0 (default) per non limitarle
+     */
+    public static Double getUserRequestRate() throws NumberFormatException {
+        return Double.parseDouble(properties.getProperty("ratelimit.user.rate", "0"));
+    }
+
+    /**
+     * @return richieste consecutive consentite a ogni utente oltre la media (default: uguale a ratelimit.user.rate)
+     */
+    public static Double getUserRequestBurst() throws NumberFormatException {
+        return Double.parseDouble(properties.getProperty("ratelimit.user.burst", String.valueOf(getUserRequestRate())));
+    }
+
+    /**
+     * @return numero massimo di indirizzi (e di utenti) di cui ricordare le richieste recenti
+     */
+    public static Integer getRateLimitEntries() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("ratelimit.maxEntries", "65536"));
+    }
+
+    /**
+     * @return dimensione minima (in byte) del corpo di una risposta perché venga compresso, per i client che hanno
+     * richiesto la compressione
+     */
+    public static Integer getCompressionMinBytes() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("compression.minBytes", "1024"));
+    }
+
+    /**
+     * @return livello di compressione delle risposte, da 1 (più veloce) a 9 (più compatto)
+     */
+    public static Integer getCompressionLevel() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("compression.level", "6"));
+    }
+
+    /**
+     * @return numero massimo di recensioni accettate da un singolo comando insertReviews
+     */
+    public static Integer getMaxReviewBatch() throws NumberFormatException {
+        return Integer.parseInt(properties.getProperty("application.maxReviewBatch", "1000"));
+    }
+
     public static Integer getRatingsUpdatePeriod() throws NumberFormatException {
         return Integer.parseInt(properties.getProperty("application.ratingUpdatePeriod", "10"));
     }
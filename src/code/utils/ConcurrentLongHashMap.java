@@ -0,0 +1,275 @@
+package code.utils;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Mappa concorrente con chiavi {@code long} primitive: evita di creare un oggetto chiave (e di calcolarne l'hash) per
+ * ogni operazione e occupa molto meno di una {@link java.util.concurrent.ConcurrentHashMap} con chiavi boxed.<br>
+ * La mappa è divisa in segmenti, ognuno è una tabella ad indirizzamento aperto (linear probing) protetta da uno
+ * {@link StampedLock}: le scritture prendono il lock del solo segmento, le letture sono ottimistiche e prendono il lock
+ * in lettura solo se nel frattempo c'è stata una scrittura sullo stesso segmento.<br>
+ * I valori null non sono ammessi. L'iterazione è debolmente consistente, come per le mappe di java.util.concurrent.
+ *
+ * @param <V> tipo dei valori
+ */
+public class ConcurrentLongHashMap<V> {
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    @FunctionalInterface
+    public interface LongObjConsumer<V> {
+        void accept(long key, V value);
+    }
+
+    /**
+     * Chiavi e valori di un segmento. Viene sostituita in blocco quando il segmento cresce, così una lettura vede
+     * sempre due array coerenti tra loro
+     */
+    private static final class Table {
+        private final long[] keys;
+        private final Object[] values;
+
+        private Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+    }
+
+    private static final class Segment<V> {
+        private final StampedLock lock = new StampedLock();
+        private volatile Table table = new Table(MIN_CAPACITY);
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        private V get(long key, int hash) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                V value = find(table, key, hash);
+                if (lock.validate(stamp)) return value;
+            }
+            stamp = lock.readLock();
+            try {
+                return find(table, key, hash);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V find(Table t, long key, int hash) {
+            int mask = t.keys.length - 1;
+            // il numero di tentativi è limitato perché una lettura ottimistica può vedere la tabella mentre cambia
+            for (int i = hash & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+                Object v = t.values[i];
+                if (v == null) return null;
+                if (t.keys[i] == key) return (V) v;
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        private V put(long key, int hash, V value, boolean onlyIfAbsent) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int mask = t.keys.length - 1;
+                int i = hash & mask;
+                while (t.values[i] != null) {
+                    if (t.keys[i] == key) {
+                        V old = (V) t.values[i];
+                        if (!onlyIfAbsent) t.values[i] = value;
+                        return old;
+                    }
+                    i = (i + 1) & mask;
+                }
+                t.keys[i] = key;
+                t.values[i] = value;
+                if (++size > t.keys.length * LOAD_FACTOR) resize(t.keys.length * 2);
+                return null;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V remove(long key, int hash) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int mask = t.keys.length - 1;
+                int i = hash & mask;
+                while (t.values[i] != null) {
+                    if (t.keys[i] == key) {
+                        V old = (V) t.values[i];
+                        shiftBack(t, i);
+                        size--;
+                        return old;
+                    }
+                    i = (i + 1) & mask;
+                }
+                return null;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Cancellazione per linear probing senza lapidi: sposta indietro gli elementi successivi che altrimenti non
+         * sarebbero più raggiungibili
+         */
+        private void shiftBack(Table t, int free) {
+            int mask = t.keys.length - 1;
+            int i = free;
+            while (true) {
+                i = (i + 1) & mask;
+                if (t.values[i] == null) break;
+                int home = mix(t.keys[i]) & mask;
+                // l'elemento in i può essere spostato in free solo se free è nel suo percorso di probing
+                if (((i - home) & mask) >= ((i - free) & mask)) {
+                    t.keys[free] = t.keys[i];
+                    t.values[free] = t.values[i];
+                    free = i;
+                }
+            }
+            t.values[free] = null;
+        }
+
+        private void resize(int capacity) {
+            Table old = table;
+            Table t = new Table(capacity);
+            int mask = capacity - 1;
+            for (int j = 0; j < old.keys.length; j++) {
+                if (old.values[j] == null) continue;
+                int i = mix(old.keys[j]) & mask;
+                while (t.values[i] != null) i = (i + 1) & mask;
+                t.keys[i] = old.keys[j];
+                t.values[i] = old.values[j];
+            }
+            table = t;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void forEach(LongObjConsumer<? super V> action) {
+            // copio il contenuto sotto lock e chiamo l'azione fuori, per non bloccare gli scrittori del segmento
+            long[] keys;
+            Object[] values;
+            int n = 0;
+            long stamp = lock.readLock();
+            try {
+                Table t = table;
+                keys = new long[size];
+                values = new Object[size];
+                for (int i = 0; i < t.keys.length; i++) {
+                    if (t.values[i] != null) {
+                        keys[n] = t.keys[i];
+                        values[n++] = t.values[i];
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < n; i++) action.accept(keys[i], (V) values[i]);
+        }
+
+        private int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    public ConcurrentLongHashMap() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param concurrencyLevel numero di segmenti desiderato, arrotondato alla potenza di 2 successiva
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongHashMap(int concurrencyLevel) {
+        int n = Integer.highestOneBit(Math.max(1, concurrencyLevel - 1) << 1);
+        segments = (Segment<V>[]) new Segment<?>[n];
+        for (int i = 0; i < n; i++) segments[i] = new Segment<>();
+        // i bit alti dell'hash scelgono il segmento, quelli bassi la posizione nella tabella
+        segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+    }
+
+    /**
+     * Mescola i bit della chiave (finalizzatore di MurmurHash3), così chiavi vicine finiscono in posizioni lontane
+     */
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    public V get(long key) {
+        int hash = mix(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return il valore precedente associato alla chiave, oppure null
+     */
+    public V put(long key, V value) {
+        if (value == null) throw new NullPointerException();
+        int hash = mix(key);
+        return segmentFor(hash).put(key, hash, value, false);
+    }
+
+    /**
+     * @return il valore già presente (che non viene sostituito), oppure null se il valore passato è stato inserito
+     */
+    public V putIfAbsent(long key, V value) {
+        if (value == null) throw new NullPointerException();
+        int hash = mix(key);
+        return segmentFor(hash).put(key, hash, value, true);
+    }
+
+    /**
+     * @return il valore rimosso, oppure null se la chiave non era presente
+     */
+    public V remove(long key) {
+        int hash = mix(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> s : segments) size += s.size();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void forEach(LongObjConsumer<? super V> action) {
+        for (Segment<V> s : segments) s.forEach(action);
+    }
+
+    public void forEachValue(Consumer<? super V> action) {
+        forEach((k, v) -> action.accept(v));
+    }
+}
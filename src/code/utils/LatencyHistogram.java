@@ -0,0 +1,104 @@
+package code.utils;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Istogramma delle durate in microsecondi, aggiornabile da più thread senza lock. I valori fino a
+ * {@value #SUB_BUCKETS} µs sono esatti, quelli più grandi sono divisi in {@value #HALF} fasce per ogni potenza di 2
+ * (precisione relativa di circa il 3%), quindi la memoria occupata è fissa qualunque sia il numero di valori.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (64 - SUB_BITS) * HALF);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int index(long v) {
+        if (v < SUB_BUCKETS) return (int) Math.max(0, v);
+        int shift = 64 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (v >>> shift) - HALF;
+    }
+
+    /**
+     * @return il valore centrale della fascia
+     */
+    private static long valueOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return (sub << shift) + (1L << (shift - 1));
+    }
+
+    public void record(long micros) {
+        counts.incrementAndGet(index(micros));
+        total.increment();
+        sum.add(micros);
+        long m = max.get();
+        while (micros > m && !max.compareAndSet(m, micros)) m = max.get();
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param p percentile, tra 0 e 100
+     * @return il valore (in µs) sotto cui cade la percentuale p dei valori registrati, 0 se non ce ne sono
+     */
+    public long percentile(double p) {
+        long n = 0;
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(valueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Riassunto in millisecondi, nel formato restituito dal comando stats
+     */
+    public LinkedHashMap<String, Object> summary() {
+        LinkedHashMap<String, Object> s = new LinkedHashMap<>();
+        long n = total.sum();
+        s.put("count", n);
+        s.put("meanMs", n == 0 ? 0.0 : millis(sum.sum() / n));
+        s.put("p50Ms", millis(percentile(50)));
+        s.put("p99Ms", millis(percentile(99)));
+        s.put("p999Ms", millis(percentile(99.9)));
+        s.put("maxMs", millis(max.get()));
+        return s;
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+}
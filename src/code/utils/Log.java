@@ -0,0 +1,214 @@
+package code.utils;
+
+import code.enums.LogLevel;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Log asincrono del server. Chi scrive un messaggio si limita a inserire un record in un buffer circolare di
+ * dimensione fissa ("log.bufferSize") e non si blocca mai: se il buffer è pieno il messaggio viene scartato e
+ * contato. Un unico thread svuota il buffer a blocchi, formatta i messaggi e li scrive su stdout oppure sul file
+ * indicato da "log.file", con un solo flush per blocco.<br>
+ * I messaggi sotto il livello "log.level" (default INFO) vengono ignorati prima di creare il record. I messaggi
+ * scritti con {@link #sampled(LogLevel, String, Object...)}, pensati per le righe di ogni richiesta, vengono inoltre
+ * campionati con probabilità "log.sampleRate".<br>
+ * Un messaggio può avere delle coppie chiave/valore, stampate dopo il testo come chiave=valore.
+ */
+public final class Log {
+    private static final LogLevel level = parseLevel(AppConfig.getLogLevel());
+    private static final double sampleRate = AppConfig.getLogSampleRate();
+
+    private static final int capacity = Integer.highestOneBit(Math.max(16, AppConfig.getLogBufferSize()));
+    private static final AtomicReferenceArray<Record> slots = new AtomicReferenceArray<>(capacity);
+    // prossima posizione da assegnare a un produttore
+    private static final AtomicLong tail = new AtomicLong();
+    // prossima posizione da leggere, scritta solo dal thread del log
+    private static volatile long head = 0;
+    private static final LongAdder dropped = new LongAdder();
+
+    private static final Writer out = openOutput();
+
+    static {
+        Thread t = new Thread(Log::drain, "log-writer");
+        t.setDaemon(true);
+        t.start();
+        // all'uscita scrivo i messaggi ancora nel buffer
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flushPending, "log-shutdown"));
+    }
+
+    private static final class Record {
+        private final long time = System.currentTimeMillis();
+        private final String thread = Thread.currentThread().getName();
+        private final LogLevel level;
+        private final String message;
+        private final Object[] keyValues;
+        private final Throwable error;
+
+        private Record(LogLevel level, String message, Object[] keyValues, Throwable error) {
+            this.level = level;
+            this.message = message;
+            this.keyValues = keyValues;
+            this.error = error;
+        }
+    }
+
+    private Log() {}
+
+    private static LogLevel parseLevel(String name) {
+        try {
+            return LogLevel.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return LogLevel.INFO;
+        }
+    }
+
+    private static Writer openOutput() {
+        String file = AppConfig.getLogFile();
+        try {
+            OutputStream stream = file.isEmpty() ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(file, true);
+            return new BufferedWriter(new OutputStreamWriter(stream, Charset.defaultCharset()), 1 << 16);
+        } catch (FileNotFoundException e) {
+            System.err.println("Impossibile aprire il file di log " + file + ", uso stdout");
+            return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), Charset.defaultCharset()));
+        }
+    }
+
+    public static boolean isEnabled(LogLevel l) {
+        return l.compareTo(level) >= 0;
+    }
+
+    public static void debug(String message, Object... keyValues) {
+        log(LogLevel.DEBUG, message, keyValues, null);
+    }
+
+    public static void info(String message, Object... keyValues) {
+        log(LogLevel.INFO, message, keyValues, null);
+    }
+
+    public static void warn(String message, Object... keyValues) {
+        log(LogLevel.WARN, message, keyValues, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(LogLevel.ERROR, message, null, error);
+    }
+
+    /**
+     * Scrive il messaggio solo con probabilità "log.sampleRate", per le righe emesse ad ogni richiesta
+     */
+    public static void sampled(LogLevel l, String message, Object... keyValues) {
+        if (!isEnabled(l)) return;
+        if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) return;
+        log(l, message, keyValues, null);
+    }
+
+    /**
+     * @return il numero di messaggi scartati perché il buffer era pieno
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static void log(LogLevel l, String message, Object[] keyValues, Throwable error) {
+        if (!isEnabled(l)) return;
+
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= capacity) {
+                // buffer pieno: scarto invece di bloccare il thread della richiesta
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        slots.lazySet((int) (seq & (capacity - 1)), new Record(l, message, keyValues, error));
+    }
+
+    /**
+     * Ciclo del thread del log: legge i record in ordine, li scrive e fa un flush quando il buffer è vuoto
+     */
+    private static void drain() {
+        long reportedDropped = 0;
+        while (true) {
+            int written = writePending();
+            if (written == 0) {
+                long d = dropped.sum();
+                if (d != reportedDropped) {
+                    writeRecord(new Record(LogLevel.WARN, "Messaggi di log scartati (buffer pieno)", new Object[]{"totale", d}, null));
+                    reportedDropped = d;
+                }
+                try {
+                    out.flush();
+                } catch (IOException ignored) {
+                    // non c'è un posto migliore dove segnalarlo
+                }
+                LockSupport.parkNanos(1_000_000L);
+            }
+        }
+    }
+
+    /**
+     * Scrive tutti i record già pubblicati
+     * @return il numero di record scritti
+     */
+    private static synchronized int writePending() {
+        int n = 0;
+        while (true) {
+            long h = head;
+            if (h == tail.get()) return n;
+            int index = (int) (h & (capacity - 1));
+            Record r = slots.get(index);
+            // il produttore ha preso la posizione ma non ha ancora scritto il record
+            if (r == null) return n;
+            slots.set(index, null);
+            head = h + 1;
+            write(r);
+            n++;
+        }
+    }
+
+    private static synchronized void writeRecord(Record r) {
+        write(r);
+    }
+
+    private static synchronized void flushPending() {
+        writePending();
+        try {
+            out.flush();
+        } catch (IOException ignored) {
+            // in chiusura non c'è altro da fare
+        }
+    }
+
+    private static void write(Record r) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(Instant.ofEpochMilli(r.time)).append(' ').append(r.level).append(" [").append(r.thread).append("] ")
+                .append(r.message);
+        if (r.keyValues != null) {
+            for (int i = 0; i + 1 < r.keyValues.length; i += 2) {
+                sb.append(' ').append(r.keyValues[i]).append('=').append(r.keyValues[i + 1]);
+            }
+        }
+        sb.append(System.lineSeparator());
+        if (r.error != null) {
+            StringWriter trace = new StringWriter();
+            r.error.printStackTrace(new PrintWriter(trace));
+            sb.append(trace);
+        }
+        try {
+            out.write(sb.toString());
+        } catch (IOException ignored) {
+            // non c'è un posto migliore dove segnalarlo
+        }
+    }
+}
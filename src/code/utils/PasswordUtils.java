@@ -1,48 +1,183 @@
 package code.utils;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class PasswordUtils {
+    private static final String ALGORITHM = "SHA-256";
+    public static final int HASH_LENGTH = 32;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Stato per-thread riutilizzato ad ogni hashing: il MessageDigest, un buffer per la codifica UTF-8 della password
+     * e un buffer per il risultato. In questo modo il percorso di login non alloca nulla (a parte la crescita del
+     * buffer per password molto lunghe)
+     */
+    private static final ThreadLocal<HashState> STATE = ThreadLocal.withInitial(HashState::new);
+
+    private PasswordUtils() {}
+
+    private static final class HashState {
+        private final MessageDigest digest;
+        private final byte[] hash = new byte[HASH_LENGTH];
+        private byte[] encoded = new byte[64];
+
+        private HashState() {
+            try {
+                digest = MessageDigest.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                // SHA-256 è obbligatorio in ogni implementazione della JVM
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Calcola l'hash della password nel buffer {@link #hash}, sovrascrivendo il risultato precedente
+         */
+        private byte[] digest(String password) {
+            int length = encodeUtf8(password);
+            digest.update(encoded, 0, length);
+            try {
+                digest.digest(hash, 0, HASH_LENGTH);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            return hash;
+        }
+
+        /**
+         * Codifica la stringa in UTF-8 dentro {@link #encoded} (con lo stesso comportamento di
+         * {@code String.getBytes(UTF_8)}: i surrogati spaiati vengono sostituiti con '?')
+         * @return il numero di byte scritti
+         */
+        private int encodeUtf8(String s) {
+            int n = s.length();
+            // nel caso peggiore ogni char occupa 3 byte
+            if (encoded.length < n * 3) encoded = new byte[n * 3];
+
+            byte[] buf = encoded;
+            int pos = 0;
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xc0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, s.charAt(++i));
+                        buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                        buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                        buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                        buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+                    } else {
+                        buf[pos++] = (byte) '?';
+                    }
+                } else {
+                    buf[pos++] = (byte) (0xe0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return pos;
+        }
+    }
+
+    /**
+     * Effettua l'hashing della password passata, utilizzando l'algoritmo SHA-256 sulla codifica UTF-8 della password
+     * @param password la password in chiaro
+     * @return l'hash della password in forma binaria (32 byte)
+     */
+    public static byte[] hashPasswordBytes(String password) {
+        return STATE.get().digest(password).clone();
+    }
 
     /**
      * Effettua l'hashing della password passata, utilizzando l'algoritmo SHA-256
      * @param password la password in chiaro
-     * @return l'hash della password
+     * @return l'hash della password come stringa esadecimale
      */
     public static String hashPassword(String password) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-
-            byte[] hashBytes = digest.digest(password.getBytes());
+        return toHex(STATE.get().digest(password));
+    }
 
-            StringBuilder hexString = new StringBuilder();
-            for (byte hashByte : hashBytes) {
-                String hex = Integer.toHexString(0xff & hashByte);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
+    /**
+     * Confronta una password in chiaro con un hash binario. Il confronto avviene in tempo costante rispetto al
+     * contenuto dell'hash, in modo da non rivelare quanti byte iniziali coincidono
+     * @param password password in chiaro
+     * @param hash hash binario di una password
+     * @return {@code true} se l'hash è quello della password passata, {@code false} altrimenti
+     */
+    public static boolean checkPassword(String password, byte[] hash) {
+        if (password == null || hash == null) return false;
+        return MessageDigest.isEqual(STATE.get().digest(password), hash);
+    }
 
-            return hexString.toString();
+    /**
+     * Confronta una password in chiaro con un hash calcolato sulla codifica di default della piattaforma, come
+     * facevano le versioni precedenti ({@code password.getBytes()}). Serve a riconoscere le password non ASCII salvate
+     * su una piattaforma con codifica diversa da UTF-8, per poi ricalcolarne l'hash
+     * @param password password in chiaro
+     * @param hash hash binario di una password
+     * @return {@code true} se l'hash è quello della password passata codificata con la codifica di default, {@code false}
+     * altrimenti o se la codifica di default è UTF-8 (in quel caso basta {@link #checkPassword(String, byte[])})
+     */
+    public static boolean checkLegacyPassword(String password, byte[] hash) {
+        if (password == null || hash == null || Charset.defaultCharset().equals(StandardCharsets.UTF_8)) return false;
+        try {
+            return MessageDigest.isEqual(MessageDigest.getInstance(ALGORITHM).digest(password.getBytes()), hash);
         } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return null;
+            throw new IllegalStateException(e);
         }
-
     }
 
     /**
      * Confronta una password in chiaro con un hash
      * @param password password in chiaro
-     * @param hash hash di una password
+     * @param hash hash di una password in formato esadecimale
      * @return {@code true} se l'hash è quello della password passata, {@code false} altrimenti
      */
     public static boolean checkPassword(String password, String hash) {
         try {
-            return hashPassword(password).equals(hash);
-        } catch (NullPointerException e) {
+            return checkPassword(password, fromHex(hash));
+        } catch (IllegalArgumentException e) {
             return false;
         }
     }
 
+    /**
+     * Converte un array di byte nella sua rappresentazione esadecimale (minuscola)
+     */
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Converte una stringa esadecimale nell'array di byte corrispondente
+     * @return l'array di byte, oppure {@code null} se la stringa è null
+     * @throws IllegalArgumentException se la stringa non è un esadecimale valido
+     */
+    public static byte[] fromHex(String hex) throws IllegalArgumentException {
+        if (hex == null) return null;
+        if (hex.length() % 2 != 0) throw new IllegalArgumentException("Lunghezza esadecimale non valida");
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) throw new IllegalArgumentException("Carattere esadecimale non valido");
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
 }
@@ -0,0 +1,104 @@
+package code.utils;
+
+import code.enums.Compression;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Compressore dei corpi delle risposte di una connessione. Il {@link Deflater} e il buffer di uscita vengono
+ * riutilizzati per tutte le risposte, quindi comprimere non alloca nulla se non quando il buffer deve crescere.<br>
+ * Con {@link Compression#DEFLATE} il risultato è in formato zlib (RFC 1950), con {@link Compression#GZIP} in formato
+ * gzip (RFC 1952): intestazione e coda gzip vengono scritte qui perché GZIPOutputStream non permette di riutilizzare
+ * un Deflater.<br>
+ * Non è thread-safe: va usato da un thread alla volta, e {@link #end()} va chiamato quando la connessione viene chiusa
+ * per liberare la memoria nativa del Deflater.
+ */
+public class ResponseCompressor {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int INITIAL_BUFFER = 8192;
+    // un buffer più grande di così viene liberato alla risposta successiva, per non tenerlo finché la connessione è aperta
+    private static final int MAX_RETAINED_BUFFER = 1 << 20;
+
+    private final Compression compression;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+    private int length = 0;
+
+    /**
+     * @param compression formato di compressione, {@link Compression#DEFLATE} o {@link Compression#GZIP}
+     * @param level livello di compressione di {@link Deflater}, da 1 (più veloce) a 9 (più compatto)
+     */
+    public ResponseCompressor(Compression compression, int level) {
+        if (compression == Compression.NONE) throw new IllegalArgumentException("Nessuna compressione richiesta");
+        this.compression = compression;
+        // gzip usa il formato deflate senza l'intestazione zlib
+        this.deflater = new Deflater(level, compression == Compression.GZIP);
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Comprime i byte passati. Il risultato resta valido fino alla chiamata successiva
+     * @see #getBuffer()
+     * @see #getLength()
+     */
+    public void compress(byte[] src, int off, int len) {
+        if (buffer.length > MAX_RETAINED_BUFFER) buffer = new byte[INITIAL_BUFFER];
+        length = 0;
+        deflater.reset();
+
+        if (compression == Compression.GZIP) {
+            put(GZIP_HEADER, GZIP_HEADER.length);
+            crc.reset();
+            crc.update(src, off, len);
+        }
+
+        deflater.setInput(src, off, len);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+
+        if (compression == Compression.GZIP) {
+            // coda gzip: CRC32 e lunghezza dei dati originali, little-endian
+            putIntLE((int) crc.getValue());
+            putIntLE(len);
+        }
+    }
+
+    private void put(byte[] bytes, int n) {
+        if (length + n > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+        System.arraycopy(bytes, 0, buffer, length, n);
+        length += n;
+    }
+
+    private void putIntLE(int v) {
+        put(new byte[]{(byte) v, (byte) (v >>> 8), (byte) (v >>> 16), (byte) (v >>> 24)}, 4);
+    }
+
+    /**
+     * @return il buffer con il risultato dell'ultima compressione, valido per i primi {@link #getLength()} byte
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Libera le risorse del Deflater. Dopo questa chiamata il compressore non può più essere usato
+     */
+    public void end() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,122 @@
+package code.utils;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Dizionario dei servizi offerti dagli hotel ("Wi-Fi", "Piscina", ...). Ogni servizio distinto riceve un bit, così
+ * l'insieme dei servizi di un hotel è un singolo long e verificare che un hotel offra dei servizi richiesti è un AND
+ * bit a bit. I nomi dei servizi sono salvati una volta sola, invece che in ogni hotel.<br>
+ * La maschera non conserva l'ordine in cui erano elencati i servizi di un hotel: vengono sempre restituiti nell'ordine
+ * in cui sono stati registrati, cioè quello della loro prima comparsa in Hotels.json. Possono esistere al massimo
+ * {@value #MAX_SERVICES} servizi diversi; un Hotels.json che ne contiene di più viene rifiutato all'avvio.
+ */
+public final class ServiceDictionary {
+    public static final int MAX_SERVICES = Long.SIZE;
+
+    // chiave -> nome del servizio, valore -> indice del bit
+    private static final ConcurrentHashMap<String, Integer> bits = new ConcurrentHashMap<>();
+    private static final String[] names = new String[MAX_SERVICES];
+    private static volatile int count = 0;
+
+    private ServiceDictionary() {}
+
+    /**
+     * Restituisce il bit associato al servizio, assegnandone uno nuovo se il servizio non è ancora noto
+     * @throws IllegalArgumentException se il servizio è nuovo e sono già stati registrati {@value #MAX_SERVICES}
+     * servizi diversi
+     */
+    public static int intern(String service) throws IllegalArgumentException {
+        Integer bit = bits.get(service);
+        if (bit != null) return bit;
+
+        synchronized (ServiceDictionary.class) {
+            bit = bits.get(service);
+            if (bit != null) return bit;
+            if (count == MAX_SERVICES) {
+                throw new IllegalArgumentException("Troppi servizi diversi (massimo " + MAX_SERVICES
+                        + "), impossibile registrare \"" + service + "\"");
+            }
+
+            names[count] = service;
+            bits.put(service, count);
+            // la scrittura volatile di count pubblica il nuovo nome ai lettori di toList
+            return count++;
+        }
+    }
+
+    /**
+     * Converte una lista di servizi nella maschera corrispondente, registrando i servizi nuovi
+     * @throws IllegalArgumentException se un servizio nuovo supera il massimo di {@value #MAX_SERVICES}
+     */
+    public static long internMask(Collection<String> services) throws IllegalArgumentException {
+        long mask = 0;
+        if (services != null) {
+            for (String s : services) mask |= 1L << intern(s);
+        }
+        return mask;
+    }
+
+    /**
+     * Converte una lista di servizi nella maschera corrispondente senza registrare servizi nuovi (da usare per i
+     * filtri inviati dai client)
+     * @throws IllegalArgumentException se uno dei servizi non è offerto da nessun hotel
+     */
+    public static long lookupMask(Collection<String> services) throws IllegalArgumentException {
+        long mask = 0;
+        for (String s : services) {
+            Integer bit = bits.get(s);
+            if (bit == null) throw new IllegalArgumentException("Servizio sconosciuto: " + s);
+            mask |= 1L << bit;
+        }
+        return mask;
+    }
+
+    /**
+     * @return i nomi dei servizi presenti nella maschera, nell'ordine in cui sono stati registrati
+     */
+    public static List<String> toList(long mask) {
+        List<String> list = new ArrayList<>(Long.bitCount(mask));
+        int n = count;
+        for (int i = 0; i < n; i++) {
+            if ((mask & (1L << i)) != 0) list.add(names[i]);
+        }
+        return list;
+    }
+
+    /**
+     * Adapter Gson per i campi che contengono una maschera di servizi: in json la maschera viene scritta e letta come
+     * array di nomi, quindi il formato di Hotels.json e delle risposte ai client non cambia
+     */
+    public static class MaskAdapter extends TypeAdapter<Long> {
+        @Override
+        public void write(JsonWriter out, Long mask) throws IOException {
+            out.beginArray();
+            for (String s : toList(mask == null ? 0 : mask)) out.value(s);
+            out.endArray();
+        }
+
+        @Override
+        public Long read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return 0L;
+            }
+            long mask = 0;
+            in.beginArray();
+            while (in.hasNext()) mask |= 1L << intern(in.nextString());
+            in.endArray();
+            return mask;
+        }
+    }
+}
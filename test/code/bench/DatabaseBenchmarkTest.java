@@ -0,0 +1,144 @@
+package code.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Test di {@link DatabaseBenchmark}: un giro su un database minuscolo che salva la baseline, un secondo giro che la
+ * confronta senza riscriverla, e gli argomenti o le baseline non validi. Non usa librerie di test: termina con un
+ * {@link AssertionError} alla prima verifica fallita. Dura circa un minuto (due giri da un secondo per benchmark).<br>
+ * Uso: java -cp lib/gson-2.10.1.jar:out:out-bench:out-test code.bench.DatabaseBenchmarkTest
+ */
+public class DatabaseBenchmarkTest {
+    private static final String PREFIX = "hotel=20 recensioni=100 ";
+    // benchmark eseguiti dalla JVM separata con 2 thread, nell'ordine in cui vengono stampati
+    private static final List<String> BENCHMARKS = Arrays.asList(
+            "getHotelByNameAndCity [1t]", "getHotelByNameAndCity [2t]", "getHotelsByCity [1t]", "getHotelsByCity [2t]",
+            "checkPassword [1t]", "checkPassword [2t]", "insertReview [1t]", "insertReview [2t]",
+            "insertReview (stesso hotel) [2t]", "updateLocalRankings [1t]", "updateLocalRankings (+inserimenti) [1t]",
+            "persistData [1t]", "persistData (+inserimenti) [1t]");
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("hotelier-bench-test").toFile();
+        try {
+            invalidArguments();
+            invalidBaseline(new File(dir, "corrotta.csv"));
+            File baseline = new File(dir, "baseline.csv");
+            savesBaseline(baseline);
+            comparesWithBaseline(baseline);
+        } finally {
+            deleteRecursively(dir);
+        }
+        System.out.println("DatabaseBenchmarkTest: OK");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    private static void expectFailure(Class<? extends Exception> expected, String... args) {
+        try {
+            DatabaseBenchmark.main(args);
+        } catch (Exception e) {
+            check(expected.isInstance(e), "Eccezione inattesa per " + Arrays.toString(args) + ": " + e);
+            return;
+        }
+        throw new AssertionError("Nessun errore per " + Arrays.toString(args));
+    }
+
+    /**
+     * Esegue il benchmark e restituisce quello che ha stampato, stampandolo anche sull'output originale
+     */
+    private static String run(String... args) throws Exception {
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, "UTF-8"));
+        try {
+            DatabaseBenchmark.main(args);
+        } finally {
+            System.setOut(stdout);
+        }
+        String output = new String(captured.toByteArray(), StandardCharsets.UTF_8);
+        stdout.print(output);
+        return output;
+    }
+
+    /**
+     * Gli argomenti non validi vengono rifiutati prima di generare database o avviare JVM
+     */
+    private static void invalidArguments() {
+        expectFailure(NumberFormatException.class, "2", "1", "20,abc", "100");
+        expectFailure(NumberFormatException.class, "due");
+        expectFailure(IllegalArgumentException.class, "0", "1", "20", "100");
+        expectFailure(IllegalArgumentException.class, "2", "0", "20", "100");
+        expectFailure(IllegalArgumentException.class, "2", "1", "20,0", "100");
+        expectFailure(IllegalArgumentException.class, "2", "1", "20", "-1");
+    }
+
+    /**
+     * Una baseline con un valore non numerico viene rifiutata prima di eseguire i benchmark, e non viene sovrascritta
+     */
+    private static void invalidBaseline(File file) throws IOException {
+        List<String> lines = Arrays.asList(PREFIX + "checkPassword [1t],veloce");
+        Files.write(file.toPath(), lines);
+        expectFailure(NumberFormatException.class, "2", "1", "20", "100", file.getPath());
+        check(Files.readAllLines(file.toPath()).equals(lines), "La baseline non valida è stata modificata");
+    }
+
+    /**
+     * Senza un file di baseline esistente tutti i risultati vengono salvati, uno per riga
+     */
+    private static void savesBaseline(File file) throws Exception {
+        run("2", "1", "20", "100", file.getPath());
+        check(file.exists(), "Baseline non salvata");
+
+        List<String> names = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath())) {
+            int comma = line.lastIndexOf(',');
+            check(comma > 0, "Riga di baseline senza valore: " + line);
+            names.add(line.substring(0, comma));
+            double nsPerOp = Double.parseDouble(line.substring(comma + 1));
+            check(nsPerOp > 0 && !Double.isInfinite(nsPerOp), "Tempo non valido nella baseline: " + line);
+        }
+        List<String> expected = new ArrayList<>();
+        for (String b : BENCHMARKS) expected.add(PREFIX + b);
+        check(names.equals(expected), "Benchmark salvati diversi da quelli attesi: " + names);
+    }
+
+    /**
+     * Con una baseline esistente ogni risultato viene confrontato con quello salvato, le righe senza valore vengono
+     * ignorate e il file non viene riscritto
+     */
+    private static void comparesWithBaseline(File file) throws Exception {
+        List<String> lines = new ArrayList<>(Files.readAllLines(file.toPath()));
+        lines.add("riga senza valore");
+        Files.write(file.toPath(), lines);
+
+        String output = run("2", "1", "20", "100", file.getPath());
+        for (String b : BENCHMARKS) {
+            boolean compared = false;
+            for (String line : output.split("\n")) {
+                if (line.startsWith(b + " ") && line.contains("(baseline ")) compared = true;
+            }
+            check(compared, "Nessun confronto con la baseline per " + b);
+        }
+        check(!output.contains("terminata con errore"), "La JVM dei benchmark è terminata con errore");
+        check(!output.contains("salvati come baseline"), "La baseline esistente è stata riscritta");
+        check(Files.readAllLines(file.toPath()).equals(lines), "La baseline esistente è stata modificata");
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File c : children) deleteRecursively(c);
+        if (!file.delete()) file.deleteOnExit();
+    }
+}
@@ -0,0 +1,229 @@
+package code.bench;
+
+import code.utils.PasswordUtils;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Test di {@link DatasetGenerator}: coerenza dei tre file generati tra loro (contatori, medie, una recensione per
+ * coppia utente-hotel, ogni città con almeno un hotel), riproducibilità a parità di seme, dipendenza da now limitata ai
+ * timestamp, e opzioni o cartelle di destinazione non valide. Non usa librerie di test: termina con un
+ * {@link AssertionError} alla prima verifica fallita.<br>
+ * Uso: java -cp lib/gson-2.10.1.jar:out:out-bench:out-test code.bench.DatasetGeneratorTest
+ */
+public class DatasetGeneratorTest {
+    private static final long DAY_MILLIS = 86400000L;
+    // un'ora dopo la mezzanotte UTC: molte recensioni di "oggi" cadrebbero dopo now e vanno riportate indietro
+    private static final long NOW = 1_700_006_400_000L - 1_700_006_400_000L % DAY_MILLIS + 3_600_000L;
+    private static final int HOTELS = 60;
+    private static final int CITIES = 7;
+    private static final int REVIEWS = 500;
+    private static final int DAYS = 30;
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("hotelier-dataset-test").toFile();
+        try {
+            File first = generate(new File(dir, "primo"), 3, NOW);
+            consistent(first);
+            check(sameFiles(first, generate(new File(dir, "secondo"), 3, NOW)), "Stesso seme, file diversi");
+            check(!sameFile(first, generate(new File(dir, "altro-seme"), 4, NOW), "Reviews.json"),
+                    "Semi diversi, recensioni uguali");
+            onlyTimestampsDependOnNow(first, generate(new File(dir, "altro-istante"), 3, NOW + 5 * 3_600_000L));
+            invalidOptions(dir);
+            invalidDestination(dir);
+        } finally {
+            deleteRecursively(dir);
+        }
+        System.out.println("DatasetGeneratorTest: OK");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    private static File generate(File out, long seed, long now) throws IOException {
+        DatasetGenerator.main(new String[]{"out=" + out.getPath(), "hotels=" + HOTELS, "cities=" + CITIES,
+                "reviews=" + REVIEWS, "reviewsPerUser=5", "days=" + DAYS, "meanAge=3", "seed=" + seed, "now=" + now});
+        return out;
+    }
+
+    private static JsonArray read(File dir, String name) throws IOException {
+        try (Reader reader = new FileReader(new File(dir, name))) {
+            return JsonParser.parseReader(reader).getAsJsonArray();
+        }
+    }
+
+    private static boolean sameFile(File a, File b, String name) throws IOException {
+        return Arrays.equals(Files.readAllBytes(new File(a, name).toPath()), Files.readAllBytes(new File(b, name).toPath()));
+    }
+
+    private static boolean sameFiles(File a, File b) throws IOException {
+        return sameFile(a, b, "Hotels.json") && sameFile(a, b, "Users.json") && sameFile(a, b, "Reviews.json");
+    }
+
+    private static double average(long sum, int count) {
+        return Math.round((double) sum * 100 / count) / 100.0;
+    }
+
+    /**
+     * I tre file descrivono lo stesso database, come lo salverebbe il server
+     */
+    private static void consistent(File dir) throws IOException {
+        JsonArray hotels = read(dir, "Hotels.json");
+        JsonArray users = read(dir, "Users.json");
+        JsonArray reviews = read(dir, "Reviews.json");
+
+        // hotel: id consecutivi, ogni città con almeno un hotel, nomi unici
+        check(hotels.size() == HOTELS, "Numero di hotel errato: " + hotels.size());
+        Set<String> cities = new HashSet<>();
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < hotels.size(); i++) {
+            JsonObject h = hotels.get(i).getAsJsonObject();
+            check(h.get("id").getAsInt() == i + 1, "Id non consecutivi in posizione " + i);
+            cities.add(h.get("city").getAsString());
+            check(names.add(h.get("name").getAsString() + "/" + h.get("city").getAsString()), "Hotel duplicato: " + h);
+        }
+        Set<String> expectedCities = new HashSet<>();
+        for (int c = 1; c <= CITIES; c++) expectedCities.add("Citta" + c);
+        check(cities.equals(expectedCities), "Città errate o vuote: " + cities);
+
+        // recensioni: una per coppia utente-hotel, voti validi, timestamp negli ultimi DAYS giorni e mai nel futuro
+        check(reviews.size() == REVIEWS, "Numero di recensioni errato: " + reviews.size());
+        Set<String> pairs = new HashSet<>();
+        Map<String, Integer> perUser = new HashMap<>();
+        int[] counts = new int[HOTELS + 1];
+        long[][] sums = new long[HOTELS + 1][5];
+        String[] categories = {"cleaning", "position", "services", "quality"};
+        for (JsonElement e : reviews) {
+            JsonObject r = e.getAsJsonObject();
+            String user = r.get("username").getAsString();
+            int hotel = r.get("hotelID").getAsInt();
+            check(hotel >= 1 && hotel <= HOTELS, "Hotel inesistente: " + r);
+            check(pairs.add(user + "/" + hotel), "Due recensioni dello stesso utente per lo stesso hotel: " + r);
+            perUser.merge(user, 1, Integer::sum);
+
+            long ts = r.get("timestamp").getAsLong();
+            check(ts <= NOW && ts > NOW - (DAYS + 1) * DAY_MILLIS, "Timestamp fuori intervallo: " + r);
+
+            int[] scores = new int[5];
+            scores[0] = r.get("rating").getAsInt();
+            for (int c = 0; c < 4; c++) scores[c + 1] = r.getAsJsonObject("ratings").get(categories[c]).getAsInt();
+            for (int c = 0; c < 5; c++) {
+                check(scores[c] >= 0 && scores[c] <= 5, "Voto non valido: " + r);
+                sums[hotel][c] += scores[c];
+            }
+            counts[hotel]++;
+        }
+
+        // utenti: nomi consecutivi, contatori uguali alle recensioni scritte, password "passwordN"
+        int total = 0;
+        for (int i = 0; i < users.size(); i++) {
+            JsonObject u = users.get(i).getAsJsonObject();
+            String name = "utente" + i;
+            check(u.get("username").getAsString().equals(name), "Utente fuori ordine: " + u);
+            int n = u.get("numRecensioni").getAsInt();
+            check(n > 0 && n == perUser.getOrDefault(name, 0), "numRecensioni errato per " + name);
+            check(u.get("password").getAsString().equals(PasswordUtils.hashPassword("password" + i)),
+                    "Password errata per " + name);
+            total += n;
+        }
+        check(total == REVIEWS && perUser.size() == users.size(), "Recensioni di utenti inesistenti");
+
+        // medie degli hotel calcolate sulle recensioni scritte, 0 per gli hotel senza recensioni
+        for (JsonElement e : hotels) {
+            JsonObject h = e.getAsJsonObject();
+            int id = h.get("id").getAsInt();
+            double[] expected = new double[5];
+            for (int c = 0; c < 5; c++) expected[c] = counts[id] == 0 ? 0.0 : average(sums[id][c], counts[id]);
+            check(h.get("rate").getAsDouble() == expected[0], "Media globale errata per l'hotel " + id);
+            for (int c = 0; c < 4; c++) {
+                check(h.getAsJsonObject("ratings").get(categories[c]).getAsDouble() == expected[c + 1],
+                        "Media di " + categories[c] + " errata per l'hotel " + id);
+            }
+        }
+    }
+
+    /**
+     * Cambiando solo now cambiano i timestamp, ma non le altre estrazioni casuali: utenti, hotel e voti restano gli stessi
+     */
+    private static void onlyTimestampsDependOnNow(File a, File b) throws IOException {
+        check(sameFile(a, b, "Hotels.json") && sameFile(a, b, "Users.json"), "Hotel o utenti dipendono da now");
+        JsonArray ra = read(a, "Reviews.json");
+        JsonArray rb = read(b, "Reviews.json");
+        check(ra.size() == rb.size(), "Numero di recensioni diverso cambiando now");
+        boolean timestampsDiffer = false;
+        for (int i = 0; i < ra.size(); i++) {
+            JsonObject x = ra.get(i).getAsJsonObject();
+            JsonObject y = rb.get(i).getAsJsonObject();
+            timestampsDiffer |= x.remove("timestamp").getAsLong() != y.remove("timestamp").getAsLong();
+            check(x.equals(y), "La recensione " + i + " dipende da now: " + x + " " + y);
+        }
+        check(timestampsDiffer, "I timestamp non dipendono da now");
+    }
+
+    private static void expectFailure(Class<? extends Exception> expected, String... args) {
+        try {
+            DatasetGenerator.main(args);
+        } catch (Exception e) {
+            check(expected.isInstance(e), "Eccezione inattesa per " + Arrays.toString(args) + ": " + e);
+            return;
+        }
+        throw new AssertionError("Nessun errore per " + Arrays.toString(args));
+    }
+
+    /**
+     * Le opzioni non valide vengono rifiutate prima di creare la cartella di destinazione
+     */
+    private static void invalidOptions(File dir) {
+        File out = new File(dir, "non-valido");
+        String o = "out=" + out.getPath();
+        expectFailure(IllegalArgumentException.class, o, "hotels");
+        expectFailure(IllegalArgumentException.class, o, "=10");
+        expectFailure(IllegalArgumentException.class, o, "hotels=0");
+        expectFailure(IllegalArgumentException.class, o, "cities=0");
+        expectFailure(IllegalArgumentException.class, o, "hotels=10", "reviews=-1");
+        expectFailure(IllegalArgumentException.class, o, "hotels=10", "reviewsPerUser=0.5");
+        expectFailure(IllegalArgumentException.class, o, "hotels=10", "days=0");
+        expectFailure(IllegalArgumentException.class, o, "hotels=10", "meanAge=-1");
+        expectFailure(NumberFormatException.class, o, "hotels=dieci");
+        expectFailure(NumberFormatException.class, o, "hotels=10", "now=ieri");
+        check(!out.exists(), "Cartella creata con opzioni non valide");
+    }
+
+    /**
+     * Una cartella con Users.dat o archive/ di un altro database, o un file al posto della cartella, vengono rifiutati
+     * senza scrivere nulla
+     */
+    private static void invalidDestination(File dir) throws IOException {
+        for (String leftover : new String[]{"Users.dat", "archive"}) {
+            File out = new File(dir, "con-" + leftover);
+            check(out.mkdirs(), "Impossibile creare " + out);
+            File f = new File(out, leftover);
+            check(leftover.equals("archive") ? f.mkdir() : f.createNewFile(), "Impossibile creare " + f);
+            expectFailure(IOException.class, "out=" + out.getPath(), "hotels=10", "reviews=10");
+            check(!new File(out, "Reviews.json").exists() && !new File(out, "Hotels.json").exists(),
+                    "File scritti accanto a " + leftover);
+        }
+
+        File notADirectory = new File(dir, "file");
+        check(notADirectory.createNewFile(), "Impossibile creare " + notADirectory);
+        expectFailure(IOException.class, "out=" + notADirectory.getPath(), "hotels=10", "reviews=10");
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File c : children) deleteRecursively(c);
+        if (!file.delete()) file.deleteOnExit();
+    }
+}
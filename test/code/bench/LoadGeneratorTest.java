@@ -0,0 +1,374 @@
+package code.bench;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Andrea Filippi
+ *
+ * Test di {@link LoadGenerator}: l'istogramma delle latenze, le opzioni non valide e due esecuzioni brevi contro un
+ * server finto che parla il protocollo testuale di HOTELIER, una in cui i comandi vanno a buon fine (con un comando
+ * che risponde sempre con un errore) e alcune in cui le connessioni falliscono. Non usa librerie di test: termina con
+ * un {@link AssertionError} alla prima verifica fallita.<br>
+ * Uso: java -cp lib/gson-2.10.1.jar:out:out-bench:out-test code.bench.LoadGeneratorTest
+ */
+public class LoadGeneratorTest {
+    private static final String[] HOTELS = {"Hotel Uno", "Hotel Due", "Hotel Tre"};
+    private static final String[] CITIES = {"Roma", "Roma", "Milano"};
+    private static final String MIX = "register:1,login:1,searchHotel:1,searchAllHotels:1,insertReview:1,showMyBadges:1";
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("hotelier-load-test").toFile();
+        try {
+            File hotels = writeHotels(new File(dir, "Hotels.json"));
+            histogram();
+            invalidOptions(hotels, dir);
+            run(hotels);
+            rejectedLogin(hotels);
+            unreachableServer(hotels);
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) for (File f : files) f.delete();
+            dir.delete();
+        }
+        System.out.println("LoadGeneratorTest: OK");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    private static File writeHotels(File file) throws IOException {
+        StringJoiner json = new StringJoiner(",", "[", "]");
+        for (int i = 0; i < HOTELS.length; i++) {
+            json.add("{\"id\":" + (i + 1) + ",\"name\":\"" + HOTELS[i] + "\",\"city\":\"" + CITIES[i] + "\"}");
+        }
+        Files.write(file.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    // --- istogramma ---
+
+    private static void histogram() {
+        LoadGenerator.LatencyHistogram empty = new LoadGenerator.LatencyHistogram();
+        check(empty.getTotal() == 0 && empty.percentile(50) == 0 && empty.percentile(99.9) == 0,
+                "Un istogramma vuoto deve restituire 0");
+
+        // sotto le 128 fasce i valori sono esatti
+        LoadGenerator.LatencyHistogram exact = new LoadGenerator.LatencyHistogram();
+        for (int v = 0; v < 128; v++) exact.record(v);
+        check(exact.getTotal() == 128, "Totale errato: " + exact.getTotal());
+        check(exact.percentile(50) == 63, "p50 errato: " + exact.percentile(50));
+        check(exact.percentile(100) == 127 && exact.getMax() == 127, "Massimo errato: " + exact.percentile(100));
+
+        // sopra, l'errore relativo resta entro la larghezza di una fascia (1/64)
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            long v = 128 + (long) (Math.pow(2, random.nextDouble() * 40));
+            LoadGenerator.LatencyHistogram h = new LoadGenerator.LatencyHistogram();
+            h.record(v);
+            h.record(Long.MAX_VALUE);
+            long estimate = h.percentile(50);
+            check(Math.abs(estimate - v) <= v / 64.0, "Stima di " + v + " troppo lontana: " + estimate);
+        }
+
+        // il percentile non supera mai il massimo registrato
+        LoadGenerator.LatencyHistogram single = new LoadGenerator.LatencyHistogram();
+        single.record(1_000_001);
+        check(single.percentile(99.9) == 1_000_001, "Il percentile supera il massimo: " + single.percentile(99.9));
+
+        // la somma di due istogrammi equivale a registrare tutti i valori in uno solo
+        LoadGenerator.LatencyHistogram a = new LoadGenerator.LatencyHistogram();
+        LoadGenerator.LatencyHistogram b = new LoadGenerator.LatencyHistogram();
+        LoadGenerator.LatencyHistogram all = new LoadGenerator.LatencyHistogram();
+        for (int i = 0; i < 1000; i++) {
+            long v = random.nextInt(5_000_000);
+            (i % 3 == 0 ? a : b).record(v);
+            all.record(v);
+        }
+        a.add(b);
+        check(a.getTotal() == all.getTotal() && a.getMax() == all.getMax(), "Totale o massimo errati dopo add()");
+        for (double p : new double[]{50, 90, 99, 99.9, 100}) {
+            check(a.percentile(p) == all.percentile(p), "p" + p + " diverso dopo add()");
+        }
+
+        // valori fuori scala non fanno uscire dall'array delle fasce
+        LoadGenerator.LatencyHistogram extremes = new LoadGenerator.LatencyHistogram();
+        extremes.record(-5);
+        extremes.record(Long.MAX_VALUE);
+        check(extremes.getTotal() == 2 && extremes.percentile(50) == 0, "Valori estremi registrati male");
+    }
+
+    // --- opzioni ---
+
+    private static void expectFailure(Class<? extends Exception> expected, String... args) {
+        try {
+            LoadGenerator.main(args);
+        } catch (Exception e) {
+            check(expected.isInstance(e), "Eccezione inattesa per " + Arrays.toString(args) + ": " + e);
+            return;
+        }
+        throw new AssertionError("Nessun errore per " + Arrays.toString(args));
+    }
+
+    /**
+     * Le opzioni non valide vengono rifiutate prima di aprire connessioni
+     */
+    private static void invalidOptions(File hotels, File dir) throws IOException {
+        String h = "hotels=" + hotels.getPath();
+        expectFailure(IllegalArgumentException.class, h, "duration");
+        expectFailure(IllegalArgumentException.class, h, "=1");
+        expectFailure(IllegalArgumentException.class, h, "connections=0");
+        expectFailure(IllegalArgumentException.class, h, "duration=0");
+        expectFailure(IllegalArgumentException.class, h, "warmup=-1");
+        expectFailure(IllegalArgumentException.class, h, "rate=-1");
+        expectFailure(IllegalArgumentException.class, h, "rate=NaN");
+        expectFailure(NumberFormatException.class, h, "port=ottocento");
+        // comando sconosciuto (scritto male), voce senza peso, peso negativo, nessun comando con peso positivo
+        expectFailure(IllegalArgumentException.class, h, "mix=serchHotel:40,login:5");
+        expectFailure(IllegalArgumentException.class, h, "mix=searchHotel");
+        expectFailure(IllegalArgumentException.class, h, "mix=searchHotel:-1,login:5");
+        expectFailure(IllegalArgumentException.class, h, "mix=searchHotel:0");
+        expectFailure(NumberFormatException.class, h, "mix=searchHotel:molti");
+
+        expectFailure(FileNotFoundException.class, "hotels=" + new File(dir, "manca.json").getPath());
+        File empty = new File(dir, "vuoto.json");
+        Files.write(empty.toPath(), "[]".getBytes(StandardCharsets.UTF_8));
+        expectFailure(IllegalArgumentException.class, "hotels=" + empty.getPath());
+    }
+
+    // --- esecuzioni contro il server finto ---
+
+    /**
+     * Server finto: risponde 200 a tutti i comandi tranne showMyBadges (sempre 401) e, se richiesto, login. Conta i
+     * comandi ricevuti e annota i corpi che non corrispondono a quelli attesi dal server vero
+     */
+    private static final class FakeServer implements Closeable {
+        private final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final boolean rejectLogin;
+        private final Map<String, AtomicInteger> commands = new ConcurrentHashMap<>();
+        private final List<String> invalid = Collections.synchronizedList(new ArrayList<>());
+
+        private FakeServer(boolean rejectLogin) throws IOException {
+            this.rejectLogin = rejectLogin;
+            Thread t = new Thread(this::accept, "fake-server");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private int getPort() {
+            return server.getLocalPort();
+        }
+
+        private int count(String command) {
+            AtomicInteger n = commands.get(command);
+            return n == null ? 0 : n.get();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    Thread t = new Thread(() -> serve(socket), "fake-connection");
+                    t.setDaemon(true);
+                    t.start();
+                }
+            } catch (IOException e) {
+                // server chiuso
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                 Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+                String command;
+                while ((command = in.readLine()) != null) {
+                    StringBuilder body = new StringBuilder();
+                    String line;
+                    while ((line = in.readLine()) != null && !line.isEmpty()) body.append(line);
+                    commands.computeIfAbsent(command, k -> new AtomicInteger()).incrementAndGet();
+                    validate(command, body.toString());
+                    out.write(respond(command));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // connessione chiusa dal client
+            }
+        }
+
+        private String respond(String command) {
+            switch (command) {
+                case "login":
+                    // porta 0: il gruppo multicast viene ascoltato su una porta libera qualunque
+                    return rejectLogin ? "401 UNAUTHORIZED\n\n" : "200 OK\n{\"group\":\"224.0.0.1\",\"port\":0}\n\n";
+                case "showMyBadges":
+                    return "401 UNAUTHORIZED\n\n";
+                default:
+                    return "200 OK\n\n";
+            }
+        }
+
+        private void validate(String command, String body) {
+            try {
+                JsonObject json = body.isEmpty() ? null : JsonParser.parseString(body).getAsJsonObject();
+                boolean ok;
+                switch (command) {
+                    case "register":
+                    case "login":
+                        ok = json != null && json.has("username") && json.has("password");
+                        break;
+                    case "logout":
+                        ok = json != null && json.has("username");
+                        break;
+                    case "searchHotel":
+                        ok = json != null && isHotel(json);
+                        break;
+                    case "searchAllHotels":
+                        ok = json != null && Arrays.asList(CITIES).contains(json.get("citta").getAsString());
+                        break;
+                    case "insertReview": {
+                        ok = json != null && isHotel(json) && isScore(json, "globalScore");
+                        JsonObject scores = ok ? json.getAsJsonObject("singleScores") : null;
+                        for (String c : new String[]{"cleaning", "position", "services", "quality"}) {
+                            ok = ok && isScore(scores, c);
+                        }
+                        break;
+                    }
+                    case "showMyBadges":
+                        ok = json == null;
+                        break;
+                    default:
+                        ok = false;
+                }
+                if (!ok) invalid.add(command + " " + body);
+            } catch (JsonParseException | IllegalStateException | NullPointerException | ClassCastException e) {
+                invalid.add(command + " " + body);
+            }
+        }
+
+        private static boolean isHotel(JsonObject json) {
+            String name = json.get("nomeHotel").getAsString();
+            String city = json.get("citta").getAsString();
+            for (int i = 0; i < HOTELS.length; i++) {
+                if (HOTELS[i].equals(name) && CITIES[i].equals(city)) return true;
+            }
+            return false;
+        }
+
+        private static boolean isScore(JsonObject json, String name) {
+            int score = json.get(name).getAsInt();
+            return score >= 0 && score <= 5;
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+
+    /**
+     * Esegue il generatore per un secondo e restituisce quello che ha stampato, stampandolo anche sull'output originale
+     */
+    private static String runGenerator(int port, File hotels, int connections) throws Exception {
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, "UTF-8"));
+        try {
+            LoadGenerator.main(new String[]{"host=localhost", "port=" + port, "connections=" + connections,
+                    "duration=1", "warmup=0", "rate=0", "mix=" + MIX, "hotels=" + hotels.getPath()});
+        } finally {
+            System.setOut(stdout);
+        }
+        String output = new String(captured.toByteArray(), StandardCharsets.UTF_8);
+        stdout.print(output);
+        return output;
+    }
+
+    /**
+     * @return i campi della riga del report che inizia con il nome indicato, oppure null
+     */
+    private static String[] row(String output, String name) {
+        for (String line : output.split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields[0].equals(name)) return fields;
+        }
+        return null;
+    }
+
+    private static void run(File hotels) throws Exception {
+        int connections = 3;
+        String output;
+        FakeServer server = new FakeServer(false);
+        try {
+            output = runGenerator(server.getPort(), hotels, connections);
+        } finally {
+            server.close();
+        }
+
+        check(!output.contains("connessioni fallite"), "Connessioni fallite contro il server finto");
+        check(server.invalid.isEmpty(), "Corpi non validi inviati al server: " + server.invalid);
+        // ogni connessione registra e fa il login del suo utente prima della misura
+        check(server.count("register") > connections && server.count("login") > connections,
+                "Registrazioni o login iniziali mancanti");
+        // ogni login misurato è preceduto da un logout
+        check(server.count("logout") == server.count("login") - connections,
+                "logout " + server.count("logout") + " e login " + server.count("login") + " non corrispondono");
+
+        long total = 0;
+        for (String command : MIX.split(",")) {
+            String name = command.substring(0, command.indexOf(':'));
+            check(server.count(name) > 0, "Il server non ha ricevuto " + name);
+            String[] fields = row(output, name);
+            check(fields != null, "Nessuna riga per " + name + " nel report");
+            long count = Long.parseLong(fields[1]);
+            long errors = Long.parseLong(fields[3]);
+            check(count > 0, "Nessun " + name + " misurato");
+            // solo showMyBadges risponde con un errore, e ogni sua risposta va contata come errore
+            check(errors == (name.equals("showMyBadges") ? count : 0), "Errori di " + name + " contati male: " + errors);
+            total += count;
+        }
+        String[] totals = row(output, "totale");
+        check(totals != null && Long.parseLong(totals[1]) == total, "La riga totale non è la somma dei comandi");
+        check(output.contains("showMyBadges 401=") && output.contains("searchHotel 200="),
+                "Status dei comandi mancanti nel report");
+    }
+
+    /**
+     * Se il login iniziale fallisce la connessione viene contata come fallita, senza bloccare le altre né il report
+     */
+    private static void rejectedLogin(File hotels) throws Exception {
+        FakeServer server = new FakeServer(true);
+        String output;
+        try {
+            output = runGenerator(server.getPort(), hotels, 2);
+        } finally {
+            server.close();
+        }
+        check(output.contains("connessioni fallite: 2"), "Login rifiutati non contati come connessioni fallite");
+        check(output.contains("Nessun comando completato"), "Report errato senza comandi misurati");
+        check(server.count("searchHotel") == 0, "Comandi inviati dopo un login rifiutato");
+    }
+
+    /**
+     * Con il server irraggiungibile tutte le connessioni falliscono e il test termina comunque
+     */
+    private static void unreachableServer(File hotels) throws Exception {
+        FakeServer server = new FakeServer(false);
+        int port = server.getPort();
+        server.close();
+        String output = runGenerator(port, hotels, 2);
+        check(output.contains("connessioni fallite: 2"), "Connessioni rifiutate non contate come fallite");
+    }
+}